@@ -0,0 +1,292 @@
+/**
+ * Index of the blocks of a log file.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Splits a log file into line-aligned blocks, a line never spanning two blocks,
+ * and records what the subclasses need to rule out blocks without reading them.
+ *
+ * Logs only grow, so an index stays valid for the start of the file it covers
+ * and is extended with blocks for the lines appended since. A checksum of the
+ * last bytes it covers tells whether the file was replaced instead.
+ *
+ * Index files start with their magic, the end of the last whole line covered, the
+ * number of lines before it and the checksum of the bytes before it, the number of
+ * blocks and the start offset and number of lines before each block.
+ */
+public abstract class BlockIndex
+{
+    /**
+     * Number of bytes before the end of the covered lines which are checksummed.
+     */
+    private static final int ANCHOR_SIZE = 4096;
+
+    /**
+     * Blocks of the file covered by the index.
+     */
+    protected final Blocks blocks;
+
+    protected BlockIndex(Blocks blocks)
+    {
+        this.blocks = blocks;
+    }
+
+    /**
+     * A line-aligned byte range of the log file.
+     */
+    public static class Block
+    {
+        public final long start;
+        public final long end;
+
+        /**
+         * Number of lines of the file before the block.
+         */
+        public final long linesBefore;
+
+        Block(long start, long end, long linesBefore)
+        {
+            this.start = start;
+            this.end = end;
+            this.linesBefore = linesBefore;
+        }
+    }
+
+    /**
+     * Extends the index with blocks for the lines appended to the log file since it
+     * was indexed. The caller checks that the file still starts with the indexed lines.
+     *
+     * @param logFile Log file.
+     * @param blockSize Approximate size of a block in bytes.
+     * @return The extended index, or this index if no whole line was appended.
+     * @throws IOException if the log cannot be read.
+     */
+    public abstract BlockIndex extend(File logFile, int blockSize) throws IOException;
+
+    /**
+     * Writes the index next to the log file. It is written to a temporary file
+     * which is then renamed, so that readers never see a partly written index.
+     *
+     * @param logFile Log file.
+     * @throws IOException if writing fails.
+     */
+    public abstract void write(File logFile) throws IOException;
+
+    /**
+     * @return Name of the kind of index, for the logs.
+     */
+    public abstract String getKind();
+
+    /**
+     * Checks that the log file still starts with the lines the index covers, that
+     * is it was only appended to since it was indexed.
+     *
+     * @param logFile Log file.
+     * @return true if the index is valid for the log file.
+     */
+    public boolean isPrefixOf(File logFile)
+    {
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "r");
+             FileChannel channel = file.getChannel())
+        {
+            return channel.size() >= this.blocks.indexedLength
+                && anchorChecksum(channel, this.blocks.indexedLength) == this.blocks.anchorChecksum;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @return End of the last whole line of the log file when it was indexed.
+     */
+    public long getIndexedLength()
+    {
+        return this.blocks.indexedLength;
+    }
+
+    /**
+     * @return Number of lines before getIndexedLength().
+     */
+    public long getIndexedLines()
+    {
+        return this.blocks.indexedLines;
+    }
+
+    /**
+     * @return Number of blocks of the index.
+     */
+    public int getBlockCount()
+    {
+        return this.blocks.starts.length;
+    }
+
+    /**
+     * @param ids Ids of blocks.
+     * @return The blocks, in file order.
+     */
+    protected List<Block> blocksOf(BitSet ids)
+    {
+        List<Block> selected = new ArrayList<Block>();
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1))
+        {
+            long end = (id + 1 < this.blocks.starts.length) ? this.blocks.starts[id + 1] : this.blocks.indexedLength;
+            selected.add(new Block(this.blocks.starts[id], end, this.blocks.linesBefore[id]));
+        }
+        return selected;
+    }
+
+    /**
+     * Computes the CRC32 of the ANCHOR_SIZE bytes before an offset.
+     *
+     * @param channel Channel of the log file.
+     * @param end Offset after the checksummed bytes.
+     * @return Checksum.
+     * @throws IOException if the file cannot be read.
+     */
+    protected static long anchorChecksum(FileChannel channel, long end) throws IOException
+    {
+        long start = Math.max(end - ANCHOR_SIZE, 0);
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, start + buffer.position()) < 0)
+            {
+                throw new IOException("File shorter than its index.");
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.limit());
+        return crc.getValue();
+    }
+
+    protected static long[] concat(long[] first, List<Long> second)
+    {
+        long[] array = Arrays.copyOf(first, first.length + second.size());
+        for (int i = 0; i < second.size(); i++)
+        {
+            array[first.length + i] = second.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Writes the magic and the blocks which start an index file.
+     *
+     * @param out Stream of the index file.
+     * @param magic Magic of the kind of index.
+     * @throws IOException if writing fails.
+     */
+    protected void writeBlocks(DataOutputStream out, int magic) throws IOException
+    {
+        out.writeInt(magic);
+        out.writeLong(this.blocks.indexedLength);
+        out.writeLong(this.blocks.indexedLines);
+        out.writeLong(this.blocks.anchorChecksum);
+        out.writeInt(this.blocks.starts.length);
+        for (int i = 0; i < this.blocks.starts.length; i++)
+        {
+            out.writeLong(this.blocks.starts[i]);
+            out.writeLong(this.blocks.linesBefore[i]);
+        }
+    }
+
+    /**
+     * Reads the magic and the blocks which start an index file.
+     *
+     * @param in Stream of the index file.
+     * @param magic Magic of the kind of index.
+     * @param indexFile Index file, for the error message.
+     * @return Blocks of the index.
+     * @throws IOException if the file is not an index of this kind or cannot be read.
+     */
+    protected static Blocks readBlocks(DataInputStream in, int magic, File indexFile) throws IOException
+    {
+        if (in.readInt() != magic)
+        {
+            throw new IOException("Not an index file: " + indexFile);
+        }
+
+        long indexedLength = in.readLong();
+        long indexedLines = in.readLong();
+        long anchorChecksum = in.readLong();
+        long[] starts = new long[in.readInt()];
+        long[] linesBefore = new long[starts.length];
+        for (int i = 0; i < starts.length; i++)
+        {
+            starts[i] = in.readLong();
+            linesBefore[i] = in.readLong();
+        }
+        return new Blocks(indexedLength, indexedLines, anchorChecksum, starts, linesBefore);
+    }
+
+    /**
+     * Renames the temporary file an index was written to over the index file.
+     *
+     * @param temporary Temporary file.
+     * @param indexFile Index file.
+     * @throws IOException if the file cannot be renamed.
+     */
+    protected static void replace(File temporary, File indexFile) throws IOException
+    {
+        if (!temporary.renameTo(indexFile))
+        {
+            indexFile.delete();
+            if (!temporary.renameTo(indexFile))
+            {
+                temporary.delete();
+                throw new IOException("Could not write the index file " + indexFile);
+            }
+        }
+    }
+
+    /**
+     * Blocks of a log file covered by an index.
+     */
+    protected static class Blocks
+    {
+        /**
+         * End of the last whole line covered and the number of lines before it. A last
+         * line without a terminator is left out of the blocks, as it may still grow.
+         */
+        final long indexedLength;
+        final long indexedLines;
+
+        /**
+         * CRC32 of the ANCHOR_SIZE bytes before indexedLength.
+         */
+        final long anchorChecksum;
+
+        /**
+         * Start offset and number of lines before each block.
+         */
+        final long[] starts;
+        final long[] linesBefore;
+
+        Blocks(long indexedLength, long indexedLines, long anchorChecksum, long[] starts, long[] linesBefore)
+        {
+            this.indexedLength = indexedLength;
+            this.indexedLines = indexedLines;
+            this.anchorChecksum = anchorChecksum;
+            this.starts = starts;
+            this.linesBefore = linesBefore;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Bloom filter index of a log file.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Keeps a small Bloom filter of the trigrams of each block of the log file. A
+ * filter never misses a trigram of its block, so a block whose filter lacks a
+ * trigram of a string the query requires cannot have matching lines and is
+ * skipped. A filter takes a fixed number of bits per distinct trigram of its
+ * block, so a block is checked without decoding posting lists as a TrigramIndex
+ * does, at the cost of about one block in a hundred scanned for nothing.
+ *
+ * The index is stored next to the log file, in the file with the INDEX_SUFFIX:
+ * the blocks as written by BlockIndex, the number of words of the filter of each
+ * block and the words of all the filters.
+ */
+public class BloomIndex extends LiteralIndex
+{
+    /**
+     * Suffix of the index file name.
+     */
+    public static final String INDEX_SUFFIX = ".tbf";
+
+    /**
+     * First bytes of an index file, "TBF1" in ASCII.
+     */
+    private static final int MAGIC = 0x54424631;
+
+    /**
+     * Bits of a filter per distinct trigram of its block, for about 1% false positives.
+     */
+    private static final int BITS_PER_TRIGRAM = 10;
+
+    /**
+     * Number of bits set per trigram.
+     */
+    private static final int HASH_COUNT = 7;
+
+    /**
+     * Start of the filter of each block in words, and the words of all the filters.
+     */
+    private final int[] filterStarts;
+    private final long[] words;
+
+    private BloomIndex(Blocks blocks, int[] filterStarts, long[] words)
+    {
+        super(blocks);
+        this.filterStarts = filterStarts;
+        this.words = words;
+    }
+
+    /**
+     * @param logFile Log file.
+     * @return Index file of the log file.
+     */
+    public static File indexFileOf(File logFile)
+    {
+        return new File(logFile.getPath() + INDEX_SUFFIX);
+    }
+
+    @Override
+    public List<Block> candidateBlocks(List<List<String>> requiredLiterals)
+    {
+        List<int[]> patternTrigrams = trigramsOf(requiredLiterals);
+        BitSet candidates = new BitSet(this.getBlockCount());
+        for (int block = 0; block < this.getBlockCount(); block++)
+        {
+            for (int[] trigrams : patternTrigrams)
+            {
+                if (this.mayContainAll(block, trigrams))
+                {
+                    candidates.set(block);
+                    break;
+                }
+            }
+        }
+        return this.blocksOf(candidates);
+    }
+
+    @Override
+    public String getKind()
+    {
+        return "bloom";
+    }
+
+    /**
+     * @param block Id of a block.
+     * @param trigrams Trigrams.
+     * @return false if the block surely lacks one of the trigrams.
+     */
+    private boolean mayContainAll(int block, int[] trigrams)
+    {
+        int start = this.filterStarts[block];
+        int end = (block + 1 < this.filterStarts.length) ? this.filterStarts[block + 1] : this.words.length;
+        long bits = (long) (end - start) * 64;
+        for (int trigram : trigrams)
+        {
+            long hash = trigram * 0x9E3779B97F4A7C15L;
+            int hash1 = (int) hash;
+            int hash2 = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < HASH_COUNT; i++)
+            {
+                long bit = ((hash1 + i * hash2) & 0xFFFFFFFFL) % bits;
+                if ((this.words[start + (int) (bit >>> 6)] & (1L << bit)) == 0)
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the index of a log file.
+     *
+     * @param logFile Log file.
+     * @param blockSize Approximate size of a block in bytes.
+     * @return The index.
+     * @throws IOException if the log cannot be read.
+     */
+    public static BloomIndex build(File logFile, int blockSize) throws IOException
+    {
+        return index(logFile, blockSize, null);
+    }
+
+    @Override
+    public BloomIndex extend(File logFile, int blockSize) throws IOException
+    {
+        return index(logFile, blockSize, this);
+    }
+
+    /**
+     * Indexes the whole lines of the log file after the ones covered by the base index.
+     *
+     * @param logFile Log file.
+     * @param blockSize Approximate size of a block in bytes.
+     * @param base Index of the start of the file, null to index the whole file.
+     * @return The index of the whole lines of the file.
+     * @throws IOException if the log cannot be read.
+     */
+    private static BloomIndex index(File logFile, int blockSize, BloomIndex base) throws IOException
+    {
+        final int[][] filterStarts = { (base == null) ? new int[0] : base.filterStarts };
+        final long[][] words = { (base == null) ? new long[0] : base.words };
+        final int[] wordCount = { words[0].length };
+
+        Blocks blocks = scan(logFile, blockSize, base, new BlockVisitor()
+        {
+            @Override
+            public void visit(int blockId, TrigramSet trigrams)
+            {
+                int size = Math.max((trigrams.size() * BITS_PER_TRIGRAM + 63) / 64, 1);
+                // The arrays of the base are copied before the first new block, never written.
+                if (blockId >= filterStarts[0].length)
+                {
+                    filterStarts[0] = Arrays.copyOf(filterStarts[0], Math.max(filterStarts[0].length * 2, 16));
+                }
+                if (wordCount[0] + size > words[0].length)
+                {
+                    words[0] = Arrays.copyOf(words[0], Math.max(words[0].length * 2, wordCount[0] + size));
+                }
+
+                int start = wordCount[0];
+                long bits = (long) size * 64;
+                filterStarts[0][blockId] = start;
+                for (int t = 0; t < trigrams.size(); t++)
+                {
+                    long hash = trigrams.get(t) * 0x9E3779B97F4A7C15L;
+                    int hash1 = (int) hash;
+                    int hash2 = (int) (hash >>> 32) | 1;
+                    for (int i = 0; i < HASH_COUNT; i++)
+                    {
+                        long bit = ((hash1 + i * hash2) & 0xFFFFFFFFL) % bits;
+                        words[0][start + (int) (bit >>> 6)] |= 1L << bit;
+                    }
+                }
+                wordCount[0] += size;
+            }
+        });
+        if (blocks == null)
+        {
+            return base;
+        }
+
+        return new BloomIndex(blocks, Arrays.copyOf(filterStarts[0], blocks.starts.length),
+            Arrays.copyOf(words[0], wordCount[0]));
+    }
+
+    @Override
+    public void write(File logFile) throws IOException
+    {
+        File indexFile = indexFileOf(logFile);
+        File temporary = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16)))
+        {
+            this.writeBlocks(out, MAGIC);
+            for (int block = 0; block < this.filterStarts.length; block++)
+            {
+                int end = (block + 1 < this.filterStarts.length) ? this.filterStarts[block + 1] : this.words.length;
+                out.writeInt(end - this.filterStarts[block]);
+            }
+            for (long word : this.words)
+            {
+                out.writeLong(word);
+            }
+        }
+        replace(temporary, indexFile);
+    }
+
+    /**
+     * Reads the index of a log file.
+     *
+     * @param logFile Log file.
+     * @return The index, or null if there is no index file.
+     * @throws IOException if the index file cannot be read or is corrupt.
+     */
+    public static BloomIndex read(File logFile) throws IOException
+    {
+        File indexFile = indexFileOf(logFile);
+        if (!indexFile.isFile())
+        {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(indexFile), 1 << 16)))
+        {
+            Blocks blocks = readBlocks(in, MAGIC, indexFile);
+            int[] filterStarts = new int[blocks.starts.length];
+            int wordCount = 0;
+            for (int block = 0; block < filterStarts.length; block++)
+            {
+                filterStarts[block] = wordCount;
+                wordCount += in.readInt();
+            }
+            long[] words = new long[wordCount];
+            for (int i = 0; i < wordCount; i++)
+            {
+                words[i] = in.readLong();
+            }
+            return new BloomIndex(blocks, filterStarts, words);
+        }
+    }
+}
@@ -5,9 +5,14 @@
  */
 
 import java.io.*;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 @SuppressWarnings("deprecation")
 public class Client {
@@ -35,6 +40,27 @@ public class Client {
      * port number
      */
     private int port;
+    /**
+     * collects the summaries of summary queries, null otherwise.
+     */
+    private ClusterSummary clusterSummary = null;
+    /**
+     * merges the lines of ordered queries, null otherwise.
+     */
+    private ResultMerger merger = null;
+    /**
+     * stream the lines of follow queries are printed to, null otherwise.
+     */
+    private PrintStream liveOutput = null;
+    /**
+     * keeps the first lines of --limit queries over all the servers, null otherwise.
+     */
+    private ClusterLimit limit = null;
+
+    /**
+     * file the lines of ordered queries are merged into.
+     */
+    private static final String MERGED_OUTPUT = "output_merged";
 
     /**
      * Logger instance.
@@ -57,24 +83,80 @@ public class Client {
     }
 
     /**
-     * Method to create a thread that connects to each server 
+     * Constructor for the class ClientRequestHandler for summary queries
+     * @param address Server address to connect to.
+     * @param clientInput Grep command provided by client.
+     * @param vmId log file ID of a particular server.
+     * @param port server port number.
+     * @param clusterSummary collects the summary sent by the server.
      */
-    public void create_thread(ThreadGroup threadGroup) {
-        try {
-            /**
-             * creates a client socket.
-            */
-            Socket socket = new Socket(address, port);
-            socket.setSoTimeout(100000);
-            logger.LogInfo("Connected to "+address);
-            
-            // creates a thread process for given input
-            Thread t = new ClientThread(threadGroup, socket, clientInput, vmId);
-            t.start();
+    public Client(String address, String clientInput, String vmId, int port, ClusterSummary clusterSummary) {
+        this(address, clientInput, vmId, port);
+        this.clusterSummary = clusterSummary;
+    }
 
-        } catch (Exception e) {
-            logger.LogWarning("Connection failed to "+address+" of " +vmId+" .Skipping this VM.");
+    /**
+     * Constructor for the class ClientRequestHandler for ordered queries
+     * @param address Server address to connect to.
+     * @param clientInput Grep command provided by client.
+     * @param vmId log file ID of a particular server.
+     * @param port server port number.
+     * @param clusterSummary collects the summary sent by the server, may be null.
+     * @param merger merges the lines of all the servers by time.
+     */
+    public Client(String address, String clientInput, String vmId, int port, ClusterSummary clusterSummary,
+            ResultMerger merger) {
+        this(address, clientInput, vmId, port, clusterSummary);
+        this.merger = merger;
+    }
+
+    /**
+     * Constructor for the class ClientRequestHandler for follow queries
+     * @param address Server address to connect to.
+     * @param clientInput Grep command provided by client.
+     * @param vmId log file ID of a particular server.
+     * @param port server port number.
+     * @param liveOutput stream the lines of all the servers are printed to as they arrive.
+     */
+    public Client(String address, String clientInput, String vmId, int port, PrintStream liveOutput) {
+        this(address, clientInput, vmId, port);
+        this.liveOutput = liveOutput;
+    }
+
+    /**
+     * Constructor for the class ClientRequestHandler for --limit queries
+     * @param address Server address to connect to.
+     * @param clientInput Grep command provided by client.
+     * @param vmId log file ID of a particular server.
+     * @param port server port number.
+     * @param limit keeps the first lines of all the servers and stops them at the limit.
+     */
+    public Client(String address, String clientInput, String vmId, int port, ClusterLimit limit) {
+        this(address, clientInput, vmId, port);
+        this.limit = limit;
+    }
+
+    /**
+     * Creates the query of the server. It connects to the server itself when it runs,
+     * so that all the servers are connected to at once.
+     * 
+     * @return query of the server.
+     */
+    public Callable<QueryOutcome> newQuery() {
+        if (liveOutput != null) {
+            return new ClientThread(address, port, clientInput, vmId, liveOutput);
+        }
+        if (limit != null) {
+            return new ClientThread(address, port, clientInput, vmId, limit);
         }
+        return new ClientThread(address, port, clientInput, vmId, clusterSummary, merger);
+    }
+
+    /**
+     * @return log file ID of the server.
+     */
+    public String getVmId() {
+        return vmId;
     }
 
     public static void main(String args[]) {
@@ -95,24 +177,142 @@ public class Client {
             logger.LogException("[Client] Exception in handling property files:", e);
         }
 
-        // reads user input for grep command
+        // reads grep commands until end of input, reusing the sessions to the servers
         Scanner sc = new Scanner(System.in);
-        logger.LogInfo("Type grep command and press enter");
+        logger.LogInfo("Type grep command and press enter, an empty line or end of input exits");
         logger.LogInfo("For example: -c -E \"^[0-9]*[a-z]{5}\"");
-        String clientInput = sc.nextLine();
+        logger.LogInfo("Add --summary to get only the cluster wide count of matching lines");
+        logger.LogInfo("Add --since and --until, as in --since \"2026-10-16 10:00\", to search a time window");
+        logger.LogInfo("Add --follow to get the matching lines appended to the logs until you press enter");
+        logger.LogInfo("Add --group-by=1 --top=10 to count the matching lines by the text of capture group 1");
+        logger.LogInfo("Add --limit=100 to get the first 100 matching lines of all the VMs and stop the search");
+        while (sc.hasNextLine()) {
+            String clientInput = sc.nextLine();
+            if (clientInput.trim().isEmpty()) {
+                break;
+            }
+            runQuery(clientInput, addresses, vmIds, sc);
+        }
         sc.close();
-	
-        ThreadGroup threadGroup = new ThreadGroup("grepClient");
+        GrepSession.closeAll();
+    }
+
+    /**
+     * Runs a grep command on all the servers and waits for their results.
+     * 
+     * @param clientInput grep command given by the user.
+     * @param addresses server addresses.
+     * @param vmIds log file IDs of the servers.
+     * @param sc user input, where an empty line stops a follow query.
+     */
+    private static void runQuery(String clientInput, String addresses[], String vmIds[], Scanner sc) {
+        // summary and group-by queries only get counts from the servers, which are combined here,
+        // and the lines of ordered queries are merged by time into one file
+        ClusterSummary clusterSummary = null;
+        ResultMerger merger = null;
+        ClusterLimit limit = null;
+        Writer mergedOutput = null;
+        try {
+            GrepQuery query = GrepQuery.parse(clientInput);
+            if (query.isFollow()) {
+                followQuery(clientInput, addresses, vmIds, sc);
+                return;
+            }
+            if (query.isSummary()) {
+                clusterSummary = new ClusterSummary();
+            }
+            if (query.isGroupBy()) {
+                clusterSummary = new ClusterSummary(query.getTop());
+            }
+            if (query.getLimit() >= 0) {
+                limit = new ClusterLimit(query.getLimit());
+            }
+            if (query.isOrdered() && query.needsLines()) {
+                mergedOutput = new BufferedWriter(new FileWriter(MERGED_OUTPUT));
+                merger = new ResultMerger(Arrays.asList(vmIds), mergedOutput,
+                    GrepConfig.getInstance().getInt("Merge_buffer_lines", 10000));
+            }
+        } catch (IllegalArgumentException e) {
+            logger.LogWarning("Could not parse the query locally: " + e.getMessage());
+        } catch (IOException e) {
+            logger.LogException("[Client] Could not open " + MERGED_OUTPUT, e);
+            return;
+        }
 
         long startTime = System.currentTimeMillis();
-	// creates a separate thread for each server connection
+        // queries all the servers at once, until the Query_timeout_ms deadline
+        List<Client> clients = new ArrayList<Client>();
         for (int i = 0; i < addresses.length; i++) {
-            Client client = new Client(addresses[i], clientInput, vmIds[i], 5000);
-            client.create_thread(threadGroup);
+            clients.add((limit != null) ? new Client(addresses[i], clientInput, vmIds[i], 5000, limit)
+                : new Client(addresses[i], clientInput, vmIds[i], 5000, clusterSummary, merger));
+        }
+        List<QueryOutcome> outcomes =
+            ClusterQuery.run(clients, GrepConfig.getInstance().getLong("Query_timeout_ms", 60000), logger);
+        for (QueryOutcome outcome : outcomes) {
+            System.out.println(outcome);
+        }
+        if (clusterSummary != null) {
+            clusterSummary.print(System.out);
+        }
+        if (limit != null) {
+            System.out.println("Kept the first " + limit.getKept() + " matching lines of all the VMs");
+        }
+        if (merger != null) {
+            // the cancelled queries were waited for by ClusterQuery.run, and the merger
+            // ignores the lines of any of them still running once it is closed
+            try {
+                long merged = merger.close();
+                mergedOutput.close();
+                System.out.println("Merged " + merged + " lines by time into " + MERGED_OUTPUT);
+            } catch (IOException e) {
+                logger.LogException("[Client] Could not write " + MERGED_OUTPUT, e);
+            }
         }
-        ThreadCount.waitForThreadsToComplete(threadGroup, logger);
         long endTime = System.currentTimeMillis();
         System.out.println("Total runtime: "+(endTime - startTime));
-        
+    }
+
+    /**
+     * Runs a follow query on all the servers: the lines they send are printed as
+     * they arrive, until the user presses enter or the input ends.
+     * 
+     * @param clientInput grep command given by the user.
+     * @param addresses server addresses.
+     * @param vmIds log file IDs of the servers.
+     * @param sc user input.
+     */
+    private static void followQuery(String clientInput, String addresses[], String vmIds[], Scanner sc) {
+        final List<Client> clients = new ArrayList<Client>();
+        for (int i = 0; i < addresses.length; i++) {
+            clients.add(new Client(addresses[i], clientInput, vmIds[i], 5000, System.out));
+        }
+
+        // the servers are followed on another thread while this one waits for the user,
+        // which stops the queries by interrupting it
+        FutureTask<List<QueryOutcome>> follow = new FutureTask<List<QueryOutcome>>(
+            new Callable<List<QueryOutcome>>() {
+                @Override
+                public List<QueryOutcome> call() {
+                    return ClusterQuery.run(clients, 0, logger);
+                }
+            });
+        Thread followThread = new Thread(follow, "Follow");
+        followThread.setDaemon(true);
+        followThread.start();
+        logger.LogInfo("Following the logs, press enter to stop");
+        if (sc.hasNextLine()) {
+            sc.nextLine();
+        }
+        followThread.interrupt();
+
+        try {
+            for (QueryOutcome outcome : follow.get()) {
+                System.out.println(outcome);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.LogException("[Client] Follow query failed:", e);
+        }
     }
 }
@@ -4,16 +4,23 @@
  * @author Prateeth Reddy Chagari (chagari2@illinois.edu)
  */
 import java.io.*;
-import java.net.Socket;
+import java.net.ProtocolException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.Inflater;
  
-class ClientThread extends Thread  
+class ClientThread implements Callable<QueryOutcome>  
 { 
     private String clientInput = ""; 
-    private DataOutputStream outputStream = null; 
-    private Socket socket = null; 
-    private DataInputStream inputStream = null; 
+    private String address = "";
+    private int port;
     private String vmId = "";
-    private FileWriter clientLog = null;
+    private Writer clientLog = null;
+    private Inflater inflater = new Inflater();
+    private ClusterSummary clusterSummary = null;
+    private ResultMerger merger = null;
+    private PrintStream liveOutput = null;
+    private ClusterLimit limit = null;
 
     /**
      * Logger instance.
@@ -23,91 +30,356 @@ class ClientThread extends Thread
     /**
      * constructor of ClientThread type class.
      * 
-     * @param threadGroup Parent thread group.
-     * @param socket Socket connection.
+     * @param address server address.
+     * @param port server port number.
      * @param clientInput Grep input given by user.
      * @param vmId the associated vm log file id.
      */
-    public ClientThread(ThreadGroup threadGroup, Socket socket, String clientInput, String vmId)
-    throws Exception  
+    public ClientThread(String address, int port, String clientInput, String vmId)
     { 
-        super(threadGroup, vmId);
-        this.socket = socket; 
+        this(address, port, clientInput, vmId, (ClusterSummary) null);
+    }
+
+    /**
+     * constructor of ClientThread type class for queries which may return summaries.
+     * 
+     * @param address server address.
+     * @param port server port number.
+     * @param clientInput Grep input given by user.
+     * @param vmId the associated vm log file id.
+     * @param clusterSummary collects the summaries sent by the server, may be null.
+     */
+    public ClientThread(String address, int port, String clientInput, String vmId,
+        ClusterSummary clusterSummary)
+    { 
+        this(address, port, clientInput, vmId, clusterSummary, null);
+    }
+
+    /**
+     * constructor of ClientThread type class for queries whose lines are merged by time.
+     * 
+     * @param address server address.
+     * @param port server port number.
+     * @param clientInput Grep input given by user.
+     * @param vmId the associated vm log file id.
+     * @param clusterSummary collects the summaries sent by the server, may be null.
+     * @param merger merges the timed lines of all the VMs, may be null.
+     */
+    public ClientThread(String address, int port, String clientInput, String vmId,
+        ClusterSummary clusterSummary, ResultMerger merger)
+    { 
+        this.clusterSummary = clusterSummary;
+        this.merger = merger;
+        this.address = address;
+        this.port = port; 
         this.clientInput = clientInput; 
         this.vmId = vmId;
         this.logger = GrepLogger.getInstance();
+    } 
 
-        try
-        {	
-            this.inputStream = new DataInputStream(socket.getInputStream());	
-            this.outputStream = new DataOutputStream(socket.getOutputStream());		
-        }	
-        catch(Exception e)	
-        {	
-            logger.LogException("Failed to get stream for the connected socket.", e);
-            throw e;	
-        }
+    /**
+     * constructor of ClientThread type class for follow queries, whose lines are
+     * printed as soon as they arrive.
+     * 
+     * @param address server address.
+     * @param port server port number.
+     * @param clientInput Grep input given by user.
+     * @param vmId the associated vm log file id.
+     * @param liveOutput stream the lines of all the VMs are printed to.
+     */
+    public ClientThread(String address, int port, String clientInput, String vmId, PrintStream liveOutput)
+    { 
+        this(address, port, clientInput, vmId, null, null);
+        this.liveOutput = liveOutput;
+    } 
+
+    /**
+     * constructor of ClientThread type class for --limit queries, whose first lines
+     * over all the VMs are kept.
+     * 
+     * @param address server address.
+     * @param port server port number.
+     * @param clientInput Grep input given by user.
+     * @param vmId the associated vm log file id.
+     * @param limit counts the lines kept from all the VMs and stops them at the limit.
+     */
+    public ClientThread(String address, int port, String clientInput, String vmId, ClusterLimit limit)
+    { 
+        this(address, port, clientInput, vmId, null, null);
+        this.limit = limit;
     } 
   
     /**
-     * Run the client.
+     * Run the query on the server.
      * 
-     * @throws IOException              if I/O error occurs.
-     * @throws IllegalArgumentException if any illegal arguments are passed.
+     * @return outcome of the query, TIMEOUT if it was cancelled at the deadline.
      */
     @Override
-    public void run()  
+    public QueryOutcome call()  
     { 
-        logger.LogInfo("Client thread started: " + socket); 
+        logger.LogInfo("Client thread started: " + this.address); 
         //time at which thread starts
         long startTime = System.currentTimeMillis();
 
-        // string to read message received from server 
-        String lineOutputs = "";
+        // gets the session to the server on this thread, so that a slow or dead
+        // server does not hold up the connections to the others. Merged queries
+        // get a session of their own, as they pause reading while the merge waits
+        // for the other VMs. Follow queries get one too, as closing it is what
+        // stops the server following the log.
+        boolean ownSession = merger != null || liveOutput != null;
+        GrepSession session;
+        try {
+            session = ownSession ? GrepSession.open(this.address, this.port)
+                : GrepSession.get(this.address, this.port);
+            logger.LogInfo("Connected to " + this.address + " in " + (System.currentTimeMillis() - startTime) + " ms");
+        } catch (IOException e) {
+            logger.LogWarning("Connection failed to " + this.address + " of " + this.vmId + ": " + e.getMessage()
+                + ". Skipping this VM.");
+            finishMerge();
+            return outcome(QueryOutcome.Status.ERROR, -1, startTime, "connection failed: " + e.getMessage());
+        }
 
+        QueryOutcome outcome;
+        GrepSession.Request request = null;
             try
             { 
-                // sends VM log ID and user input to server
-                this.outputStream.writeUTF(this.vmId);
-                this.outputStream.writeUTF(this.clientInput);
+                // sends the VM log ID and user input to server on the shared session
+                request = session.submit(this.vmId, this.clientInput, acceptedCodecs());
+                if (limit != null) {
+                    limit.register(request);
+                }
                 
                 // generating files (for each server input) to store logs received from servers
-                String filepath = "output_"+vmId;
-                clientLog = new FileWriter(filepath);
+                // a list or glob of log files is written under a name the file system takes
+                String filepath = "output_"+vmId.replaceAll("[^A-Za-z0-9._-]", "_");
+                clientLog = new BufferedWriter(new FileWriter(filepath));
+
+                //variables to check end of the response and if counts came as a summary or groups
+                boolean summaryReceived = false;
+                long keptLines = 0;
+                int busyRetries = 0;
+                outcome = null;
+                while (outcome == null) {
+                    //read frames sent by server and write their lines to file
+                    GrepProtocol.Frame frame = request.nextFrame();
 
-                //variable to check end of file
-                boolean eof = false;
-                while (!eof) {
-                    try {
-                        //read data sent by server, line-by-line, and write to file
-                        lineOutputs = this.inputStream.readUTF();
-                        clientLog.write(lineOutputs);
-                        clientLog.write(System.getProperty("line.separator"));
-                    } catch (EOFException e) {
-                        eof = true;
+                    if (frame.type == GrepProtocol.FRAME_BATCH) {
+                        DataInputStream body = GrepProtocol.readBatchBody(frame, inflater);
+                        String label = GrepProtocol.readString(body);
+                        String prefix = label.isEmpty() ? "" : label + " ";
+                        int lineCount = body.readInt();
+                        if (liveOutput != null) {
+                            printLive(prefix, body, lineCount);
+                        } else {
+                            for (int i = 0; i < lineCount; i++) {
+                                String line = GrepProtocol.readString(body);
+                                if (limit == null || limit.keep()) {
+                                    writeLine(prefix + line);
+                                    keptLines++;
+                                }
+                            }
+                        }
+                    } else if (frame.type == GrepProtocol.FRAME_TIMED_BATCH) {
+                        DataInputStream body = GrepProtocol.readBatchBody(frame, inflater);
+                        String label = GrepProtocol.readString(body);
+                        String prefix = label.isEmpty() ? "" : label + " ";
+                        int lineCount = body.readInt();
+                        for (int i = 0; i < lineCount; i++) {
+                            long timestamp = body.readLong();
+                            String line = GrepProtocol.readString(body);
+                            if (merger != null) {
+                                merger.add(this.vmId, timestamp, line);
+                            } else if (limit == null || limit.keep()) {
+                                writeLine(prefix + line);
+                                keptLines++;
+                            }
+                        }
+                    } else if (frame.type == GrepProtocol.FRAME_SUMMARY) {
+                        List<FileSummary> summaries = GrepProtocol.readSummary(frame);
+                        for (FileSummary summary : summaries) {
+                            writeLine(summary.toString());
+                        }
+                        if (clusterSummary != null) {
+                            clusterSummary.add(this.vmId, summaries);
+                        }
+                        summaryReceived = true;
+                    } else if (frame.type == GrepProtocol.FRAME_GROUPS) {
+                        // counts by group, written like the output of uniq -c
+                        GroupCounts groups = GrepProtocol.readGroups(frame);
+                        for (GroupCounts.Group group : groups.sorted()) {
+                            writeLine(group.toString());
+                        }
+                        if (clusterSummary != null) {
+                            clusterSummary.addGroups(groups);
+                        }
+                        summaryReceived = true;
+                    } else if (frame.type == GrepProtocol.FRAME_TRAILER) {
+                        DataInputStream payload = frame.payloadStream();
+                        String label = GrepProtocol.readString(payload);
+                        String prefix = label.isEmpty() ? "" : label + " ";
+                        long matchedLinesCount = payload.readLong();
+                        byte status = payload.readByte();
+                        String message = GrepProtocol.readString(payload);
+                        if (status == GrepProtocol.STATUS_BUSY
+                                && busyRetries < GrepConfig.getInstance().getInt("Busy_retries", 3)) {
+                            // the server did not run the request, it is sent again once the server expects room
+                            long retryMillis = payload.readLong();
+                            busyRetries++;
+                            logger.LogInfo("[Client] " + this.vmId + " is busy, retrying in " + retryMillis + " ms");
+                            if (limit != null) {
+                                limit.unregister(request);
+                            }
+                            sleep(retryMillis);
+                            request = session.submit(this.vmId, this.clientInput, acceptedCodecs());
+                            if (limit != null) {
+                                limit.register(request);
+                            }
+                            continue;
+                        }
+                        if (limit != null) {
+                            // lines past the cluster wide limit were dropped
+                            limit.unregister(request);
+                            matchedLinesCount = keptLines;
+                        }
+                        if (status == GrepProtocol.STATUS_OK) {
+                            if (!summaryReceived) {
+                                writeLine(prefix + matchedLinesCount);
+                            }
+                            outcome = outcome(QueryOutcome.Status.SUCCESS, matchedLinesCount, startTime, "");
+                        } else if (status == GrepProtocol.STATUS_BUSY) {
+                            writeLine(message);
+                            logger.LogWarning("[Client] " + this.vmId + " is still busy: " + message);
+                            outcome = outcome(QueryOutcome.Status.BUSY, 0, startTime, message);
+                        } else {
+                            writeLine(message);
+                            logger.LogWarning("[Client] Query failed on " + this.vmId + ": " + message);
+                            outcome = outcome(QueryOutcome.Status.ERROR, matchedLinesCount, startTime, message);
+                        }
                         logger.LogInfo("Completed writing logs to file: "+filepath);
+                    } else {
+                        throw new ProtocolException("Unexpected frame type " + frame.type);
                     }
                 }   
             } 
+            catch(InterruptedIOException e)
+            {
+                // cancelled at the deadline or stopped, the lines received so far stay in the file
+                if (request != null) {
+                    request.abandon();
+                }
+                outcome = (liveOutput != null)
+                    ? outcome(QueryOutcome.Status.STOPPED, -1, startTime, "stopped")
+                    : outcome(QueryOutcome.Status.TIMEOUT, -1, startTime, "cancelled at the deadline");
+            }
+            catch(EOFException e)
+            {
+                logger.LogWarning("[Client] Connection to " + this.vmId + " closed before the query completed.");
+                outcome = outcome(QueryOutcome.Status.ERROR, -1, startTime, "connection closed");
+            }
             catch(IOException i) 
             { 
                 logger.LogException("[Client] Client grep query faield.", i); 
+                outcome = outcome(QueryOutcome.Status.ERROR, -1, startTime, i.getMessage());
             } 
+        finishMerge();
+        if (ownSession) {
+            session.close();
+        }
         try
         { 
-            //closing streams and sockets
-            this.inputStream.close(); 
-            this.outputStream.close(); 
+            //closing the output file, the shared session stays open for the next queries
             //calculating time at which thread ends
             long endTime = System.currentTimeMillis();
             logger.LogInfo("thread runtime for  "+this.vmId+": " + (endTime - startTime));
-            this.clientLog.close();
-	        this.socket.close(); 
+            if (this.clientLog != null) {
+                this.clientLog.close();
+            }
+            this.inflater.end();
         } 
         catch(IOException i) 
         { 
-            logger.LogException("[Client] Exception in establishing socket:", i);
+            logger.LogException("[Client] Failed to close the output file:", i);
         } 
+        return outcome;
+    }
+
+    /**
+     * Waits before sending a request again to a busy server.
+     * 
+     * @param millis time to wait in milliseconds.
+     * @throws InterruptedIOException if the query is cancelled meanwhile.
+     */
+    private void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry " + this.vmId);
+        }
+    }
+
+    /**
+     * Tells the merger that no more lines come from this VM.
+     */
+    private void finishMerge() {
+        if (merger != null) {
+            merger.finish(this.vmId);
+        }
+    }
+
+    /**
+     * Creates the outcome of the query.
+     * 
+     * @param status status of the query.
+     * @param outputLines number of output lines, -1 if unknown.
+     * @param startTime time at which the query started.
+     * @param message error message, empty on success.
+     * @return outcome.
+     */
+    private QueryOutcome outcome(QueryOutcome.Status status, long outputLines, long startTime, String message) {
+        return new QueryOutcome(this.vmId, status, outputLines, System.currentTimeMillis() - startTime, message);
     }
-}
 
+    /**
+     * Codecs the client accepts for the results, based on the Compression setting.
+     * 
+     * @return bit mask of the accepted codecs.
+     */
+    private static byte acceptedCodecs() {
+        String compression = GrepConfig.getInstance().getString("Compression", "deflate");
+        return compression.equalsIgnoreCase("deflate") ? GrepProtocol.CODEC_DEFLATE : GrepProtocol.CODEC_NONE;
+    }
+
+    /**
+     * Prints the lines of a batch of a follow query and writes them to the output
+     * file, which is flushed so that it can be followed too.
+     * 
+     * @param prefix label of the lines.
+     * @param body batch body, at the first line.
+     * @param lineCount number of lines of the batch.
+     * @throws IOException if reading the batch or writing fails.
+     */
+    private void printLive(String prefix, DataInputStream body, int lineCount) throws IOException {
+        // the lines of a batch are printed together, between the batches of other VMs
+        synchronized (liveOutput) {
+            for (int i = 0; i < lineCount; i++) {
+                String line = prefix + GrepProtocol.readString(body);
+                liveOutput.println(line);
+                writeLine(line);
+            }
+            liveOutput.flush();
+        }
+        clientLog.flush();
+    }
+
+    /**
+     * Writes a line to the output file.
+     * 
+     * @param line line to be written.
+     * @throws IOException if writing fails.
+     */
+    private void writeLine(String line) throws IOException {
+        clientLog.write(line);
+        clientLog.write(System.getProperty("line.separator"));
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Class for the cluster wide limit of the lines of a --limit query.
+ *
+ * @author Prateeth Reddy Chagari (chagari2@illinois.edu)
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts the lines the client keeps from all the VMs. The first lines to arrive
+ * are kept, whichever VM sent them, and once the limit is reached every VM still
+ * searching is asked to stop, so that the servers do not scan their logs for
+ * lines the client would drop.
+ */
+public class ClusterLimit {
+    /**
+     * max number of lines kept from all the VMs.
+     */
+    private final long limit;
+
+    /**
+     * number of lines kept so far.
+     */
+    private long kept = 0;
+
+    /**
+     * requests still running on the servers.
+     */
+    private final List<GrepSession.Request> requests = new ArrayList<GrepSession.Request>();
+
+    /**
+     * @param limit max number of lines kept from all the VMs.
+     */
+    public ClusterLimit(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Registers a request running on a server, which is stopped at once if the
+     * limit was already reached.
+     *
+     * @param request request sent to a server.
+     */
+    public synchronized void register(GrepSession.Request request) {
+        if (kept >= limit) {
+            request.stop();
+        } else {
+            requests.add(request);
+        }
+    }
+
+    /**
+     * Forgets a request whose trailer arrived.
+     *
+     * @param request request sent to a server.
+     */
+    public synchronized void unregister(GrepSession.Request request) {
+        requests.remove(request);
+    }
+
+    /**
+     * Counts a line received from a VM. The line which reaches the limit stops the
+     * requests still running.
+     *
+     * @return true if the line is kept, false if the limit was already reached.
+     */
+    public synchronized boolean keep() {
+        if (kept >= limit) {
+            return false;
+        }
+        kept++;
+        if (kept == limit) {
+            for (GrepSession.Request request : requests) {
+                request.stop();
+            }
+            requests.clear();
+        }
+        return true;
+    }
+
+    /**
+     * @return number of lines kept so far.
+     */
+    public synchronized long getKept() {
+        return kept;
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Class to run a grep command on all the servers.
+ * 
+ * @author Prateeth Reddy Chagari (chagari2@illinois.edu)
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a query to every server at once and collects the outcome of each of them
+ * as it completes. Queries still running at the deadline are cancelled and reported
+ * as timed out, keeping the results they received so far. Interrupting the thread
+ * which waits for them stops the queries still running in the same way. A cancelled
+ * query is waited for, up to CANCEL_WAIT_MILLIS, so that it no longer writes to the
+ * shared summary or merger once run returns.
+ */
+public class ClusterQuery {
+    /**
+     * Runs the per-VM queries, on virtual threads when the Client_thread_mode
+     * setting is virtual and the JVM supports them.
+     */
+    private static final ExecutorService executor = TaskThreads.newExecutor("GrepQuery-",
+        "virtual".equalsIgnoreCase(GrepConfig.getInstance().getString("Client_thread_mode", "platform")));
+
+    /**
+     * Limits the number of servers queried at once, from the Client_max_concurrency setting.
+     */
+    private static final Semaphore queryPermits =
+        new Semaphore(Math.max(GrepConfig.getInstance().getInt("Client_max_concurrency", 64), 1));
+
+    /**
+     * How long the cancelled queries are waited for before run returns.
+     */
+    private static final long CANCEL_WAIT_MILLIS = 2000;
+
+    private ClusterQuery() {
+    }
+
+    /**
+     * Runs the queries and waits until all of them completed or the deadline passed.
+     * 
+     * @param clients query of each server.
+     * @param timeoutMillis deadline of the whole query in milliseconds, 0 for none.
+     * @param logger logger instance.
+     * @return outcome of each query, in the order of the clients.
+     */
+    public static List<QueryOutcome> run(List<Client> clients, long timeoutMillis, GrepLogger logger) {
+        long startTime = System.currentTimeMillis();
+        long deadline = startTime + timeoutMillis;
+        CompletionService<QueryOutcome> completionService = new ExecutorCompletionService<QueryOutcome>(executor);
+        Map<Future<QueryOutcome>, QueryOutcome> outcomes = new HashMap<Future<QueryOutcome>, QueryOutcome>();
+        Map<Future<QueryOutcome>, String> vmIds = new HashMap<Future<QueryOutcome>, String>();
+        Map<Future<QueryOutcome>, LimitedQuery> queries = new HashMap<Future<QueryOutcome>, LimitedQuery>();
+        List<Future<QueryOutcome>> futures = new ArrayList<Future<QueryOutcome>>();
+        for (Client client : clients) {
+            LimitedQuery query = new LimitedQuery(client.newQuery());
+            Future<QueryOutcome> future = completionService.submit(query);
+            futures.add(future);
+            vmIds.put(future, client.getVmId());
+            queries.put(future, query);
+        }
+
+        // takes the queries as they complete, so that the wait ends with the last of them
+        boolean stopped = false;
+        int pending = futures.size();
+        while (pending > 0) {
+            Future<QueryOutcome> future;
+            try {
+                if (timeoutMillis > 0) {
+                    future = completionService.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                } else {
+                    future = completionService.take();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopped = true;
+                break;
+            }
+            if (future == null) {
+                logger.LogWarning("[Client] Query deadline of " + timeoutMillis + " ms passed with " + pending
+                    + " servers pending.");
+                break;
+            }
+            outcomes.put(future, outcomeOf(future, vmIds.get(future)));
+            pending--;
+        }
+
+        List<QueryOutcome> results = new ArrayList<QueryOutcome>();
+        List<LimitedQuery> cancelled = new ArrayList<LimitedQuery>();
+        for (int i = 0; i < futures.size(); i++) {
+            Future<QueryOutcome> future = futures.get(i);
+            QueryOutcome outcome = outcomes.get(future);
+            if (outcome == null) {
+                future.cancel(true);
+                cancelled.add(queries.get(future));
+                outcome = stopped
+                    ? new QueryOutcome(vmIds.get(future), QueryOutcome.Status.STOPPED, -1,
+                        System.currentTimeMillis() - startTime, "stopped")
+                    : new QueryOutcome(vmIds.get(future), QueryOutcome.Status.TIMEOUT, -1,
+                        System.currentTimeMillis() - startTime, "no result before the deadline");
+            }
+            results.add(outcome);
+        }
+
+        // a cancelled query may still be writing its last lines to the shared sinks
+        long waitDeadline = System.currentTimeMillis() + CANCEL_WAIT_MILLIS;
+        for (LimitedQuery query : cancelled) {
+            if (!query.awaitEnd(waitDeadline)) {
+                logger.LogWarning("[Client] A cancelled query did not end within " + CANCEL_WAIT_MILLIS + " ms.");
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Gets the outcome of a completed query.
+     * 
+     * @param future completed query.
+     * @param vmId the associated vm log file id.
+     * @return its outcome.
+     */
+    private static QueryOutcome outcomeOf(Future<QueryOutcome> future, String vmId) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return new QueryOutcome(vmId, QueryOutcome.Status.ERROR, -1, 0, String.valueOf(e.getCause()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new QueryOutcome(vmId, QueryOutcome.Status.ERROR, -1, 0, "interrupted");
+        }
+    }
+
+    /**
+     * Query of a server which holds a permit of queryPermits while it runs, and which
+     * can be waited for once it was cancelled.
+     */
+    private static class LimitedQuery implements Callable<QueryOutcome> {
+        private final Callable<QueryOutcome> query;
+        private boolean started = false;
+        private boolean ended = false;
+
+        LimitedQuery(Callable<QueryOutcome> query) {
+            this.query = query;
+        }
+
+        @Override
+        public QueryOutcome call() throws Exception {
+            synchronized (this) {
+                started = true;
+            }
+            try {
+                queryPermits.acquire();
+                try {
+                    return query.call();
+                } finally {
+                    queryPermits.release();
+                }
+            } finally {
+                synchronized (this) {
+                    ended = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits until the query ended, if it started; a query cancelled before it
+         * started never runs.
+         * 
+         * @param deadline time in milliseconds after which to stop waiting.
+         * @return true if the query is not running.
+         */
+        synchronized boolean awaitEnd(long deadline) {
+            boolean interrupted = false;
+            long remaining;
+            while (started && !ended && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return !started || ended;
+        }
+    }
+}
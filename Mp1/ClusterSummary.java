@@ -0,0 +1,145 @@
+/**
+ * Class to combine the summaries and the group counts sent by the servers.
+ * 
+ * @author Prateeth Reddy Chagari (chagari2@illinois.edu)
+ */
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ClusterSummary {
+    /**
+     * summaries received from each VM, by VM log ID.
+     */
+    private final Map<String, List<FileSummary>> summaries = new TreeMap<String, List<FileSummary>>();
+
+    /**
+     * group counts added up over the VMs, null until a VM sends some.
+     */
+    private GroupCounts groups = null;
+
+    /**
+     * number of VMs which sent group counts.
+     */
+    private int groupVms = 0;
+
+    /**
+     * number of largest groups printed, negative for all of them.
+     */
+    private int top = -1;
+
+    /**
+     * Constructor for summary queries.
+     */
+    public ClusterSummary() {
+    }
+
+    /**
+     * Constructor for group-by queries.
+     * @param top number of largest groups printed, negative for all of them.
+     */
+    public ClusterSummary(int top) {
+        this.top = top;
+    }
+
+    /**
+     * Adds the summaries sent by one VM.
+     * @param vmId VM log ID.
+     * @param vmSummaries summaries of the files searched on the VM.
+     */
+    public synchronized void add(String vmId, List<FileSummary> vmSummaries) {
+        List<FileSummary> existing = summaries.get(vmId);
+        if (existing == null) {
+            existing = new ArrayList<FileSummary>();
+            summaries.put(vmId, existing);
+        }
+        existing.addAll(vmSummaries);
+    }
+
+    /**
+     * Adds the group counts sent by one VM.
+     * @param vmGroups counts of the selected lines by group on the VM.
+     */
+    public synchronized void addGroups(GroupCounts vmGroups) {
+        if (groups == null) {
+            groups = new GroupCounts();
+        }
+        groups.addAll(vmGroups);
+        groupVms++;
+    }
+
+    /**
+     * Gets the number of selected lines on one VM.
+     * @param vmId VM log ID.
+     * @return count of selected lines, -1 if the VM did not send a summary.
+     */
+    public synchronized long getSelectedLines(String vmId) {
+        List<FileSummary> vmSummaries = summaries.get(vmId);
+        if (vmSummaries == null) {
+            return -1;
+        }
+        long count = 0;
+        for (FileSummary summary : vmSummaries) {
+            count += summary.getSelectedLines();
+        }
+        return count;
+    }
+
+    /**
+     * @return count of selected lines over all the VMs.
+     */
+    public synchronized long getTotal() {
+        long total = 0;
+        for (String vmId : summaries.keySet()) {
+            total += getSelectedLines(vmId);
+        }
+        return total;
+    }
+
+    /**
+     * Prints the per file counts and the cluster wide total.
+     * @param out stream to print to.
+     */
+    public synchronized void print(PrintStream out) {
+        if (groups != null) {
+            printGroups(out);
+            return;
+        }
+        for (Map.Entry<String, List<FileSummary>> entry : summaries.entrySet()) {
+            for (FileSummary summary : entry.getValue()) {
+                out.println(entry.getKey() + ": " + summary);
+            }
+        }
+        out.println("Total matching lines from " + summaries.size() + " VMs: " + getTotal());
+    }
+
+    /**
+     * Prints the largest groups of the cluster, the lines of the other groups and
+     * how far the counts may be off when VMs left groups out.
+     * @param out stream to print to.
+     */
+    private void printGroups(PrintStream out) {
+        List<GroupCounts.Group> sorted = groups.sorted();
+        int printed = (top < 0) ? sorted.size() : Math.min(top, sorted.size());
+        long otherLines = groups.getOmittedLines();
+        for (int i = 0; i < sorted.size(); i++) {
+            if (i < printed) {
+                out.println(sorted.get(i));
+            } else {
+                otherLines += sorted.get(i).getCount();
+            }
+        }
+        if (otherLines > 0) {
+            out.println("Other groups: " + otherLines + " lines");
+        }
+        // a group left out by one VM may still be printed with the lines of the others
+        if (groups.getMissingBound() > 0 && groupVms > 1) {
+            out.println("Counts may be short by up to " + groups.getMissingBound()
+                + " lines of groups some VMs left out of their top " + top);
+        }
+        out.println("Total matching lines from " + groupVms + " VMs: " + groups.getTotal());
+    }
+}
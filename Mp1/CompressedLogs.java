@@ -0,0 +1,401 @@
+/**
+ * Reads compressed log files.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Rotated logs are often gzipped. A gzip file is told apart from a plain log by
+ * its magic bytes, whatever its name, and is read as a stream of its uncompressed
+ * text. A BGZF file, as written by bgzip, is a gzip file made of independent
+ * blocks of at most 64 KB of text whose compressed size is in their header, so
+ * its blocks are found without inflating them and are inflated in parallel.
+ */
+public class CompressedLogs
+{
+    /**
+     * Size of the fixed part of a gzip member header.
+     */
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * FEXTRA bit of the gzip header flags, set when the header has extra fields.
+     */
+    private static final int FLAG_EXTRA = 4;
+
+    private CompressedLogs()
+    {
+    }
+
+    /**
+     * @param file A file.
+     * @return true if the file is gzip compressed.
+     */
+    public static boolean isCompressed(File file)
+    {
+        byte[] header = readHeader(file);
+        return header.length >= 2 && (header[0] & 0xFF) == 0x1F && (header[1] & 0xFF) == 0x8B;
+    }
+
+    /**
+     * Opens the uncompressed text of a gzip file. BGZF blocks are inflated ahead of
+     * the reader on the pool.
+     *
+     * @param file Gzip file.
+     * @param pool Pool on which the blocks are inflated.
+     * @param parallelism Max number of groups of blocks inflated at once.
+     * @return Stream of the uncompressed text.
+     * @throws IOException if the file cannot be opened or is not gzip compressed.
+     */
+    public static InputStream open(File file, ExecutorService pool, int parallelism) throws IOException
+    {
+        if (blockSizeOf(readHeader(file), 0) > 0)
+        {
+            return new BlockGzipInputStream(file, pool, parallelism);
+        }
+        return new GZIPInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), 1 << 16);
+    }
+
+    /**
+     * @param file A file.
+     * @return First bytes of the file, enough for the header of a BGZF block, or
+     *         fewer if the file is shorter or cannot be read.
+     */
+    private static byte[] readHeader(File file)
+    {
+        byte[] header = new byte[HEADER_SIZE + 6];
+        int length = 0;
+        try (FileInputStream in = new FileInputStream(file))
+        {
+            int read;
+            while (length < header.length && (read = in.read(header, length, header.length - length)) > 0)
+            {
+                length += read;
+            }
+        }
+        catch (IOException e)
+        {
+            return new byte[0];
+        }
+
+        byte[] result = new byte[length];
+        System.arraycopy(header, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Reads the size of a BGZF block from the BC extra field of its header.
+     *
+     * @param bytes Bytes holding the header of the block.
+     * @param offset Offset of the block in the bytes.
+     * @return Size of the whole block, or -1 if the header is not the one of a BGZF block.
+     */
+    private static int blockSizeOf(byte[] bytes, int offset)
+    {
+        if (bytes.length - offset < HEADER_SIZE || (bytes[offset] & 0xFF) != 0x1F
+            || (bytes[offset + 1] & 0xFF) != 0x8B || bytes[offset + 2] != 8
+            || (bytes[offset + 3] & FLAG_EXTRA) == 0)
+        {
+            return -1;
+        }
+
+        int extraLength = uint16(bytes, offset + 10);
+        int position = offset + HEADER_SIZE;
+        int end = Math.min(position + extraLength, bytes.length);
+        while (position + 4 <= end)
+        {
+            int fieldLength = uint16(bytes, position + 2);
+            if (bytes[position] == 'B' && bytes[position + 1] == 'C' && fieldLength == 2 && position + 6 <= end)
+            {
+                return uint16(bytes, position + 4) + 1;
+            }
+            position += 4 + fieldLength;
+        }
+        return -1;
+    }
+
+    /**
+     * @return Little endian unsigned 16 bit value at the offset.
+     */
+    private static int uint16(byte[] bytes, int offset)
+    {
+        return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8);
+    }
+
+    /**
+     * @return Little endian 32 bit value at the offset.
+     */
+    private static int int32(byte[] bytes, int offset)
+    {
+        return uint16(bytes, offset) | (uint16(bytes, offset + 2) << 16);
+    }
+
+    /**
+     * Stream of the text of a BGZF file. The blocks are read in order and handed to
+     * the pool in groups; the text of each group is returned once it is inflated,
+     * while the next groups are inflated in the background.
+     */
+    private static class BlockGzipInputStream extends InputStream
+    {
+        /**
+         * Number of blocks inflated by one task, about 1 MB of text.
+         */
+        private static final int BLOCKS_PER_TASK = 16;
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ExecutorService pool;
+
+        /**
+         * Max number of groups being inflated at once.
+         */
+        private final int maxInFlight;
+
+        /**
+         * Offset of the next block to be read.
+         */
+        private long position = 0;
+
+        /**
+         * Groups being inflated, in file order.
+         */
+        private final Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+
+        /**
+         * Text of the group being read and the position in it.
+         */
+        private byte[] text = new byte[0];
+        private int textPosition = 0;
+
+        BlockGzipInputStream(File logFile, ExecutorService pool, int parallelism) throws IOException
+        {
+            this.file = new RandomAccessFile(logFile, "r");
+            this.channel = this.file.getChannel();
+            this.pool = pool;
+            this.maxInFlight = Math.max(parallelism, 1) * 2;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] single = new byte[1];
+            return (this.read(single, 0, 1) < 0) ? -1 : (single[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            if (length == 0)
+            {
+                return 0;
+            }
+
+            while (this.textPosition == this.text.length)
+            {
+                this.submitGroups();
+                if (this.inFlight.isEmpty())
+                {
+                    return -1;
+                }
+                this.text = this.await(this.inFlight.poll());
+                this.textPosition = 0;
+            }
+
+            int count = Math.min(length, this.text.length - this.textPosition);
+            System.arraycopy(this.text, this.textPosition, buffer, offset, count);
+            this.textPosition += count;
+            return count;
+        }
+
+        /**
+         * Reads the next groups of blocks and hands them to the pool, until enough
+         * are in flight or the file ends.
+         *
+         * @throws IOException if the file cannot be read or a block header is invalid.
+         */
+        private void submitGroups() throws IOException
+        {
+            long size = this.channel.size();
+            while (this.inFlight.size() < this.maxInFlight && this.position < size)
+            {
+                final List<byte[]> blocks = new ArrayList<byte[]>();
+                while (blocks.size() < BLOCKS_PER_TASK && this.position < size)
+                {
+                    blocks.add(this.readBlock());
+                }
+
+                this.inFlight.add(this.pool.submit(new Callable<byte[]>()
+                {
+                    @Override
+                    public byte[] call() throws IOException
+                    {
+                        return inflate(blocks);
+                    }
+                }));
+            }
+        }
+
+        /**
+         * Reads the next block of the file.
+         *
+         * @return Bytes of the whole block.
+         * @throws IOException if the file cannot be read or the block header is invalid.
+         */
+        private byte[] readBlock() throws IOException
+        {
+            byte[] header = this.read(this.position, HEADER_SIZE);
+            int extraLength = uint16(header, 10);
+            byte[] start = this.read(this.position, HEADER_SIZE + extraLength);
+            int blockSize = blockSizeOf(start, 0);
+            if (blockSize < HEADER_SIZE + extraLength + 8)
+            {
+                throw new IOException("Invalid BGZF block at offset " + this.position);
+            }
+
+            byte[] block = this.read(this.position, blockSize);
+            this.position += blockSize;
+            return block;
+        }
+
+        /**
+         * Reads a range of the file.
+         *
+         * @param offset Offset of the range.
+         * @param length Length of the range.
+         * @return Bytes of the range.
+         * @throws IOException if the file ends before the range.
+         */
+        private byte[] read(long offset, int length) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining())
+            {
+                if (this.channel.read(buffer, offset + buffer.position()) < 0)
+                {
+                    throw new IOException("Truncated BGZF block at offset " + offset);
+                }
+            }
+            return buffer.array();
+        }
+
+        /**
+         * Inflates a group of blocks and checks their CRC.
+         *
+         * @param blocks Bytes of the blocks.
+         * @return Text of the blocks.
+         * @throws IOException if a block is corrupt.
+         */
+        private static byte[] inflate(List<byte[]> blocks) throws IOException
+        {
+            int textLength = 0;
+            for (byte[] block : blocks)
+            {
+                textLength += int32(block, block.length - 4);
+            }
+
+            byte[] text = new byte[textLength];
+            int textOffset = 0;
+            Inflater inflater = new Inflater(true);
+            CRC32 crc = new CRC32();
+            try
+            {
+                for (byte[] block : blocks)
+                {
+                    int dataOffset = HEADER_SIZE + uint16(block, 10);
+                    int blockTextLength = int32(block, block.length - 4);
+                    inflater.reset();
+                    inflater.setInput(block, dataOffset, block.length - 8 - dataOffset);
+                    int inflated = 0;
+                    while (inflated < blockTextLength)
+                    {
+                        int count = inflater.inflate(text, textOffset + inflated, blockTextLength - inflated);
+                        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()
+                            || inflater.finished()))
+                        {
+                            throw new IOException("Truncated BGZF block data.");
+                        }
+                        inflated += count;
+                    }
+
+                    crc.reset();
+                    crc.update(text, textOffset, blockTextLength);
+                    if ((int) crc.getValue() != int32(block, block.length - 8))
+                    {
+                        throw new IOException("BGZF block CRC mismatch.");
+                    }
+                    textOffset += blockTextLength;
+                }
+            }
+            catch (DataFormatException e)
+            {
+                throw new IOException("Corrupt BGZF block: " + e.getMessage(), e);
+            }
+            finally
+            {
+                inflater.end();
+            }
+            return text;
+        }
+
+        /**
+         * Waits for the text of a group.
+         *
+         * @param group Group being inflated.
+         * @return Its text.
+         * @throws IOException if inflating failed or the wait was interrupted.
+         */
+        private byte[] await(Future<byte[]> group) throws IOException
+        {
+            try
+            {
+                return group.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while inflating a BGZF file.");
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof IOException)
+                {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Inflating a BGZF block failed.", e.getCause());
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            for (Future<byte[]> group : this.inFlight)
+            {
+                group.cancel(true);
+            }
+            this.inFlight.clear();
+            this.file.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Aggregates of a query over one log file.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Number of selected lines in a file and the byte offsets of the first and last
+ * of them. Servers send these instead of the lines for summary queries.
+ */
+public class FileSummary
+{
+    /**
+     * Name of the file.
+     */
+    private final String fileName;
+
+    /**
+     * Number of selected lines.
+     */
+    private final long selectedLines;
+
+    /**
+     * Byte offset of the first selected line, -1 if there is none.
+     */
+    private final long firstMatchOffset;
+
+    /**
+     * Byte offset of the last selected line, -1 if there is none.
+     */
+    private final long lastMatchOffset;
+
+    /**
+     * Constructor for the class FileSummary.
+     *
+     * @param fileName Name of the file.
+     * @param selectedLines Number of selected lines.
+     * @param firstMatchOffset Byte offset of the first selected line, -1 if there is none.
+     * @param lastMatchOffset Byte offset of the last selected line, -1 if there is none.
+     */
+    public FileSummary(String fileName, long selectedLines, long firstMatchOffset, long lastMatchOffset)
+    {
+        this.fileName = fileName;
+        this.selectedLines = selectedLines;
+        this.firstMatchOffset = firstMatchOffset;
+        this.lastMatchOffset = lastMatchOffset;
+    }
+
+    /**
+     * Writes the summary to a frame payload.
+     *
+     * @param out Payload stream.
+     * @throws IOException if writing fails.
+     */
+    public void write(DataOutputStream out) throws IOException
+    {
+        GrepProtocol.writeString(out, this.fileName);
+        out.writeLong(this.selectedLines);
+        out.writeLong(this.firstMatchOffset);
+        out.writeLong(this.lastMatchOffset);
+    }
+
+    /**
+     * Reads a summary written by write.
+     *
+     * @param in Payload stream.
+     * @return Summary read.
+     * @throws IOException if reading fails.
+     */
+    public static FileSummary read(DataInputStream in) throws IOException
+    {
+        return new FileSummary(GrepProtocol.readString(in), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    public String getFileName()
+    {
+        return this.fileName;
+    }
+
+    public long getSelectedLines()
+    {
+        return this.selectedLines;
+    }
+
+    public long getFirstMatchOffset()
+    {
+        return this.firstMatchOffset;
+    }
+
+    public long getLastMatchOffset()
+    {
+        return this.lastMatchOffset;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.fileName + " " + this.selectedLines
+            + " first_offset=" + this.firstMatchOffset + " last_offset=" + this.lastMatchOffset;
+    }
+}
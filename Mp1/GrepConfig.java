@@ -0,0 +1,127 @@
+/**
+ * Configuration shared by the grep server and client.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Reads the settings from the server_parameters.properties file. Settings that are
+ * missing or cannot be parsed take their default values.
+ */
+public class GrepConfig
+{
+    /**
+     * Name of the properties file.
+     */
+    public static final String PROPERTIES_FILE = "server_parameters.properties";
+
+    /**
+     * Singleton object of GrepConfig class.
+     */
+    private static GrepConfig config = null;
+
+    /**
+     * Loaded properties.
+     */
+    private final Properties properties = new Properties();
+
+    /**
+     * Logger instance.
+     */
+    private GrepLogger logger;
+
+    /**
+     * Private constructor of GrepConfig type class.
+     */
+    private GrepConfig()
+    {
+        logger = GrepLogger.getInstance();
+        try (InputStream input = new FileInputStream(PROPERTIES_FILE))
+        {
+            this.properties.load(input);
+        }
+        catch (Exception e)
+        {
+            logger.LogWarning("[Config] Could not read " + PROPERTIES_FILE + ". Using default settings.");
+        }
+    }
+
+    /**
+     * Returns the singleton object of GrepConfig class.
+     * @return GrepConfig class object.
+     */
+    public static synchronized GrepConfig getInstance()
+    {
+        if (config == null)
+        {
+            config = new GrepConfig();
+        }
+
+        return config;
+    }
+
+    /**
+     * Gets a string setting.
+     * @param key Name of the setting.
+     * @param defaultValue Value returned if the setting is missing.
+     * @return Value of the setting.
+     */
+    public String getString(String key, String defaultValue)
+    {
+        String value = this.properties.getProperty(key);
+        return (value == null || value.trim().isEmpty()) ? defaultValue : value.trim();
+    }
+
+    /**
+     * Gets an integer setting.
+     * @param key Name of the setting.
+     * @param defaultValue Value returned if the setting is missing or invalid.
+     * @return Value of the setting.
+     */
+    public int getInt(String key, int defaultValue)
+    {
+        return (int) this.getLong(key, defaultValue);
+    }
+
+    /**
+     * Gets a long setting.
+     * @param key Name of the setting.
+     * @param defaultValue Value returned if the setting is missing or invalid.
+     * @return Value of the setting.
+     */
+    public long getLong(String key, long defaultValue)
+    {
+        String value = this.getString(key, null);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+            logger.LogWarning("[Config] Setting " + key + " must be a number. Using default value "
+                + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gets a boolean setting.
+     * @param key Name of the setting.
+     * @param defaultValue Value returned if the setting is missing.
+     * @return Value of the setting.
+     */
+    public boolean getBoolean(String key, boolean defaultValue)
+    {
+        String value = this.getString(key, null);
+        return (value == null) ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
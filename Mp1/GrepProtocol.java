@@ -0,0 +1,479 @@
+/**
+ * Wire protocol shared by the grep server and client.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Framed binary protocol between the client and the servers.
+ *
+ * A connection starts with the client sending MAGIC and VERSION. The connection
+ * is a session which carries any number of requests: the client sends a REQUEST
+ * frame per query, with a request id of its choice, and may send more before the
+ * earlier ones complete. The server answers each request with any number of BATCH
+ * frames and one TRAILER frame, all tagged with the id of the request. Frames of
+ * different requests may be interleaved. The server closes a session once it has
+ * been idle for a while.
+ *
+ * Every frame is a type byte, the request id as an int, the payload length as an
+ * int and the payload. Strings are written as their UTF-8 length as an int
+ * followed by the UTF-8 bytes. A server takes request frames of up to
+ * MAX_REQUEST_BYTES, and no frame, string or inflated batch may be larger than
+ * MAX_FRAME_BYTES, so that a bogus length cannot make the reader allocate gigabytes.
+ *
+ * REQUEST : log file name, client input, codecs accepted by the client.
+ * BATCH   : codec, then the body (label, number of lines, lines). When the codec is
+ *           CODEC_DEFLATE the body is preceded by its length and deflated.
+ * TIMED_BATCH : like BATCH, but each line is preceded by the timestamp of its log
+ *           record in milliseconds. Sent instead of the batches for --ordered
+ *           queries, so that the client can merge the VMs by time.
+ * SUMMARY : number of files, then for each file its name, the number of selected
+ *           lines and the offsets of the first and last of them. Sent instead of
+ *           the batches for --summary queries.
+ * GROUPS  : number of groups, then for each group its key and number of lines,
+ *           then the number of groups left out by --top, their lines and the most
+ *           lines of one of them. Sent instead of the batches for --group-by queries.
+ * TRAILER : label, number of output lines, status, message. A STATUS_BUSY trailer,
+ *           sent when the run queue of the server is full, is followed by the delay
+ *           in milliseconds after which the client may send the request again.
+ * STOP    : sent by the client, empty. Asks the server to end the request early:
+ *           its search stops and the lines found so far are sent with the trailer.
+ *
+ * The server picks the codec of the batches from the codecs the client accepts.
+ */
+public class GrepProtocol
+{
+    /**
+     * First bytes sent by the client, "GREP" in ASCII.
+     */
+    public static final int MAGIC = 0x47524550;
+
+    /**
+     * Version of the protocol.
+     */
+    public static final byte VERSION = 4;
+
+    /**
+     * Frame types.
+     */
+    public static final byte FRAME_REQUEST = 1;
+    public static final byte FRAME_BATCH = 2;
+    public static final byte FRAME_TRAILER = 3;
+    public static final byte FRAME_SUMMARY = 4;
+    public static final byte FRAME_TIMED_BATCH = 5;
+    public static final byte FRAME_GROUPS = 6;
+    public static final byte FRAME_STOP = 7;
+
+    /**
+     * Codecs of the batch frames, also used as a bit mask of the accepted codecs.
+     */
+    public static final byte CODEC_NONE = 0;
+    public static final byte CODEC_DEFLATE = 1;
+
+    /**
+     * Status values of the trailer frame.
+     */
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    public static final byte STATUS_BUSY = 2;
+
+    /**
+     * Largest request frame payload accepted by a server.
+     */
+    public static final int MAX_REQUEST_BYTES = 1 << 20;
+
+    /**
+     * Largest frame payload, string or inflated batch body accepted by either side.
+     */
+    public static final int MAX_FRAME_BYTES = 1 << 28;
+
+    /**
+     * Writes the magic and version which start a connection.
+     *
+     * @param out Output stream of the socket.
+     * @throws IOException if writing fails.
+     */
+    public static void writeHandshake(DataOutputStream out) throws IOException
+    {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    /**
+     * Reads the magic and version which start a connection.
+     *
+     * @param in Input stream of the socket.
+     * @return Protocol version of the client.
+     * @throws ProtocolException if the client does not speak this protocol.
+     * @throws IOException if reading fails.
+     */
+    public static byte readHandshake(DataInputStream in) throws IOException
+    {
+        int magic = in.readInt();
+        if (magic != MAGIC)
+        {
+            throw new ProtocolException("Unexpected protocol magic " + Integer.toHexString(magic));
+        }
+
+        return in.readByte();
+    }
+
+    /**
+     * Writes a frame and flushes the stream. Frames written by different threads to
+     * the same stream are not interleaved.
+     *
+     * @param out Output stream of the socket.
+     * @param type Frame type.
+     * @param requestId Id of the request the frame belongs to.
+     * @param payload Payload of the frame.
+     * @throws IOException if writing fails.
+     */
+    public static void writeFrame(DataOutputStream out, byte type, int requestId, ByteArrayOutputStream payload)
+        throws IOException
+    {
+        synchronized (out)
+        {
+            out.writeByte(type);
+            out.writeInt(requestId);
+            out.writeInt(payload.size());
+            payload.writeTo(out);
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @param in Input stream of the socket.
+     * @return Frame read.
+     * @throws java.io.EOFException if the stream ends before a frame starts.
+     * @throws IOException if reading fails.
+     */
+    public static Frame readFrame(DataInputStream in) throws IOException
+    {
+        return readFrame(in, in.readByte());
+    }
+
+    /**
+     * Reads the rest of a frame whose type byte was already read.
+     *
+     * @param in Input stream of the socket.
+     * @param type Type byte of the frame.
+     * @return Frame read.
+     * @throws IOException if reading fails.
+     */
+    public static Frame readFrame(DataInputStream in, byte type) throws IOException
+    {
+        return readFrame(in, type, MAX_FRAME_BYTES);
+    }
+
+    /**
+     * Reads the rest of a frame whose type byte was already read, with a bound on
+     * its payload.
+     *
+     * @param in Input stream of the socket.
+     * @param type Type byte of the frame.
+     * @param maxLength Largest payload accepted, MAX_REQUEST_BYTES for the frames read by a server.
+     * @return Frame read.
+     * @throws ProtocolException if the payload length is negative or above maxLength.
+     * @throws IOException if reading fails.
+     */
+    public static Frame readFrame(DataInputStream in, byte type, int maxLength) throws IOException
+    {
+        int requestId = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > maxLength)
+        {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(type, requestId, payload);
+    }
+
+    /**
+     * Writes the REQUEST frame.
+     *
+     * @param out Output stream of the socket.
+     * @param requestId Id of the request.
+     * @param logFileName Log file to be searched.
+     * @param clientInput Command given by the client.
+     * @param acceptedCodecs Bit mask of the codecs the client accepts for the batches.
+     * @throws IOException if writing fails.
+     */
+    public static void writeRequest(DataOutputStream out, int requestId, String logFileName, String clientInput,
+        byte acceptedCodecs) throws IOException
+    {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadStream = new DataOutputStream(payload);
+        writeString(payloadStream, logFileName);
+        writeString(payloadStream, clientInput);
+        payloadStream.writeByte(acceptedCodecs);
+        writeFrame(out, FRAME_REQUEST, requestId, payload);
+    }
+
+    /**
+     * Writes the STOP frame.
+     *
+     * @param out Output stream of the socket.
+     * @param requestId Id of the request to be stopped.
+     * @throws IOException if writing fails.
+     */
+    public static void writeStop(DataOutputStream out, int requestId) throws IOException
+    {
+        writeFrame(out, FRAME_STOP, requestId, new ByteArrayOutputStream());
+    }
+
+    /**
+     * Opens the body of a BATCH or TIMED_BATCH frame, inflating it if it was compressed.
+     *
+     * @param frame BATCH or TIMED_BATCH frame.
+     * @param inflater Inflater to be used for compressed batches, reused across frames.
+     * @return Stream to read the label, the number of lines and the lines from.
+     * @throws IOException if the codec is unknown or the body is corrupt.
+     */
+    public static DataInputStream readBatchBody(Frame frame, Inflater inflater) throws IOException
+    {
+        DataInputStream payload = frame.payloadStream();
+        byte codec = payload.readByte();
+        if (codec == CODEC_NONE)
+        {
+            return payload;
+        }
+
+        if (codec != CODEC_DEFLATE)
+        {
+            throw new ProtocolException("Unknown batch codec " + codec);
+        }
+
+        int bodyLength = payload.readInt();
+        if (bodyLength < 0 || bodyLength > MAX_FRAME_BYTES)
+        {
+            throw new ProtocolException("Invalid batch length " + bodyLength);
+        }
+
+        byte[] body = new byte[bodyLength];
+        int compressedOffset = 1 + 4;
+        inflater.reset();
+        inflater.setInput(frame.payload, compressedOffset, frame.payload.length - compressedOffset);
+        try
+        {
+            int inflated = 0;
+            while (inflated < body.length && !inflater.finished())
+            {
+                int count = inflater.inflate(body, inflated, body.length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                inflated += count;
+            }
+
+            if (inflated != body.length)
+            {
+                throw new ProtocolException("Truncated compressed batch.");
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new ProtocolException("Corrupt compressed batch: " + e.getMessage());
+        }
+
+        return new DataInputStream(new ByteArrayInputStream(body));
+    }
+
+    /**
+     * Writes the TRAILER frame.
+     *
+     * @param out Output stream of the socket.
+     * @param requestId Id of the request.
+     * @param label Label of the output lines.
+     * @param lineCount Number of output lines sent.
+     * @param status Status of the request.
+     * @param message Error message, empty if the request succeeded.
+     * @throws IOException if writing fails.
+     */
+    public static void writeTrailer(DataOutputStream out, int requestId, String label, long lineCount, byte status,
+        String message)
+        throws IOException
+    {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadStream = new DataOutputStream(payload);
+        writeString(payloadStream, label);
+        payloadStream.writeLong(lineCount);
+        payloadStream.writeByte(status);
+        writeString(payloadStream, message);
+        writeFrame(out, FRAME_TRAILER, requestId, payload);
+    }
+
+    /**
+     * Writes the STATUS_BUSY TRAILER frame of a request which was not run.
+     *
+     * @param out Output stream of the socket.
+     * @param requestId Id of the request.
+     * @param retryMillis Delay in milliseconds after which the client may retry.
+     * @throws IOException if writing fails.
+     */
+    public static void writeBusy(DataOutputStream out, int requestId, long retryMillis) throws IOException
+    {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadStream = new DataOutputStream(payload);
+        writeString(payloadStream, "");
+        payloadStream.writeLong(0);
+        payloadStream.writeByte(STATUS_BUSY);
+        writeString(payloadStream, "Server busy, retry after " + retryMillis + " ms.");
+        payloadStream.writeLong(retryMillis);
+        writeFrame(out, FRAME_TRAILER, requestId, payload);
+    }
+
+    /**
+     * Writes the SUMMARY frame.
+     *
+     * @param out Output stream of the socket.
+     * @param requestId Id of the request.
+     * @param summaries Summaries of the searched files.
+     * @throws IOException if writing fails.
+     */
+    public static void writeSummary(DataOutputStream out, int requestId, List<FileSummary> summaries)
+        throws IOException
+    {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadStream = new DataOutputStream(payload);
+        payloadStream.writeInt(summaries.size());
+        for (FileSummary summary : summaries)
+        {
+            summary.write(payloadStream);
+        }
+        writeFrame(out, FRAME_SUMMARY, requestId, payload);
+    }
+
+    /**
+     * Reads the summaries of a SUMMARY frame.
+     *
+     * @param frame SUMMARY frame.
+     * @return Summaries of the searched files.
+     * @throws IOException if the payload is corrupt.
+     */
+    public static List<FileSummary> readSummary(Frame frame) throws IOException
+    {
+        DataInputStream payload = frame.payloadStream();
+        int count = payload.readInt();
+        List<FileSummary> summaries = new ArrayList<FileSummary>();
+        for (int i = 0; i < count; i++)
+        {
+            summaries.add(FileSummary.read(payload));
+        }
+
+        return summaries;
+    }
+
+    /**
+     * Writes the GROUPS frame.
+     *
+     * @param out Output stream of the socket.
+     * @param requestId Id of the request.
+     * @param groups Counts of the selected lines by group.
+     * @throws IOException if writing fails.
+     */
+    public static void writeGroups(DataOutputStream out, int requestId, GroupCounts groups) throws IOException
+    {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        groups.write(new DataOutputStream(payload));
+        writeFrame(out, FRAME_GROUPS, requestId, payload);
+    }
+
+    /**
+     * Reads the counts of a GROUPS frame.
+     *
+     * @param frame GROUPS frame.
+     * @return Counts of the selected lines by group.
+     * @throws IOException if the payload is corrupt.
+     */
+    public static GroupCounts readGroups(Frame frame) throws IOException
+    {
+        return GroupCounts.read(frame.payloadStream());
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes.
+     *
+     * @param out Stream to be written.
+     * @param value String to be written.
+     * @throws IOException if writing fails.
+     */
+    public static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by writeString.
+     *
+     * @param in Stream to be read.
+     * @return String read.
+     * @throws IOException if reading fails.
+     */
+    public static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES)
+        {
+            throw new ProtocolException("Invalid string length " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Frame read from a stream.
+     */
+    public static class Frame
+    {
+        /**
+         * Frame type.
+         */
+        public final byte type;
+
+        /**
+         * Id of the request the frame belongs to.
+         */
+        public final int requestId;
+
+        /**
+         * Payload of the frame.
+         */
+        private final byte[] payload;
+
+        Frame(byte type, int requestId, byte[] payload)
+        {
+            this.type = type;
+            this.requestId = requestId;
+            this.payload = payload;
+        }
+
+        /**
+         * @return Stream to read the payload from.
+         */
+        public DataInputStream payloadStream()
+        {
+            return new DataInputStream(new ByteArrayInputStream(this.payload));
+        }
+    }
+}
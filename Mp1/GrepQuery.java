@@ -0,0 +1,1293 @@
+/**
+ * Parsed form of a grep command sent by the client.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Holds the grep options and patterns of a client query. Supports the grep flags
+ * -E, -F, -i, -v, -c, -n, -m, -w and -e along with their long forms, and
+ * --summary which asks the servers for aggregates instead of the lines, and
+ * --ordered which asks for the timestamps of the lines so that the client can
+ * merge the VMs into one timeline, and --since and --until which only select the
+ * lines of the log records written in a time window, and --group-by which asks for
+ * the number of selected lines by the text of a capture group, optionally only for
+ * the --top largest groups, and --limit which stops all the VMs once the client got
+ * that many lines from them.
+ */
+public class GrepQuery
+{
+    /**
+     * Formats accepted for the times of --since and --until, besides the format of
+     * the log timestamps and milliseconds since the epoch. Times without a date are
+     * on the current day.
+     */
+    private static final String[] TIME_FORMATS = {
+        "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd'T'HH:mm", "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm", "yyyy-MM-dd",
+        "HH:mm:ss", "HH:mm"
+    };
+
+    /**
+     * Java equivalents of the word anchors \< and \>, with the word characters of -w.
+     */
+    private static final String WORD_START = "(?<![\\p{L}\\p{N}_])(?=[\\p{L}\\p{N}_])";
+    private static final String WORD_END = "(?<=[\\p{L}\\p{N}_])(?![\\p{L}\\p{N}_])";
+
+    /**
+     * Raw arguments of the query, quotes removed.
+     */
+    private final List<String> arguments;
+
+    /**
+     * Patterns to be searched for.
+     */
+    private final List<String> patterns = new ArrayList<String>();
+
+    /**
+     * -E : patterns are extended regular expressions.
+     */
+    private boolean extendedRegex = false;
+
+    /**
+     * -F : patterns are fixed strings.
+     */
+    private boolean fixedStrings = false;
+
+    /**
+     * -i : ignore case distinctions.
+     */
+    private boolean ignoreCase = false;
+
+    /**
+     * -v : select non-matching lines.
+     */
+    private boolean invertMatch = false;
+
+    /**
+     * -c : print only the count of selected lines.
+     */
+    private boolean countOnly = false;
+
+    /**
+     * -n : prefix each line with its line number.
+     */
+    private boolean lineNumbers = false;
+
+    /**
+     * -w : match only whole words.
+     */
+    private boolean wordRegex = false;
+
+    /**
+     * --summary : return only the count and offsets of the selected lines.
+     */
+    private boolean summary = false;
+
+    /**
+     * --ordered : send the timestamp of the log record of each selected line.
+     */
+    private boolean ordered = false;
+
+    /**
+     * -m NUM : stop after NUM selected lines. Negative means no limit.
+     */
+    private long maxCount = -1;
+
+    /**
+     * --limit NUM : stop after NUM selected lines over all the VMs. Negative means no limit.
+     */
+    private long limit = -1;
+
+    /**
+     * --since TIME and --until TIME : select only the lines of the log records
+     * written from since, inclusive, to until, exclusive. In milliseconds.
+     */
+    private long since = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+
+    /**
+     * --follow : keep watching the log and select the lines appended to it.
+     */
+    private boolean follow = false;
+
+    /**
+     * --group-by GROUP : count the selected lines by the text of the capture group,
+     * given by its number or name, instead of returning them. Null if not grouped.
+     */
+    private String groupBy = null;
+
+    /**
+     * --top NUM : only return the NUM largest groups. Negative means all of them.
+     */
+    private int top = -1;
+
+    /**
+     * Constructor for the class GrepQuery.
+     * @param arguments Tokenized arguments of the query.
+     * @throws IllegalArgumentException if an option is not supported or is malformed.
+     */
+    private GrepQuery(List<String> arguments) throws IllegalArgumentException
+    {
+        this.arguments = Collections.unmodifiableList(arguments);
+        this.parseArguments();
+    }
+
+    /**
+     * Parses the grep command given by the client (without the leading "grep").
+     *
+     * @param clientInput Grep command given by the client.
+     * @return Parsed query.
+     * @throws IllegalArgumentException if the query cannot be parsed.
+     */
+    public static GrepQuery parse(String clientInput) throws IllegalArgumentException
+    {
+        return new GrepQuery(tokenize(clientInput));
+    }
+
+    /**
+     * Splits the client input on white spaces. Text in single or double quotes is
+     * kept as one token and the quotes are removed.
+     *
+     * @param clientInput Grep command given by the client.
+     * @return List of tokens.
+     * @throws IllegalArgumentException if a quote is not closed.
+     */
+    public static List<String> tokenize(String clientInput) throws IllegalArgumentException
+    {
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder token = new StringBuilder();
+        boolean inToken = false;
+        char quote = 0;
+
+        for (int i = 0; i < clientInput.length(); i++)
+        {
+            char c = clientInput.charAt(i);
+            if (quote != 0)
+            {
+                if (c == quote)
+                {
+                    quote = 0;
+                }
+                else if (c == '\\' && quote == '"' && i + 1 < clientInput.length()
+                    && (clientInput.charAt(i + 1) == '"' || clientInput.charAt(i + 1) == '\\'))
+                {
+                    token.append(clientInput.charAt(++i));
+                }
+                else
+                {
+                    token.append(c);
+                }
+            }
+            else if (c == '"' || c == '\'')
+            {
+                quote = c;
+                inToken = true;
+            }
+            else if (Character.isWhitespace(c))
+            {
+                if (inToken)
+                {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                    inToken = false;
+                }
+            }
+            else
+            {
+                token.append(c);
+                inToken = true;
+            }
+        }
+
+        if (quote != 0)
+        {
+            throw new IllegalArgumentException("Unterminated quote in query: " + clientInput);
+        }
+
+        if (inToken)
+        {
+            tokens.add(token.toString());
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Parses the options and patterns out of the arguments.
+     *
+     * @throws IllegalArgumentException if an option is not supported or is malformed.
+     */
+    private void parseArguments() throws IllegalArgumentException
+    {
+        List<String> operands = new ArrayList<String>();
+        boolean explicitPattern = false;
+        boolean endOfOptions = false;
+
+        for (int i = 0; i < this.arguments.size(); i++)
+        {
+            String argument = this.arguments.get(i);
+
+            if (endOfOptions || !argument.startsWith("-") || argument.equals("-"))
+            {
+                operands.add(argument);
+            }
+            else if (argument.equals("--"))
+            {
+                endOfOptions = true;
+            }
+            else if (argument.startsWith("--"))
+            {
+                String name = argument;
+                String value = null;
+                int equals = argument.indexOf('=');
+                if (equals > 0)
+                {
+                    name = argument.substring(0, equals);
+                    value = argument.substring(equals + 1);
+                }
+
+                if (name.equals("--regexp") || name.equals("--max-count") || name.equals("--since")
+                    || name.equals("--until") || name.equals("--group-by") || name.equals("--top")
+                    || name.equals("--limit"))
+                {
+                    if (value == null)
+                    {
+                        value = requireValue(name, ++i);
+                    }
+
+                    if (name.equals("--regexp"))
+                    {
+                        this.patterns.add(value);
+                        explicitPattern = true;
+                    }
+                    else if (name.equals("--max-count"))
+                    {
+                        this.maxCount = parseCount(name, value);
+                    }
+                    else if (name.equals("--since"))
+                    {
+                        this.since = parseTime(name, value);
+                    }
+                    else if (name.equals("--group-by"))
+                    {
+                        this.groupBy = parseGroup(value);
+                    }
+                    else if (name.equals("--top"))
+                    {
+                        this.top = parseTop(value);
+                    }
+                    else if (name.equals("--limit"))
+                    {
+                        this.limit = parseCount(name, value);
+                    }
+                    else
+                    {
+                        this.until = parseTime(name, value);
+                    }
+                }
+                else
+                {
+                    this.setLongOption(name);
+                }
+            }
+            else
+            {
+                // Short options may be combined, as in "-in" or "-m5".
+                for (int j = 1; j < argument.length(); j++)
+                {
+                    char option = argument.charAt(j);
+                    if (option == 'e' || option == 'm')
+                    {
+                        String value = (j + 1 < argument.length())
+                            ? argument.substring(j + 1)
+                            : requireValue("-" + option, ++i);
+
+                        if (option == 'e')
+                        {
+                            this.patterns.add(value);
+                            explicitPattern = true;
+                        }
+                        else
+                        {
+                            this.maxCount = parseCount("-m", value);
+                        }
+                        break;
+                    }
+
+                    this.setShortOption(option);
+                }
+            }
+        }
+
+        if (!explicitPattern)
+        {
+            if (operands.isEmpty())
+            {
+                throw new IllegalArgumentException("No pattern given in query.");
+            }
+
+            // The query never names files, so unquoted words such as in
+            // "frequentpattern hello123" are taken as one pattern.
+            StringBuilder pattern = new StringBuilder();
+            for (String operand : operands)
+            {
+                pattern.append(pattern.length() > 0 ? " " : "").append(operand);
+            }
+            this.patterns.add(pattern.toString());
+        }
+        else if (!operands.isEmpty())
+        {
+            throw new IllegalArgumentException("Unexpected arguments in query: " + operands);
+        }
+
+        // A followed log never ends, so there is no final count and no time order to wait for.
+        if (this.follow && (this.countOnly || this.summary || this.ordered || this.hasTimeRange()))
+        {
+            throw new IllegalArgumentException("--follow cannot be combined with -c, --summary, --ordered, "
+                + "--since or --until.");
+        }
+
+        // The groups replace the lines, and inverted lines have no capture to group by.
+        if (this.groupBy != null
+            && (this.countOnly || this.invertMatch || this.summary || this.ordered || this.follow))
+        {
+            throw new IllegalArgumentException("--group-by cannot be combined with -c, -v, --summary, --ordered "
+                + "or --follow.");
+        }
+        if (this.top >= 0 && this.groupBy == null)
+        {
+            throw new IllegalArgumentException("--top requires --group-by.");
+        }
+
+        // The client keeps the first lines to arrive, which it cannot do with counts,
+        // groups or lines merged by time.
+        if (this.limit >= 0
+            && (this.countOnly || this.summary || this.groupBy != null || this.ordered || this.follow))
+        {
+            throw new IllegalArgumentException("--limit cannot be combined with -c, --summary, --group-by, "
+                + "--ordered or --follow.");
+        }
+    }
+
+    /**
+     * Returns the argument at the given position, which is the value of an option.
+     *
+     * @param option Option whose value is read.
+     * @param index Position of the value in the arguments.
+     * @return Value of the option.
+     * @throws IllegalArgumentException if the value is missing.
+     */
+    private String requireValue(String option, int index) throws IllegalArgumentException
+    {
+        if (index >= this.arguments.size())
+        {
+            throw new IllegalArgumentException("Option " + option + " requires an argument.");
+        }
+
+        return this.arguments.get(index);
+    }
+
+    /**
+     * Parses the value of --group-by option.
+     *
+     * @param value Value of the option.
+     * @return Number or name of the capture group.
+     * @throws IllegalArgumentException if the value is neither a group number nor a group name.
+     */
+    private static String parseGroup(String value) throws IllegalArgumentException
+    {
+        if (!value.matches("[0-9]{1,9}|[a-zA-Z][a-zA-Z0-9]*"))
+        {
+            throw new IllegalArgumentException("Invalid capture group for --group-by: " + value);
+        }
+
+        return value;
+    }
+
+    /**
+     * Parses the value of --top option.
+     *
+     * @param value Value of the option.
+     * @return Number of groups.
+     * @throws IllegalArgumentException if the value is not a positive number.
+     */
+    private static int parseTop(String value) throws IllegalArgumentException
+    {
+        try
+        {
+            int top = Integer.parseInt(value);
+            if (top > 0)
+            {
+                return top;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("Invalid number of groups for --top: " + value);
+    }
+
+    /**
+     * Parses the numeric value of the -m, --limit, --since or --until option.
+     *
+     * @param option Option whose value is parsed, for the error message.
+     * @param value Value of the option.
+     * @return Number.
+     * @throws IllegalArgumentException if the value is not a number.
+     */
+    private static long parseCount(String option, String value) throws IllegalArgumentException
+    {
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+        }
+    }
+
+    /**
+     * Parses the value of the --since or --until option.
+     *
+     * @param option Option whose value is parsed.
+     * @param value Value of the option.
+     * @return Time in milliseconds.
+     * @throws IllegalArgumentException if the value is not a time.
+     */
+    private static long parseTime(String option, String value) throws IllegalArgumentException
+    {
+        if (value.matches("[0-9]+"))
+        {
+            return parseCount(option, value);
+        }
+
+        List<SimpleDateFormat> formats = new ArrayList<SimpleDateFormat>();
+        formats.add(RecordTimestamps.createFormat());
+        for (String pattern : TIME_FORMATS)
+        {
+            SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+            format.setLenient(false);
+            formats.add(format);
+        }
+
+        for (SimpleDateFormat format : formats)
+        {
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(value, position);
+            if (date == null || position.getIndex() != value.length())
+            {
+                continue;
+            }
+
+            if (format.toPattern().contains("y"))
+            {
+                return date.getTime();
+            }
+
+            Calendar time = Calendar.getInstance();
+            time.setTime(date);
+            Calendar today = Calendar.getInstance();
+            today.set(Calendar.HOUR_OF_DAY, time.get(Calendar.HOUR_OF_DAY));
+            today.set(Calendar.MINUTE, time.get(Calendar.MINUTE));
+            today.set(Calendar.SECOND, time.get(Calendar.SECOND));
+            today.set(Calendar.MILLISECOND, 0);
+            return today.getTimeInMillis();
+        }
+
+        throw new IllegalArgumentException("Invalid time for " + option + ": " + value);
+    }
+
+    /**
+     * Sets a single character option.
+     *
+     * @param option Option character.
+     * @throws IllegalArgumentException if the option is not supported.
+     */
+    private void setShortOption(char option) throws IllegalArgumentException
+    {
+        switch (option)
+        {
+            case 'E': this.extendedRegex = true; this.fixedStrings = false; break;
+            case 'F': this.fixedStrings = true; this.extendedRegex = false; break;
+            case 'G': this.fixedStrings = false; this.extendedRegex = false; break;
+            case 'i': this.ignoreCase = true; break;
+            case 'v': this.invertMatch = true; break;
+            case 'c': this.countOnly = true; break;
+            case 'n': this.lineNumbers = true; break;
+            case 'w': this.wordRegex = true; break;
+            default:
+                throw new IllegalArgumentException("Unsupported grep option: -" + option);
+        }
+    }
+
+    /**
+     * Sets a long option.
+     *
+     * @param option Long option name.
+     * @throws IllegalArgumentException if the option is not supported.
+     */
+    private void setLongOption(String option) throws IllegalArgumentException
+    {
+        switch (option)
+        {
+            case "--extended-regexp": this.setShortOption('E'); break;
+            case "--fixed-strings": this.setShortOption('F'); break;
+            case "--basic-regexp": this.setShortOption('G'); break;
+            case "--ignore-case": this.setShortOption('i'); break;
+            case "--invert-match": this.setShortOption('v'); break;
+            case "--count": this.setShortOption('c'); break;
+            case "--line-number": this.setShortOption('n'); break;
+            case "--word-regexp": this.setShortOption('w'); break;
+            case "--summary": this.summary = true; break;
+            case "--ordered": this.ordered = true; break;
+            case "--follow": this.follow = true; break;
+            default:
+                throw new IllegalArgumentException("Unsupported grep option: " + option);
+        }
+    }
+
+    /**
+     * Compiles the patterns of the query into a single Java regex.
+     *
+     * @return Compiled pattern.
+     * @throws java.util.regex.PatternSyntaxException if a pattern is not a valid regex.
+     */
+    public Pattern compile()
+    {
+        StringBuilder regex = new StringBuilder();
+        for (String pattern : this.patterns)
+        {
+            if (regex.length() > 0)
+            {
+                regex.append('|');
+            }
+
+            String javaRegex;
+            if (this.fixedStrings)
+            {
+                javaRegex = Pattern.quote(pattern);
+            }
+            else if (this.extendedRegex)
+            {
+                javaRegex = extendedToJavaRegex(pattern);
+            }
+            else
+            {
+                javaRegex = basicToJavaRegex(pattern);
+            }
+
+            if (this.wordRegex)
+            {
+                javaRegex = "(?<![\\p{L}\\p{N}_])(?:" + javaRegex + ")(?![\\p{L}\\p{N}_])";
+            }
+
+            regex.append("(?:").append(javaRegex).append(')');
+        }
+
+        int flags = this.ignoreCase ? (Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE) : 0;
+        return Pattern.compile(regex.toString(), flags);
+    }
+
+    /**
+     * Converts a POSIX extended regular expression to a Java regex. The syntaxes
+     * only differ in the word anchors \< and \>, which Java takes for literals.
+     *
+     * @param pattern Extended regular expression.
+     * @return Equivalent Java regex.
+     */
+    static String extendedToJavaRegex(String pattern)
+    {
+        if (pattern.indexOf("\\<") < 0 && pattern.indexOf("\\>") < 0)
+        {
+            return pattern;
+        }
+
+        StringBuilder regex = new StringBuilder();
+        boolean inBracket = false;
+        for (int i = 0; i < pattern.length(); i++)
+        {
+            char c = pattern.charAt(i);
+            if (inBracket)
+            {
+                // A ']' right after the opening '[' or '[^' is a literal.
+                if (c == ']' && pattern.charAt(i - 1) != '['
+                    && !(pattern.charAt(i - 1) == '^' && pattern.charAt(i - 2) == '['))
+                {
+                    inBracket = false;
+                }
+                regex.append(c);
+            }
+            else if (c == '\\' && i + 1 < pattern.length())
+            {
+                char next = pattern.charAt(++i);
+                if (next == '<')
+                {
+                    regex.append(WORD_START);
+                }
+                else if (next == '>')
+                {
+                    regex.append(WORD_END);
+                }
+                else
+                {
+                    regex.append(c).append(next);
+                }
+            }
+            else
+            {
+                inBracket = c == '[';
+                regex.append(c);
+            }
+        }
+
+        return regex.toString();
+    }
+
+    /**
+     * Converts a POSIX basic regular expression to a Java regex. In a basic regex
+     * the characters ?, +, {, }, |, ( and ) are literals unless they are escaped,
+     * and \< and \> anchor the start and end of a word.
+     *
+     * @param pattern Basic regular expression.
+     * @return Equivalent Java regex.
+     */
+    static String basicToJavaRegex(String pattern)
+    {
+        StringBuilder regex = new StringBuilder();
+        boolean inBracket = false;
+
+        for (int i = 0; i < pattern.length(); i++)
+        {
+            char c = pattern.charAt(i);
+            if (inBracket)
+            {
+                // Bracket expressions are the same in both syntaxes except '[' and '\'.
+                if (c == ']')
+                {
+                    // A ']' right after the opening '[' or '[^' is a literal.
+                    boolean literal = pattern.charAt(i - 1) == '['
+                        || (pattern.charAt(i - 1) == '^' && pattern.charAt(i - 2) == '[');
+                    if (literal)
+                    {
+                        regex.append('\\');
+                    }
+                    else
+                    {
+                        inBracket = false;
+                    }
+                }
+                else if (c == '[' && i + 1 < pattern.length() && ":=.".indexOf(pattern.charAt(i + 1)) >= 0)
+                {
+                    int close = pattern.indexOf(pattern.charAt(i + 1) + "]", i + 2);
+                    if (close > 0)
+                    {
+                        regex.append(posixClass(pattern.substring(i + 2, close)));
+                        i = close + 1;
+                        continue;
+                    }
+                }
+                else if (c == '[' || c == '\\' || c == '&')
+                {
+                    regex.append('\\');
+                }
+                regex.append(c);
+            }
+            else if (c == '\\' && i + 1 < pattern.length())
+            {
+                char next = pattern.charAt(++i);
+                if ("?+{}|()".indexOf(next) >= 0)
+                {
+                    regex.append(next);
+                }
+                else if (next == '<')
+                {
+                    regex.append(WORD_START);
+                }
+                else if (next == '>')
+                {
+                    regex.append(WORD_END);
+                }
+                else
+                {
+                    regex.append('\\').append(next);
+                }
+            }
+            else if ("?+{}|()".indexOf(c) >= 0)
+            {
+                regex.append('\\').append(c);
+            }
+            else if (c == '*' && (i == 0 || pattern.charAt(i - 1) == '^' && i == 1))
+            {
+                // A leading '*' is a literal in basic regex.
+                regex.append("\\*");
+            }
+            else
+            {
+                if (c == '[')
+                {
+                    inBracket = true;
+                }
+                regex.append(c);
+            }
+        }
+
+        return regex.toString();
+    }
+
+    /**
+     * Maps a POSIX character class name to its Java equivalent.
+     *
+     * @param name Class name, e.g. "alpha".
+     * @return Java character class.
+     */
+    private static String posixClass(String name)
+    {
+        switch (name)
+        {
+            case "alpha": return "\\p{Alpha}";
+            case "digit": return "\\p{Digit}";
+            case "alnum": return "\\p{Alnum}";
+            case "upper": return "\\p{Upper}";
+            case "lower": return "\\p{Lower}";
+            case "space": return "\\s";
+            case "blank": return "\\p{Blank}";
+            case "punct": return "\\p{Punct}";
+            case "print": return "\\p{Print}";
+            case "graph": return "\\p{Graph}";
+            case "cntrl": return "\\p{Cntrl}";
+            case "xdigit": return "\\p{XDigit}";
+            default:
+                throw new IllegalArgumentException("Unsupported character class: [:" + name + ":]");
+        }
+    }
+
+    /**
+     * Gets the fixed string the query searches for, if it has one.
+     *
+     * @return The pattern if the query has a single pattern without any regex
+     *         special characters, otherwise null.
+     */
+    public String getLiteral()
+    {
+        if (this.patterns.size() != 1)
+        {
+            return null;
+        }
+
+        String pattern = this.patterns.get(0);
+        if (this.fixedStrings)
+        {
+            return pattern;
+        }
+
+        String specialCharacters = this.extendedRegex ? ".[]*^$\\+?(){}|" : ".[]*^$\\";
+        for (int i = 0; i < pattern.length(); i++)
+        {
+            if (specialCharacters.indexOf(pattern.charAt(i)) >= 0)
+            {
+                return null;
+            }
+        }
+
+        return pattern;
+    }
+
+    /**
+     * Gets the strings which every line selected by the query contains, so that an
+     * index can rule out the parts of a file which lack them. The strings are only
+     * taken from the parts of a pattern which every match must contain; a pattern
+     * which is not understood gives none.
+     *
+     * @return For each pattern the strings of at least 3 characters a line matching
+     *         it contains, or null if the query selects non-matching lines or some
+     *         pattern gives no such string.
+     */
+    public List<List<String>> getRequiredLiterals()
+    {
+        if (this.invertMatch)
+        {
+            return null;
+        }
+
+        List<List<String>> requiredLiterals = new ArrayList<List<String>>();
+        for (String pattern : this.patterns)
+        {
+            List<String> literals;
+            if (this.fixedStrings)
+            {
+                literals = Collections.singletonList(pattern);
+            }
+            else
+            {
+                literals = requiredLiterals(this.extendedRegex ? extendedToJavaRegex(pattern)
+                    : basicToJavaRegex(pattern));
+            }
+
+            List<String> usable = new ArrayList<String>();
+            for (String literal : literals)
+            {
+                if (!this.ignoreCase)
+                {
+                    if (literal.length() >= 3)
+                    {
+                        usable.add(literal);
+                    }
+                }
+                else if (isAscii(literal))
+                {
+                    // The index only folds ASCII letters, while k, s and i also match
+                    // the Kelvin sign, the long s and the dotted and dotless i.
+                    for (String part : literal.split("[kKsSiI]"))
+                    {
+                        if (part.length() >= 3)
+                        {
+                            usable.add(part);
+                        }
+                    }
+                }
+            }
+
+            if (usable.isEmpty())
+            {
+                return null;
+            }
+            requiredLiterals.add(usable);
+        }
+
+        return requiredLiterals;
+    }
+
+    /**
+     * Collects the runs of literal characters which every match of a Java regex
+     * contains. Groups, character classes and escapes other than escaped
+     * punctuation end a run. A character followed by ?, * or {} is dropped, as it
+     * may not occur. Regexes with a top level alternation, embedded flags or
+     * quoting give no runs.
+     *
+     * @param regex Java regex.
+     * @return Literal runs, possibly empty.
+     */
+    static List<String> requiredLiterals(String regex)
+    {
+        List<String> literals = new ArrayList<String>();
+        StringBuilder run = new StringBuilder();
+
+        for (int i = 0; i < regex.length(); i++)
+        {
+            char c = regex.charAt(i);
+            switch (c)
+            {
+                case '\\':
+                    if (i + 1 >= regex.length())
+                    {
+                        return Collections.emptyList();
+                    }
+                    char next = regex.charAt(++i);
+                    if (Character.isLetterOrDigit(next))
+                    {
+                        // Classes, anchors and other escapes. Quoting, octal, hex and
+                        // back references are not followed.
+                        if ("dDsSwWbBAzZGhHvV".indexOf(next) < 0)
+                        {
+                            return Collections.emptyList();
+                        }
+                        addLiteral(literals, run);
+                    }
+                    else
+                    {
+                        run.append(next);
+                    }
+                    break;
+
+                case '[':
+                    addLiteral(literals, run);
+                    i = endOfClass(regex, i);
+                    if (i < 0)
+                    {
+                        return Collections.emptyList();
+                    }
+                    break;
+
+                case '(':
+                    if (i + 1 < regex.length() && regex.charAt(i + 1) == '?'
+                        && (i + 2 >= regex.length() || ":=!<".indexOf(regex.charAt(i + 2)) < 0))
+                    {
+                        // Embedded flags may change how the rest of the regex matches.
+                        return Collections.emptyList();
+                    }
+                    addLiteral(literals, run);
+                    i = endOfGroup(regex, i);
+                    if (i < 0)
+                    {
+                        return Collections.emptyList();
+                    }
+                    break;
+
+                case '|':
+                    return Collections.emptyList();
+
+                case '?':
+                case '*':
+                case '{':
+                    if (run.length() > 0)
+                    {
+                        run.setLength(run.length() - 1);
+                    }
+                    addLiteral(literals, run);
+                    if (c == '{')
+                    {
+                        i = regex.indexOf('}', i);
+                        if (i < 0)
+                        {
+                            return Collections.emptyList();
+                        }
+                    }
+                    i = skipQuantifierSuffix(regex, i);
+                    break;
+
+                case '+':
+                    addLiteral(literals, run);
+                    i = skipQuantifierSuffix(regex, i);
+                    break;
+
+                case '.':
+                case '^':
+                case '$':
+                    addLiteral(literals, run);
+                    break;
+
+                default:
+                    run.append(c);
+                    break;
+            }
+        }
+
+        addLiteral(literals, run);
+        return literals;
+    }
+
+    /**
+     * Moves a literal run to the list and clears it.
+     */
+    private static void addLiteral(List<String> literals, StringBuilder run)
+    {
+        if (run.length() > 0)
+        {
+            literals.add(run.toString());
+            run.setLength(0);
+        }
+    }
+
+    /**
+     * @return Index of the ']' closing the character class opened at start, or -1.
+     */
+    private static int endOfClass(String regex, int start)
+    {
+        int depth = 0;
+        for (int i = start; i < regex.length(); i++)
+        {
+            char c = regex.charAt(i);
+            if (c == '\\')
+            {
+                i++;
+            }
+            else if (c == '[')
+            {
+                depth++;
+            }
+            else if (c == ']' && --depth == 0)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return Index of the ')' closing the group opened at start, or -1.
+     */
+    private static int endOfGroup(String regex, int start)
+    {
+        int depth = 0;
+        for (int i = start; i < regex.length(); i++)
+        {
+            char c = regex.charAt(i);
+            if (c == '\\')
+            {
+                i++;
+            }
+            else if (c == '[')
+            {
+                i = endOfClass(regex, i);
+                if (i < 0)
+                {
+                    return -1;
+                }
+            }
+            else if (c == '(')
+            {
+                depth++;
+            }
+            else if (c == ')' && --depth == 0)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return Index of the lazy or possessive marker after the quantifier at i, or i.
+     */
+    private static int skipQuantifierSuffix(String regex, int i)
+    {
+        if (i + 1 < regex.length() && (regex.charAt(i + 1) == '?' || regex.charAt(i + 1) == '+'))
+        {
+            return i + 1;
+        }
+
+        return i;
+    }
+
+    private static boolean isAscii(String value)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            if (value.charAt(i) > 0x7F)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Formats a selected line as grep would print it.
+     *
+     * @param lineNumber Line number of the line, starting from 1.
+     * @param line Selected line.
+     * @return Output line.
+     */
+    public String formatLine(long lineNumber, String line)
+    {
+        return this.lineNumbers ? lineNumber + ":" + line : line;
+    }
+
+    /**
+     * @return Arguments of the query as given by the client.
+     */
+    public List<String> getArguments()
+    {
+        return this.arguments;
+    }
+
+    /**
+     * Builds the arguments for an external grep process. Each pattern is passed
+     * with -e so that it reaches grep as one argument.
+     *
+     * @return Arguments of the query, without the file name.
+     */
+    public List<String> toGrepArguments()
+    {
+        List<String> grepArguments = new ArrayList<String>();
+        if (this.extendedRegex) grepArguments.add("-E");
+        if (this.fixedStrings) grepArguments.add("-F");
+        if (this.ignoreCase) grepArguments.add("-i");
+        if (this.invertMatch) grepArguments.add("-v");
+        if (this.countOnly) grepArguments.add("-c");
+        if (this.lineNumbers) grepArguments.add("-n");
+        if (this.wordRegex) grepArguments.add("-w");
+        if (this.getMaxCount() >= 0)
+        {
+            grepArguments.add("-m");
+            grepArguments.add(Long.toString(this.getMaxCount()));
+        }
+
+        for (String pattern : this.patterns)
+        {
+            grepArguments.add("-e");
+            grepArguments.add(pattern);
+        }
+
+        return grepArguments;
+    }
+
+    /**
+     * Gets the canonical form of the query, in which the options are in a fixed order
+     * and written one way. Queries with the same canonical form give the same output.
+     *
+     * @return Canonical form of the query.
+     */
+    public String getNormalizedForm()
+    {
+        StringBuilder normalized = new StringBuilder();
+        for (String argument : this.toGrepArguments())
+        {
+            normalized.append(argument).append('\0');
+        }
+        if (this.summary) normalized.append("--summary").append('\0');
+        if (this.ordered) normalized.append("--ordered").append('\0');
+        if (this.since != Long.MIN_VALUE) normalized.append("--since=").append(this.since).append('\0');
+        if (this.until != Long.MAX_VALUE) normalized.append("--until=").append(this.until).append('\0');
+        if (this.follow) normalized.append("--follow").append('\0');
+        if (this.groupBy != null) normalized.append("--group-by=").append(this.groupBy).append('\0');
+        if (this.top >= 0) normalized.append("--top=").append(this.top).append('\0');
+        if (this.limit >= 0) normalized.append("--limit=").append(this.limit).append('\0');
+
+        return normalized.toString();
+    }
+
+    /**
+     * @return Patterns of the query.
+     */
+    public List<String> getPatterns()
+    {
+        return Collections.unmodifiableList(this.patterns);
+    }
+
+    public boolean isExtendedRegex()
+    {
+        return this.extendedRegex;
+    }
+
+    public boolean isFixedStrings()
+    {
+        return this.fixedStrings;
+    }
+
+    public boolean isIgnoreCase()
+    {
+        return this.ignoreCase;
+    }
+
+    public boolean isInvertMatch()
+    {
+        return this.invertMatch;
+    }
+
+    public boolean isCountOnly()
+    {
+        return this.countOnly;
+    }
+
+    public boolean isLineNumbers()
+    {
+        return this.lineNumbers;
+    }
+
+    public boolean isWordRegex()
+    {
+        return this.wordRegex;
+    }
+
+    public boolean isSummary()
+    {
+        return this.summary;
+    }
+
+    public boolean isOrdered()
+    {
+        return this.ordered;
+    }
+
+    /**
+     * @return true if the selected lines themselves are needed, false when the
+     *         query only asks for counts.
+     */
+    public boolean needsLines()
+    {
+        return !this.countOnly && !this.summary && this.groupBy == null;
+    }
+
+    /**
+     * @return true if the query only selects the lines of a time window.
+     */
+    public boolean hasTimeRange()
+    {
+        return this.since != Long.MIN_VALUE || this.until != Long.MAX_VALUE;
+    }
+
+    /**
+     * @return Start of the time window in milliseconds, inclusive.
+     */
+    public long getSince()
+    {
+        return this.since;
+    }
+
+    /**
+     * @return End of the time window in milliseconds, exclusive.
+     */
+    public long getUntil()
+    {
+        return this.until;
+    }
+
+    /**
+     * @return true if the query selects the lines appended to the log from now on.
+     */
+    public boolean isFollow()
+    {
+        return this.follow;
+    }
+
+    /**
+     * @return true if the query counts the selected lines by capture group.
+     */
+    public boolean isGroupBy()
+    {
+        return this.groupBy != null;
+    }
+
+    /**
+     * @return Number or name of the capture group the lines are counted by, null if not grouped.
+     */
+    public String getGroupBy()
+    {
+        return this.groupBy;
+    }
+
+    /**
+     * @return Number of largest groups returned, negative for all of them.
+     */
+    public int getTop()
+    {
+        return this.top;
+    }
+
+    /**
+     * @return Max number of selected lines of a file, negative if there is no limit.
+     *         A VM never needs to send more lines than the --limit of the cluster.
+     */
+    public long getMaxCount()
+    {
+        if (this.limit >= 0 && (this.maxCount < 0 || this.limit < this.maxCount))
+        {
+            return this.limit;
+        }
+        return this.maxCount;
+    }
+
+    /**
+     * @return Max number of lines the client keeps over all the VMs, negative if there is no limit.
+     */
+    public long getLimit()
+    {
+        return this.limit;
+    }
+}
@@ -0,0 +1,959 @@
+/**
+ * This class serves a single grep request of a client session.
+ * 
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the grep query of one REQUEST frame and sends its results, tagged with the
+ * request id, on the output stream of the session.
+ */
+public class GrepQueryTask implements Runnable
+{
+    /**
+     * Search engine setting value to run the queries inside the server.
+     */
+    private static final String SEARCH_ENGINE_BUILTIN = "builtin";
+
+    /**
+     * Search engine setting value to run the queries with an external grep process.
+     */
+    private static final String SEARCH_ENGINE_PROCESS = "process";
+
+    /**
+     * Searches the files of the multi-file requests, a few files of a request at a time.
+     */
+    private static final ExecutorService FILE_SCANNERS = TaskThreads.newExecutor("GrepFile-",
+        ServerHandler.isVirtualMode());
+
+    /**
+     * Timer which stops the requests still running after Max_query_runtime_ms.
+     */
+    private static final ScheduledExecutorService DEADLINE_TIMER =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "QueryDeadlineTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * Output stream of the session, shared with the other requests.
+     */
+    private final DataOutputStream socketOutputStream;
+
+    /**
+     * REQUEST frame sent by the client.
+     */
+    private final GrepProtocol.Frame requestFrame;
+
+    /**
+     * Flow control of the output, null if writes to the stream block by themselves.
+     */
+    private final WriteThrottle throttle;
+
+    /**
+     * Set when the session of the request ended, which stops it.
+     */
+    private boolean cancelled = false;
+
+    /**
+     * Set when the client asked to stop the request, as it has all the lines it needs.
+     */
+    private boolean stopped = false;
+
+    /**
+     * Set when the request ran for longer than Max_query_runtime_ms.
+     */
+    private boolean expired = false;
+
+    /**
+     * Searchers of the request, stopped along with it. Guarded by the task.
+     */
+    private final List<GrepSearcher> searchers = new ArrayList<GrepSearcher>();
+
+    /**
+     * Grep process of the request while it runs, destroyed when the request is
+     * stopped. Guarded by the task.
+     */
+    private Process process = null;
+
+    /**
+     * Counts by group of a group-by request, added up over its files.
+     */
+    private final GroupCounts groupCounts = new GroupCounts();
+
+    /**
+     * Logger instance.
+     */
+    private GrepLogger logger;
+
+    /**
+     * Constructor for the class GrepQueryTask.
+     * @param socketOutputStream Output stream of the session.
+     * @param requestFrame REQUEST frame sent by the client.
+     */
+    public GrepQueryTask(DataOutputStream socketOutputStream, GrepProtocol.Frame requestFrame)
+    {
+        this(socketOutputStream, requestFrame, null);
+    }
+
+    /**
+     * Constructor for the class GrepQueryTask, for output streams which queue the frames.
+     * @param socketOutputStream Output stream of the session.
+     * @param requestFrame REQUEST frame sent by the client.
+     * @param throttle Flow control of the output, waited on after each output line.
+     */
+    public GrepQueryTask(DataOutputStream socketOutputStream, GrepProtocol.Frame requestFrame,
+        WriteThrottle throttle)
+    {
+        this.socketOutputStream = socketOutputStream;
+        this.requestFrame = requestFrame;
+        this.throttle = throttle;
+        logger = GrepLogger.getInstance();
+    }
+
+    /**
+     * Serves the request.
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        /**
+         * Server serves a request as follows:
+         * 1) Reads the log file name and the grep command from the REQUEST frame.
+         * 2) Runs the grep query on the log file, with the built-in search engine or with
+         *    the grep process of the machine based on the Search_engine setting. A list
+         *    or glob of log files is searched with the built-in engine, several files
+         *    at once, and the lines of each file are labelled with it.
+         * 3) Sends the output lines back to the client in BATCH frames, or only a SUMMARY
+         *    frame for summary queries, or a GROUPS frame with the groups of all the
+         *    files for group-by queries, followed by a TRAILER frame with the number of
+         *    output lines and the status. Follow queries send the lines appended to the
+         *    log until the session ends, and only then the TRAILER frame.
+         * 4) Stops the search when the session ends, when the client sends a STOP frame
+         *    or after Max_query_runtime_ms. A request which ran out of time ends with a
+         *    failed TRAILER frame, after the lines found so far.
+         */
+        ResultBatchWriter resultWriter = null;
+        ScheduledFuture<?> deadline = null;
+        try 
+        {
+            // Clients sending the log file name and the command line.
+            DataInputStream request = this.requestFrame.payloadStream();
+            String vmLogFileName = GrepProtocol.readString(request);
+            String line = GrepProtocol.readString(request);
+            byte acceptedCodecs = request.readByte();
+            logger.LogInfo("[Server] Request " + this.requestFrame.requestId + " for " + vmLogFileName);
+
+            GrepQuery query = null;
+            String parseError = null;
+            try
+            {
+                query = GrepQuery.parse(line);
+            }
+            catch (IllegalArgumentException e)
+            {
+                parseError = e.getMessage();
+            }
+
+            // Ordered queries send the timestamp of each line.
+            boolean timed = query != null && query.isOrdered() && query.needsLines();
+            resultWriter = new ResultBatchWriter(this.socketOutputStream, this.requestFrame.requestId,
+                vmLogFileName, ResultBatchWriter.negotiateCodec(acceptedCodecs), timed);
+            if (parseError != null)
+            {
+                resultWriter.fail(vmLogFileName + " " + parseError);
+                return;
+            }
+
+            boolean singleFile = LogFiles.isSingleFile(vmLogFileName);
+            List<File> logFiles;
+            try
+            {
+                logFiles = singleFile ? Collections.singletonList(new File(vmLogFileName))
+                    : LogFiles.expand(vmLogFileName);
+            }
+            catch (IllegalArgumentException e)
+            {
+                resultWriter.fail(vmLogFileName + " " + e.getMessage());
+                return;
+            }
+
+            File logFile = logFiles.isEmpty() ? null : logFiles.get(0);
+            if (logFile == null || !logFile.exists())
+            {
+                resultWriter.fail(vmLogFileName + " Please check file name.");
+                return;
+            }
+            if (!singleFile && query.isFollow())
+            {
+                resultWriter.fail(vmLogFileName + " --follow takes a single log file.");
+                return;
+            }
+            boolean compressed = singleFile && CompressedLogs.isCompressed(logFile);
+            if (compressed && query.isFollow())
+            {
+                resultWriter.fail(vmLogFileName + " --follow cannot follow a compressed log.");
+                return;
+            }
+
+            // Follow requests run until their session ends.
+            long maxRuntimeMillis = GrepConfig.getInstance().getLong("Max_query_runtime_ms", 300000);
+            if (maxRuntimeMillis > 0 && !query.isFollow())
+            {
+                deadline = DEADLINE_TIMER.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        expire();
+                    }
+                }, maxRuntimeMillis, TimeUnit.MILLISECONDS);
+            }
+
+            // Summaries, timestamps, time windows, groups and followed logs need the offsets
+            // or the captures which only the built-in engine reports, and only it reads
+            // compressed logs.
+            if (!singleFile)
+            {
+                this.runMultiFile(resultWriter, logFiles, query);
+            }
+            else if (query.isFollow())
+            {
+                this.follow(resultWriter, logFile, query);
+            }
+            else if (!compressed && !usesBuiltinEngine(query))
+            {
+                this.runGrepProcess(resultWriter, logFile, query);
+            }
+            else
+            {
+                this.runBuiltinGrep(resultWriter, logFile, query);
+            }
+
+            if (this.hasExpired())
+            {
+                resultWriter.fail(vmLogFileName + " Query stopped after the max runtime of " + maxRuntimeMillis
+                    + " ms.");
+                return;
+            }
+
+            if (query.isGroupBy())
+            {
+                // More groups than the client prints narrow the error of adding up the VMs.
+                long top = (query.getTop() < 0) ? -1
+                    : query.getTop() * (long) Math.max(GrepConfig.getInstance().getInt("Group_top_factor", 4), 1);
+                resultWriter.writeGroups(this.groupCounts.top((int) Math.min(top, Integer.MAX_VALUE)));
+            }
+
+            // Sends the matched lines count along with the last batch.
+            resultWriter.finish();
+            logger.LogInfo("[Server] Request " + this.requestFrame.requestId + " has been served: "
+                + resultWriter.getStatistics());
+        } 
+        catch (Exception ex) 
+        {
+            if (this.isCancelled())
+            {
+                // The client is gone, there is nobody to report the end to.
+                logger.LogInfo("[Server] Request " + this.requestFrame.requestId + " ended with its session: "
+                    + ex.getMessage());
+                return;
+            }
+            logger.LogException("[Server] Client requested operation failed with:", ex);
+            this.sendFailure(resultWriter, ex);
+        }
+        finally
+        {
+            if (deadline != null)
+            {
+                deadline.cancel(false);
+            }
+            if (resultWriter != null)
+            {
+                // A request which ended without its trailer still stops its flush timer.
+                resultWriter.release();
+            }
+        }
+    }
+
+    /**
+     * Runs the query on several log files with the built-in search engine. Up to
+     * Scan_parallelism files are searched at once, each worker taking the next file
+     * once it is done with one, largest files first so that the request takes about
+     * as long as its largest file. Every file gets its own writer, labelled with the
+     * file, and its own count or summary. Ordered queries search the files one at a
+     * time, oldest first, so that their lines stay in time order.
+     *
+     * @param resultWriter Writer of the request.
+     * @param logFiles Log files to be searched.
+     * @param query Query to be run.
+     * @throws IOException if reading a file or writing to the socket fails.
+     */
+    private void runMultiFile(final ResultBatchWriter resultWriter, List<File> logFiles, final GrepQuery query)
+        throws IOException
+    {
+        List<File> sorted = new ArrayList<File>(logFiles);
+        int workers;
+        if (query.isOrdered())
+        {
+            Collections.sort(sorted, new Comparator<File>()
+            {
+                @Override
+                public int compare(File first, File second)
+                {
+                    return Long.compare(first.lastModified(), second.lastModified());
+                }
+            });
+            workers = 1;
+        }
+        else
+        {
+            Collections.sort(sorted, new Comparator<File>()
+            {
+                @Override
+                public int compare(File first, File second)
+                {
+                    return Long.compare(second.length(), first.length());
+                }
+            });
+            workers = Math.min(Math.max(GrepConfig.getInstance().getInt("Scan_parallelism",
+                Runtime.getRuntime().availableProcessors()), 1), sorted.size());
+        }
+        logger.LogInfo("[Server] Request " + this.requestFrame.requestId + " searches " + sorted.size()
+            + " files with " + workers + " workers.");
+
+        final Queue<File> pending = new ConcurrentLinkedQueue<File>(sorted);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < workers; i++)
+        {
+            futures.add(FILE_SCANNERS.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws IOException
+                {
+                    File logFile;
+                    while (!isStopped() && (logFile = pending.poll()) != null)
+                    {
+                        ResultBatchWriter fileWriter = resultWriter.newFileWriter(logFile.getPath());
+                        try
+                        {
+                            runBuiltinGrep(fileWriter, logFile, query);
+                            fileWriter.finishFile();
+                        }
+                        catch (IOException | RuntimeException e)
+                        {
+                            // The other workers stop after their current file.
+                            pending.clear();
+                            throw e;
+                        }
+                        finally
+                        {
+                            fileWriter.release();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        IOException failure = null;
+        for (Future<Void> future : futures)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                pending.clear();
+                throw new InterruptedIOException("Interrupted while searching " + logFiles.size() + " files.");
+            }
+            catch (ExecutionException e)
+            {
+                if (failure == null)
+                {
+                    failure = (e.getCause() instanceof IOException)
+                        ? (IOException) e.getCause()
+                        : new IOException("Search failed: " + e.getCause(), e.getCause());
+                }
+            }
+        }
+
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * Runs the query with the built-in search engine and sends the output lines, or the
+     * summary of the file for summary queries, to the client. The output of a query
+     * which was already run on the same version of the file comes from the result cache.
+     *
+     * @param resultWriter Writer of the output lines.
+     * @param logFile Log file to be searched.
+     * @param query Query to be run.
+     * @throws IOException if reading the file or writing to the socket fails.
+     */
+    private void runBuiltinGrep(final ResultBatchWriter resultWriter, File logFile, final GrepQuery query)
+        throws IOException
+    {
+        if (query.isGroupBy())
+        {
+            this.countGroups(logFile, query);
+            return;
+        }
+
+        boolean timed = query.isOrdered() && query.needsLines();
+        ResultCache cache = ResultCache.getInstance();
+        String cacheKey = cache.keyOf(logFile, query);
+        ResultCache.FileVersion version = (cacheKey == null) ? null : ResultCache.FileVersion.of(logFile);
+        ResultCache.Result cached = (version == null) ? null : cache.get(cacheKey, version);
+
+        FileSummary summary;
+        if (cached != null)
+        {
+            logger.LogInfo("[Server] Serving request " + this.requestFrame.requestId + " from the result cache.");
+            summary = this.replay(resultWriter, cached);
+        }
+        else
+        {
+            ResultCache.Result recorded = (version == null) ? null : new ResultCache.Result(version, timed);
+            summary = this.search(resultWriter, logFile, query, recorded);
+
+            // The result is only cached if the file did not change during the search,
+            // which was not stopped early.
+            if (recorded != null && recorded.getSize() <= cache.getMaxResultSize() && !this.isStopped()
+                && version.equals(ResultCache.FileVersion.of(logFile)))
+            {
+                recorded.setSummary(summary);
+                cache.put(cacheKey, recorded);
+            }
+        }
+
+        if (query.isSummary())
+        {
+            resultWriter.writeSummary(Collections.singletonList(new FileSummary(resultWriter.getLabel(),
+                summary.getSelectedLines(), summary.getFirstMatchOffset(), summary.getLastMatchOffset())));
+        }
+        else if (query.isCountOnly())
+        {
+            resultWriter.writeLine(Long.toString(summary.getSelectedLines()));
+        }
+    }
+
+    /**
+     * Counts the selected lines of the log file by group into the groups of the
+     * request, which are sent once all its files are searched. The groups are not
+     * cached, as the result cache holds the output of a single file.
+     *
+     * @param logFile Log file to be searched.
+     * @param query Group-by query to be run.
+     * @throws IOException if reading the file fails.
+     */
+    private void countGroups(File logFile, GrepQuery query) throws IOException
+    {
+        logger.LogInfo("[Server] Server executing the built-in search with arguments: " + query.getArguments());
+        GrepSearcher searcher = this.newSearcher(query);
+        searcher.search(logFile, null);
+        synchronized (this.groupCounts)
+        {
+            this.groupCounts.addAll(searcher.getGroups());
+        }
+    }
+
+    /**
+     * Searches the log file and sends the selected lines to the client.
+     *
+     * @param resultWriter Writer of the output lines.
+     * @param logFile Log file to be searched.
+     * @param query Query to be run.
+     * @param recorded Records the output lines for the result cache, null if the
+     *        result is not cached. Recording stops once the result is too large.
+     * @return Summary of the file.
+     * @throws IOException if reading the file or writing to the socket fails.
+     */
+    private FileSummary search(final ResultBatchWriter resultWriter, File logFile, final GrepQuery query,
+        final ResultCache.Result recorded) throws IOException
+    {
+        logger.LogInfo("[Server] Server executing the built-in search with arguments: " + query.getArguments());
+        final GrepSearcher searcher = this.newSearcher(query);
+        final long maxRecordedSize = ResultCache.getInstance().getMaxResultSize();
+        final boolean timed = query.isOrdered() && query.needsLines();
+        // The searcher follows the records of a compressed log, which cannot be read backwards.
+        final RecordTimestamps timestamps =
+            (timed && !CompressedLogs.isCompressed(logFile)) ? new RecordTimestamps(logFile) : null;
+        try
+        {
+            FileSummary summary = searcher.search(logFile, new MatchListener()
+            {
+                @Override
+                public void onMatch(long lineNumber, long byteOffset, String line) throws IOException
+                {
+                    String outputLine = query.formatLine(lineNumber, line);
+                    long timestamp = 0;
+                    if (timed)
+                    {
+                        timestamp = (timestamps != null)
+                            ? timestamps.timestampOf(byteOffset, line)
+                            : Math.max(searcher.getRecordTimestamp(), 0);
+                        resultWriter.writeLine(timestamp, outputLine);
+                    }
+                    else
+                    {
+                        resultWriter.writeLine(outputLine);
+                    }
+
+                    if (recorded != null && recorded.getSize() <= maxRecordedSize)
+                    {
+                        recorded.addLine(timestamp, outputLine);
+                    }
+                    awaitWritable();
+                }
+            });
+            if (searcher.getIndexedBlocks() > 0)
+            {
+                logger.LogInfo("[Server] The index of " + logFile + " skipped " + searcher.getSkippedBlocks()
+                    + " of " + searcher.getIndexedBlocks() + " blocks.");
+            }
+            return summary;
+        }
+        finally
+        {
+            if (timestamps != null)
+            {
+                timestamps.close();
+            }
+        }
+    }
+
+    /**
+     * Follows the log file like tail -f: every Follow_poll_ms the whole lines appended
+     * to it are searched and their selected lines sent at once, until the request is
+     * cancelled or the max count is reached. The lines written before the request are
+     * not searched. An empty batch is sent after Follow_keepalive_ms without output.
+     *
+     * @param resultWriter Writer of the output lines.
+     * @param logFile Log file to be followed.
+     * @param query Query to be run.
+     * @throws IOException if reading the file or writing to the socket fails.
+     */
+    private void follow(final ResultBatchWriter resultWriter, File logFile, final GrepQuery query)
+        throws IOException
+    {
+        GrepConfig config = GrepConfig.getInstance();
+        long pollMillis = Math.max(config.getLong("Follow_poll_ms", 100), 10);
+        long keepAliveMillis = config.getLong("Follow_keepalive_ms", 30000);
+        GrepSearcher searcher = this.newSearcher(query);
+        GrepSearcher.FollowCursor cursor = searcher.startFollowing(logFile);
+        logger.LogInfo("[Server] Request " + this.requestFrame.requestId + " follows " + logFile + " from offset "
+            + cursor.getOffset());
+
+        MatchListener listener = new MatchListener()
+        {
+            @Override
+            public void onMatch(long lineNumber, long byteOffset, String line) throws IOException
+            {
+                resultWriter.writeLine(query.formatLine(lineNumber, line));
+                awaitWritable();
+            }
+        };
+
+        long lastSentMillis = System.currentTimeMillis();
+        while (!this.isStopped())
+        {
+            long linesWritten = resultWriter.getLinesWritten();
+            searcher.searchAppended(logFile, cursor, listener);
+            if (resultWriter.getLinesWritten() > linesWritten)
+            {
+                resultWriter.flush();
+                lastSentMillis = System.currentTimeMillis();
+            }
+            else if (keepAliveMillis > 0 && System.currentTimeMillis() - lastSentMillis >= keepAliveMillis)
+            {
+                resultWriter.sendKeepAlive();
+                lastSentMillis = System.currentTimeMillis();
+            }
+            this.awaitWritable();
+
+            if (query.getMaxCount() >= 0 && cursor.getSelectedLines() >= query.getMaxCount())
+            {
+                break;
+            }
+            this.pause(pollMillis);
+        }
+        logger.LogInfo("[Server] Request " + this.requestFrame.requestId + " stopped following " + logFile);
+    }
+
+    /**
+     * Stops the request as its session ended: a followed log is no longer followed
+     * and the searches end early.
+     */
+    public synchronized void cancel()
+    {
+        this.cancelled = true;
+        this.stopSearches();
+    }
+
+    /**
+     * Stops the request as the client has all the lines it needs. The searches end
+     * early, and the lines found so far are sent with the trailer.
+     */
+    public synchronized void stop()
+    {
+        this.stopped = true;
+        this.stopSearches();
+    }
+
+    /**
+     * Stops the request as it ran for longer than Max_query_runtime_ms. The lines
+     * found so far are sent, and the trailer reports the failure.
+     */
+    private synchronized void expire()
+    {
+        logger.LogWarning("[Server] Request " + this.requestFrame.requestId
+            + " exceeded Max_query_runtime_ms, stopping it.");
+        this.expired = true;
+        this.stopSearches();
+    }
+
+    /**
+     * Stops the searchers and the grep process of the request and wakes up a paused
+     * follow request.
+     */
+    private synchronized void stopSearches()
+    {
+        for (GrepSearcher searcher : this.searchers)
+        {
+            searcher.stop();
+        }
+        if (this.process != null)
+        {
+            logger.LogInfo("[Server] Destroying the grep process of request " + this.requestFrame.requestId);
+            this.process.destroy();
+        }
+        this.notifyAll();
+    }
+
+    /**
+     * @return true if the request was stopped, cancelled or ran out of time, which
+     *         ends its searches early.
+     */
+    private synchronized boolean isStopped()
+    {
+        return this.stopped || this.cancelled || this.expired;
+    }
+
+    /**
+     * @return true if the request ran for longer than Max_query_runtime_ms.
+     */
+    private synchronized boolean hasExpired()
+    {
+        return this.expired;
+    }
+
+    /**
+     * Creates a searcher which is stopped along with the request.
+     *
+     * @param query Query to be run.
+     * @return Searcher of the query, already stopped if the request was.
+     */
+    private synchronized GrepSearcher newSearcher(GrepQuery query)
+    {
+        GrepSearcher searcher = new GrepSearcher(query);
+        if (this.isStopped())
+        {
+            searcher.stop();
+        }
+        this.searchers.add(searcher);
+        return searcher;
+    }
+
+    /**
+     * @return Id of the request, by which the client refers to it.
+     */
+    public int getRequestId()
+    {
+        return this.requestFrame.requestId;
+    }
+
+    /**
+     * @return true if the request was cancelled.
+     */
+    private synchronized boolean isCancelled()
+    {
+        return this.cancelled;
+    }
+
+    /**
+     * Waits until the next poll of a followed log, or until the request is cancelled.
+     *
+     * @param millis Time to wait in milliseconds.
+     */
+    private synchronized void pause(long millis)
+    {
+        if (this.isStopped())
+        {
+            return;
+        }
+
+        try
+        {
+            this.wait(millis);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            this.cancelled = true;
+        }
+    }
+
+    /**
+     * Tells the lane of the request in the query scheduler. A query on a single log
+     * whose index in memory leaves at most half of the blocks to scan, as
+     * GrepSearcher decides, runs ahead of the full scans: the time index for a
+     * query with a time window, the literal index for the strings of the pattern.
+     * Every other request, including an invalid one, waits with the full scans.
+     *
+     * @return Lane of the request.
+     */
+    public QueryScheduler.Lane getLane()
+    {
+        try
+        {
+            DataInputStream request = this.requestFrame.payloadStream();
+            String vmLogFileName = GrepProtocol.readString(request);
+            GrepQuery query = GrepQuery.parse(GrepProtocol.readString(request));
+            if (!LogFiles.isSingleFile(vmLogFileName))
+            {
+                return QueryScheduler.Lane.SCAN;
+            }
+
+            File logFile = new File(vmLogFileName);
+            LogIndexes indexes = LogIndexes.getInstance();
+            if (query.hasTimeRange())
+            {
+                TimeIndex index = indexes.peekTimeIndex(logFile);
+                return (index != null
+                    && index.candidateRanges(query.getSince(), query.getUntil()).size() * 2 <= index.getBlockCount())
+                    ? QueryScheduler.Lane.FAST
+                    : QueryScheduler.Lane.SCAN;
+            }
+
+            List<List<String>> requiredLiterals = query.getRequiredLiterals();
+            if (requiredLiterals == null || !usesBuiltinEngine(query))
+            {
+                return QueryScheduler.Lane.SCAN;
+            }
+            LiteralIndex index = indexes.peek(logFile);
+            return (index != null && index.candidateBlocks(requiredLiterals).size() * 2 <= index.getBlockCount())
+                ? QueryScheduler.Lane.FAST
+                : QueryScheduler.Lane.SCAN;
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            return QueryScheduler.Lane.SCAN;
+        }
+    }
+
+    /**
+     * Tells whether a query on a plain log file runs on the built-in engine. Summaries,
+     * timestamps, time windows and groups need the offsets or the captures which only
+     * the built-in engine reports.
+     *
+     * @param query Query.
+     * @return true unless the Search_engine setting picks the grep process for the query.
+     */
+    private static boolean usesBuiltinEngine(GrepQuery query)
+    {
+        return query.isSummary() || query.isOrdered() || query.hasTimeRange() || query.isGroupBy()
+            || !SEARCH_ENGINE_PROCESS.equalsIgnoreCase(
+                GrepConfig.getInstance().getString("Search_engine", SEARCH_ENGINE_BUILTIN));
+    }
+
+    /**
+     * Tells whether the request follows a log, which keeps it running until its
+     * session ends.
+     *
+     * @return true if the request is a follow query.
+     */
+    public boolean isFollow()
+    {
+        try
+        {
+            DataInputStream request = this.requestFrame.payloadStream();
+            GrepProtocol.readString(request);
+            return GrepQuery.parse(GrepProtocol.readString(request)).isFollow();
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Sends the output lines of a cached result to the client.
+     *
+     * @param resultWriter Writer of the output lines.
+     * @param cached Cached result of the query.
+     * @return Summary of the file.
+     * @throws IOException if writing to the socket fails.
+     */
+    private FileSummary replay(ResultBatchWriter resultWriter, ResultCache.Result cached) throws IOException
+    {
+        for (int i = 0; i < cached.getLineCount(); i++)
+        {
+            if (cached.isTimed())
+            {
+                resultWriter.writeLine(cached.getTimestamp(i), cached.getLine(i));
+            }
+            else
+            {
+                resultWriter.writeLine(cached.getLine(i));
+            }
+            this.awaitWritable();
+        }
+
+        return cached.getSummary();
+    }
+
+    /**
+     * Runs the query with the grep process of the machine and sends its output lines to the client.
+     *
+     * @param resultWriter Writer of the output lines.
+     * @param logFile Log file to be searched.
+     * @param query Query to be run.
+     * @throws IOException if starting the process or writing to the socket fails.
+     */
+    private void runGrepProcess(ResultBatchWriter resultWriter, File logFile, GrepQuery query) throws IOException
+    {
+        List<String> commandArgs = new ArrayList<String>();
+        commandArgs.add("grep");
+        commandArgs.addAll(query.toGrepArguments());
+        commandArgs.add(logFile.getAbsolutePath());
+        
+        // Creating the process with given client command.
+        logger.LogInfo("[Server] Server executing the process with command: " + commandArgs);
+        ProcessBuilder processBuilder = new ProcessBuilder(commandArgs);
+        Process process = processBuilder.start();
+        this.attachProcess(process);
+        
+        // Buffer for reading the ouput from stream. 
+        BufferedReader processOutputReader =
+            new BufferedReader(new InputStreamReader(process.getInputStream())); 
+        
+        // Reads from buffer and sends back to the client in socket output stream. Stopping
+        // the request destroys the process, which ends its output.
+        try
+        {
+            String outputLine;
+            while (!this.isStopped() && (outputLine = processOutputReader.readLine()) != null)
+            {
+                resultWriter.writeLine(outputLine);
+                this.awaitWritable();
+            }
+        }
+        catch (IOException e)
+        {
+            if (!this.isStopped())
+            {
+                throw e;
+            }
+        }
+        finally
+        {
+            // The process may still be running if the request failed or was stopped.
+            this.detachProcess();
+            if (process.isAlive())
+            {
+                process.destroy();
+            }
+            processOutputReader.close();
+        }
+    }
+
+    /**
+     * Registers the grep process of the request, destroying it at once if the
+     * request was already stopped.
+     *
+     * @param process Grep process.
+     */
+    private synchronized void attachProcess(Process process)
+    {
+        this.process = process;
+        if (this.isStopped())
+        {
+            process.destroy();
+        }
+    }
+
+    /**
+     * Forgets the grep process of the request once its output was read.
+     */
+    private synchronized void detachProcess()
+    {
+        this.process = null;
+    }
+
+    /**
+     * Waits while the client is behind on reading the output. The wait happens outside
+     * the result writer so that its timed flushes are not held up.
+     *
+     * @throws IOException if the connection closed.
+     */
+    private void awaitWritable() throws IOException
+    {
+        if (this.throttle != null)
+        {
+            this.throttle.awaitWritable();
+        }
+    }
+
+    /**
+     * Reports a failed request to the client, if the connection still allows it.
+     *
+     * @param resultWriter Writer of the output lines, null if the request was not read.
+     * @param ex Exception which failed the request.
+     */
+    private void sendFailure(ResultBatchWriter resultWriter, Exception ex)
+    {
+        if (resultWriter == null)
+        {
+            return;
+        }
+
+        try
+        {
+            resultWriter.fail("Request failed: " + ex.getMessage());
+        }
+        catch (IOException e)
+        {
+            logger.LogWarning("[Server] Could not report the failure to the client: " + e.getMessage());
+        }
+    }
+}
@@ -6,15 +6,16 @@
 
 import java.io.*; 
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
- * Class handles the client requests.
+ * Class handles the client requests. A connection is a session which carries any
+ * number of requests, possibly several at once.
  */
-public class GrepRequestHandler extends Thread
+public class GrepRequestHandler implements Runnable
 {
     /**
      * Client socket.
@@ -37,10 +38,20 @@ public class GrepRequestHandler extends Thread
     private GrepLogger logger;
 
     /**
-     * Regex pattern to tokenize the user input.
+     * Runs the requests of all the sessions, on virtual threads in the virtual Server_mode.
      */
-    private static Pattern regexPattern = 
-        Pattern.compile("\".*?(?<!\\\\)\"|'.*?(?<!\\\\)'|-*[A-Za-z]+");
+    private static final ExecutorService requestExecutor = TaskThreads.newExecutor("GrepRequest-",
+        ServerHandler.isVirtualMode());
+
+    /**
+     * Number of requests of this session which are still running.
+     */
+    private int requestsInFlight = 0;
+
+    /**
+     * Running requests of this session, cancelled when the session ends.
+     */
+    private final Set<GrepQueryTask> runningTasks = new HashSet<GrepQueryTask>();
   
     /**
      * Constructor for the class GrepRequestHandler
@@ -54,7 +65,7 @@ public class GrepRequestHandler extends Thread
     }
 
     /**
-     * Overrides the run method of Thread class. This serves the client requested operations.
+     * Serves the client on the thread started by the ServerHandler. This serves the client requested operations.
      * {@inheritDoc}
      */
     @Override
@@ -63,83 +74,204 @@ public class GrepRequestHandler extends Thread
         logger.LogInfo("[Server] Server started serving client: " + this.socket); 
         
         /**
-         * Server serves client requests as follows:
-         * 1) Reads the grep command from the client via socket input stream.
-         * 2) Invokes the grep on the machine.
-         * 3) Reads the output of grep and sends back to the client via socket output stream. 
-         *    Along with the output the server also sending the number of output lines.
-         * 4) Closes all the resources used in serving the client.
+         * Server serves a client session as follows:
+         * 1) Reads the protocol handshake from the client via socket input stream.
+         * 2) Reads REQUEST frames until the client closes the connection, or until no frame
+         *    arrived and no request was running for Session_idle_timeout_ms.
+         * 3) Runs each request on the request executor once the query scheduler admits
+         *    it, so that several requests of the session can be in flight at once. Their
+         *    frames are tagged with the request id.
+         * 4) Cancels the running requests, which stops the ones following a log, waits
+         *    for them and closes all the resources used in serving the client.
          */
-        while (true)  
+        try 
+        {
+            byte version = GrepProtocol.readHandshake(this.socketInputStream);
+            if (version != GrepProtocol.VERSION)
+            {
+                GrepProtocol.writeTrailer(this.socketOutputStream, 0, "", 0, GrepProtocol.STATUS_ERROR,
+                    "Unsupported protocol version " + version);
+            }
+            else
+            {
+                this.socket.setSoTimeout(GrepConfig.getInstance().getInt("Session_idle_timeout_ms", 60000));
+                this.serveRequests();
+            }
+        } 
+        catch (Exception ex) 
+        {
+            logger.LogException("[Server] Client session failed with:", ex);
+        }
+
+        this.cancelRequests();
+        this.waitForRequests();
+        logger.LogInfo("[Server] Closing connection"); 
+        this.closeSocket();
+    } 
+
+    /**
+     * Reads the REQUEST frames of the session and starts a task for each of them.
+     *
+     * @throws IOException if reading from the socket fails.
+     */
+    private void serveRequests() throws IOException
+    {
+        int requestsServed = 0;
+        while (true)
         {
-            try 
+            byte type;
+            try
             {
-                // Clients sending the log file name.
-                String vmLogFileName = this.socketInputStream.readUTF();
-                logger.LogInfo(vmLogFileName);
-                File logFile = new File(vmLogFileName);
-                if (!logFile.exists())
+                type = this.socketInputStream.readByte();
+            }
+            catch (SocketTimeoutException e)
+            {
+                if (this.getRequestsInFlight() == 0)
                 {
-                    this.socketOutputStream.writeUTF(vmLogFileName + " Please check file name.");
-                    break;
-                }
-                
-                String fileAbsPath = logFile.getAbsolutePath();
-                // Reads the command line from client from the socket input stream channel.
-                String line = this.socketInputStream.readUTF();   
-                
-                // Tokenising the client input based on the regex.
-                List<String> regexPatternMatchingList = new ArrayList<String>();
-                Matcher regexMatcher = regexPattern.matcher(line);
-                while (regexMatcher.find()) {
-                    regexPatternMatchingList.add(regexMatcher.group());
+                    logger.LogInfo("[Server] Session idle after " + requestsServed + " requests.");
+                    return;
                 }
+                continue;
+            }
+            catch (EOFException e)
+            {
+                logger.LogInfo("[Server] Client closed the session after " + requestsServed + " requests.");
+                return;
+            }
 
-                List<String> commandArgs = new ArrayList<String>();
-                commandArgs.add("grep");
-                for (String match : regexPatternMatchingList) {
-                    if(match.charAt(0) == '\"' && match.charAt((match.length()-1)) == '\"') {
-                        match = match.substring(1, match.length()-1);
-                    }
-                    commandArgs.add(match);
+            GrepProtocol.Frame frame = GrepProtocol.readFrame(this.socketInputStream, type,
+                GrepProtocol.MAX_REQUEST_BYTES);
+            if (frame.type == GrepProtocol.FRAME_STOP)
+            {
+                this.stopRequest(frame.requestId);
+                continue;
+            }
+            if (frame.type != GrepProtocol.FRAME_REQUEST)
+            {
+                GrepProtocol.writeTrailer(this.socketOutputStream, frame.requestId, "", 0,
+                    GrepProtocol.STATUS_ERROR, "Expected a request frame.");
+                continue;
+            }
+
+            requestsServed++;
+            this.startRequest(new GrepQueryTask(this.socketOutputStream, frame));
+        }
+    }
+
+    /**
+     * Runs a request on the request executor once the query scheduler admits it and
+     * keeps count of it. A request the scheduler turns down gets a busy reply.
+     *
+     * @param task Request to be run.
+     * @throws IOException if the busy reply cannot be sent.
+     */
+    private void startRequest(final GrepQueryTask task) throws IOException
+    {
+        synchronized (this)
+        {
+            this.requestsInFlight++;
+            this.runningTasks.add(task);
+        }
+
+        Runnable query = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    task.run();
                 }
-                commandArgs.add(fileAbsPath);
-                
-                // Creating the process with given client command.
-                logger.LogInfo("[Server] Server executing the process with command: " + commandArgs);
-                ProcessBuilder processBuilder = new ProcessBuilder(commandArgs);
-                Runtime rt = Runtime.getRuntime();
-                //Process process = rt.exec(commandArgs);
-                Process process = processBuilder.start();
-                
-                // Buffer for reading the ouput from stream. 
-                BufferedReader processOutputReader =
-                    new BufferedReader(new InputStreamReader(process.getInputStream())); 
-                
-                // Reads from buffer and sends back to the client in socket output stream.
-                String outputLine;
-                int matchedLinescount = 0;
-                while ((outputLine = processOutputReader.readLine()) != null)
+                finally
                 {
-                    this.socketOutputStream.writeUTF(vmLogFileName + " " + outputLine);
-                    matchedLinescount++;
+                    synchronized (GrepRequestHandler.this)
+                    {
+                        runningTasks.remove(task);
+                        requestsInFlight--;
+                        GrepRequestHandler.this.notifyAll();
+                    }
                 }
+            }
+        };
 
-                // Writing the matched lines count to the stream.
-                this.socketOutputStream.writeUTF(vmLogFileName + " " + matchedLinescount);            
-                logger.LogInfo("[Server] Client request has been served.");
-            } 
-            catch (Exception ex) 
+        // Follow requests mostly wait for their log to grow, so they are not scheduled.
+        if (task.isFollow())
+        {
+            requestExecutor.execute(query);
+            return;
+        }
+
+        long retryMillis = QueryScheduler.getInstance().submit(this.socket.getInetAddress().getHostAddress(),
+            task.getLane(), query, requestExecutor);
+        if (retryMillis >= 0)
+        {
+            synchronized (this)
             {
-                logger.LogException("[Server] Client requested operation failed with:", ex);
+                this.requestsInFlight--;
+                this.runningTasks.remove(task);
             }
+            logger.LogWarning("[Server] Rejected request " + task.getRequestId() + " of "
+                + this.socket.getInetAddress().getHostAddress() + ", the run queue is full. Retry after "
+                + retryMillis + " ms.");
+            GrepProtocol.writeBusy(this.socketOutputStream, task.getRequestId(), retryMillis);
+        }
+    }
+
+    /**
+     * @return Number of requests of this session which are still running.
+     */
+    private synchronized int getRequestsInFlight()
+    {
+        return this.requestsInFlight;
+    }
 
-            break;
+    /**
+     * Stops a running request of the session. A request which already completed is
+     * left alone, its trailer is on its way to the client.
+     *
+     * @param requestId Id of the request.
+     */
+    private synchronized void stopRequest(int requestId)
+    {
+        for (GrepQueryTask task : this.runningTasks)
+        {
+            if (task.getRequestId() == requestId)
+            {
+                logger.LogInfo("[Server] Client stopped request " + requestId);
+                task.stop();
+            }
         }
-        
-        logger.LogInfo("[Server] Closing connection"); 
-        this.closeSocket();
-    } 
+    }
+
+    /**
+     * Cancels the running requests of the session.
+     */
+    private synchronized void cancelRequests()
+    {
+        for (GrepQueryTask task : this.runningTasks)
+        {
+            task.cancel();
+        }
+    }
+
+    /**
+     * Waits for the running requests of the session to complete.
+     */
+    private synchronized void waitForRequests()
+    {
+        while (this.requestsInFlight > 0)
+        {
+            try
+            {
+                this.wait();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
 
 	/**
      * Initializes the input and output streams.
@@ -149,7 +281,8 @@ public class GrepRequestHandler extends Thread
         try 
         {
             this.socketInputStream = new DataInputStream(this.socket.getInputStream());
-            this.socketOutputStream = new DataOutputStream(this.socket.getOutputStream());
+            this.socketOutputStream =
+                new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream(), 1 << 16));
         } 
         catch (IOException e)
         {
@@ -0,0 +1,1551 @@
+/**
+ * Search engine which runs grep queries inside the server JVM.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Scans a log file directly and selects the lines matching a grep query, without
+ * starting an external grep process. Queries for a fixed string are searched on
+ * the raw bytes of the memory mapped file and only the matching lines are decoded.
+ * Large files are split into line-aligned chunks which are scanned in parallel,
+ * while the selected lines are still delivered in file order. When the file has a
+ * block index, only the blocks which can hold a selected line are scanned. A gzip
+ * compressed file is scanned as a stream of its text, with the offsets of the text.
+ * The lines of a --group-by query are counted by their group where they are
+ * matched, each chunk into its own counts, and never buffered. A regex query on a
+ * file which other regex queries are scanning reads it along with them, with a
+ * SharedScan. A search which is stopped ends at its next buffer or match, with the
+ * lines selected so far.
+ */
+public class GrepSearcher
+{
+    /**
+     * Size of the read buffer.
+     */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Size of the file region mapped at a time by the literal search.
+     */
+    private static final int MAPPED_WINDOW_SIZE = 1 << 28;
+
+    /**
+     * Size of the blocks copied out of a mapped window to look for line terminators,
+     * and of the first block, kept small as the next terminator is usually near.
+     */
+    private static final int SCAN_BLOCK_SIZE = 1 << 13;
+    private static final int FIRST_SCAN_BLOCK_SIZE = 1 << 7;
+
+    /**
+     * Pool shared by all the queries for scanning file chunks.
+     */
+    static final ForkJoinPool SCAN_POOL =
+        new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Query being served.
+     */
+    private final GrepQuery query;
+
+    /**
+     * Compiled patterns of the query.
+     */
+    private final Pattern pattern;
+
+    /**
+     * Byte level matcher used when the query is a fixed string, otherwise null.
+     */
+    private final LiteralMatcher literalMatcher;
+
+    /**
+     * Max number of chunks of the file scanned at the same time.
+     */
+    private final int parallelism;
+
+    /**
+     * Size of a chunk in bytes.
+     */
+    private final long chunkSize;
+
+    /**
+     * Indexes of the log files, null to always scan the whole file.
+     */
+    private final LogIndexes indexes;
+
+    /**
+     * Number of blocks of the indexes used by the searches, and of the ones they
+     * ruled out, which were not read.
+     */
+    private long indexedBlocks = 0;
+    private long skippedBlocks = 0;
+
+    /**
+     * Number or name of the capture group of a --group-by query, the other one -1 or null.
+     */
+    private final int groupIndex;
+    private final String groupName;
+
+    /**
+     * Counts of the selected lines by group over the searches, null if the query does not group.
+     */
+    private final GroupCounts groups;
+
+    /**
+     * Set when the searches are stopped, as their request needs no more lines.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * Records of the compressed file being searched by an ordered query, null otherwise.
+     */
+    private TimeWindow streamRecords = null;
+
+    /**
+     * Constructor for the class GrepSearcher. The parallelism is taken from the
+     * Scan_parallelism and Scan_chunk_size_mb settings, and the file indexes are used.
+     *
+     * @param query Query to be run.
+     * @throws java.util.regex.PatternSyntaxException if a pattern of the query is invalid.
+     */
+    public GrepSearcher(GrepQuery query)
+    {
+        this(query,
+            GrepConfig.getInstance().getInt("Scan_parallelism", Runtime.getRuntime().availableProcessors()),
+            GrepConfig.getInstance().getLong("Scan_chunk_size_mb", 32) << 20,
+            LogIndexes.getInstance());
+    }
+
+    /**
+     * Constructor for the class GrepSearcher.
+     *
+     * @param query Query to be run.
+     * @param parallelism Max number of chunks of the file scanned at the same time.
+     * @param chunkSize Size of a chunk in bytes.
+     * @throws java.util.regex.PatternSyntaxException if a pattern of the query is invalid.
+     */
+    public GrepSearcher(GrepQuery query, int parallelism, long chunkSize)
+    {
+        this(query, parallelism, chunkSize, null);
+    }
+
+    /**
+     * Constructor for the class GrepSearcher.
+     *
+     * @param query Query to be run.
+     * @param parallelism Max number of chunks of the file scanned at the same time.
+     * @param chunkSize Size of a chunk in bytes.
+     * @param indexes Indexes of the log files, null to always scan the whole file.
+     * @throws java.util.regex.PatternSyntaxException if a pattern of the query is invalid.
+     * @throws IllegalArgumentException if the patterns lack the --group-by capture group.
+     */
+    public GrepSearcher(GrepQuery query, int parallelism, long chunkSize, LogIndexes indexes)
+    {
+        this.query = query;
+        this.indexes = indexes;
+        this.parallelism = Math.max(parallelism, 1);
+        this.chunkSize = Math.max(chunkSize, 1 << 16);
+        this.pattern = query.compile();
+
+        String groupBy = query.getGroupBy();
+        boolean numbered = groupBy != null && Character.isDigit(groupBy.charAt(0));
+        this.groupIndex = numbered ? Integer.parseInt(groupBy) : -1;
+        this.groupName = numbered ? null : groupBy;
+        this.groups = (groupBy == null) ? null : new GroupCounts();
+        if (numbered && this.groupIndex > this.pattern.matcher("").groupCount())
+        {
+            throw new IllegalArgumentException("The pattern has no capture group " + groupBy + ".");
+        }
+        if (this.groupName != null && !this.pattern.pattern().contains("(?<" + this.groupName + ">"))
+        {
+            throw new IllegalArgumentException("The pattern has no capture group named " + groupBy + ".");
+        }
+
+        // The literal search finds the lines without the regex, which the groups are captured by.
+        String literal = query.getLiteral();
+        this.literalMatcher = (literal == null || query.isInvertMatch() || groupBy != null)
+            ? null
+            : LiteralMatcher.create(literal, query.isIgnoreCase());
+    }
+
+    /**
+     * Searches the file and passes the selected lines to the listener. When the
+     * query only counts (-c), asks for a summary or groups the lines, the listener
+     * is not called and the groups are added to getGroups.
+     *
+     * @param file File to be searched.
+     * @param listener Receiver of the selected lines.
+     * @return Number of selected lines and the offsets of the first and last of them.
+     * @throws IOException if the file cannot be read or the listener fails.
+     */
+    public FileSummary search(File file, MatchListener listener) throws IOException
+    {
+        if (this.query.getMaxCount() == 0)
+        {
+            return new FileSummary(file.getPath(), 0, -1, -1);
+        }
+        if (CompressedLogs.isCompressed(file))
+        {
+            return this.searchCompressed(file, listener);
+        }
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel())
+        {
+            long fileSize = channel.size();
+            List<List<String>> requiredLiterals = (this.indexes == null) ? null : this.query.getRequiredLiterals();
+            LiteralIndex index = (requiredLiterals == null || this.query.hasTimeRange())
+                ? null
+                : this.indexes.get(file);
+            List<BlockIndex.Block> blocks = (index == null || index.getIndexedLength() > fileSize)
+                ? null
+                : index.candidateBlocks(requiredLiterals);
+            RangeResult result;
+            if (this.query.hasTimeRange())
+            {
+                result = this.searchTimeRange(channel, file, fileSize, listener);
+            }
+            // When most blocks may match, the parallel scan of the whole file is faster.
+            else if (blocks != null && blocks.size() * 2 <= index.getBlockCount())
+            {
+                this.indexedBlocks += index.getBlockCount();
+                this.skippedBlocks += index.getBlockCount() - blocks.size();
+                result = this.searchBlocks(channel, blocks,
+                    new BlockIndex.Block(index.getIndexedLength(), fileSize, index.getIndexedLines()), listener);
+            }
+            // Chunk counts cannot tell where the max count is reached, which the summary and groups need.
+            else if (this.parallelism == 1 || fileSize <= this.chunkSize
+                || ((this.query.isSummary() || this.query.isGroupBy()) && this.query.getMaxCount() > 0))
+            {
+                result = this.scanRange(channel, 0, fileSize, this.query.getMaxCount(), null, listener);
+            }
+            else
+            {
+                // Regex queries read the file along with the ones already running on it.
+                result = (SharedScan.isEnabled() && this.literalMatcher == null && this.query.getMaxCount() < 0)
+                    ? SharedScan.search(file, channel, fileSize, this, listener)
+                    : null;
+                if (result == null)
+                {
+                    result = this.searchParallel(channel, fileSize, listener);
+                }
+            }
+
+            this.addGroups(result);
+            return new FileSummary(file.getPath(), result.selectedLines,
+                result.firstMatchOffset, result.lastMatchOffset);
+        }
+    }
+
+    /**
+     * Searches a gzip compressed file, which has neither chunks nor indexes. The
+     * text is matched line by line while its next blocks are inflated; the blocks
+     * of a BGZF file are inflated in parallel.
+     *
+     * @param file Compressed file.
+     * @param listener Receiver of the selected lines, with the offsets of the uncompressed text.
+     * @return Number of selected lines and the offsets of the first and last of them.
+     * @throws IOException if the file cannot be read or inflated, or the listener fails.
+     */
+    private FileSummary searchCompressed(File file, MatchListener listener) throws IOException
+    {
+        // Timestamps of ordered lines cannot be looked up backwards in a stream.
+        TimeWindow window = (this.query.hasTimeRange() || (this.query.isOrdered() && this.query.needsLines()))
+            ? new TimeWindow(-1)
+            : null;
+        this.streamRecords = window;
+        try (InputStream in = CompressedLogs.open(file, SCAN_POOL, this.parallelism))
+        {
+            RangeResult result = new RangeResult();
+            this.scanLines(null, in, 0, Long.MAX_VALUE, this.query.getMaxCount(), window, listener, result);
+            this.addGroups(result);
+            return new FileSummary(file.getPath(), result.selectedLines,
+                result.firstMatchOffset, result.lastMatchOffset);
+        }
+        finally
+        {
+            this.streamRecords = null;
+        }
+    }
+
+    /**
+     * @return While a compressed file is searched by an ordered query, the timestamp
+     *         of the record of the line passed to the listener, -1 if none. The
+     *         records of plain files are looked up with RecordTimestamps.
+     */
+    public long getRecordTimestamp()
+    {
+        return (this.streamRecords == null) ? -1 : this.streamRecords.recordTimestamp;
+    }
+
+    /**
+     * Stops the search in progress and the later ones, from any thread. They end as
+     * if the file ended, with the lines selected so far.
+     */
+    public void stop()
+    {
+        this.stopped = true;
+    }
+
+    /**
+     * @return Counts of the selected lines by group over the searches so far, null
+     *         if the query does not group its lines.
+     */
+    public GroupCounts getGroups()
+    {
+        return this.groups;
+    }
+
+    /**
+     * Adds the groups of a search to the groups of the searcher.
+     *
+     * @param result Result of a whole search.
+     */
+    private void addGroups(RangeResult result)
+    {
+        if (result.groups != null)
+        {
+            this.groups.addAll(result.groups);
+        }
+    }
+
+    /**
+     * @return Number of blocks of the indexes used by the searches so far.
+     */
+    public long getIndexedBlocks()
+    {
+        return this.indexedBlocks;
+    }
+
+    /**
+     * @return Number of blocks the indexes ruled out in the searches so far.
+     */
+    public long getSkippedBlocks()
+    {
+        return this.skippedBlocks;
+    }
+
+    /**
+     * Starts following the file: the lines written so far are skipped, and the later
+     * calls to searchAppended search the lines appended after them.
+     *
+     * @param file File to be followed.
+     * @return Position of the query at the end of the last whole line of the file.
+     * @throws IOException if the file cannot be read.
+     */
+    public FollowCursor startFollowing(File file) throws IOException
+    {
+        FollowCursor cursor = new FollowCursor();
+        cursor.fileKey = fileKeyOf(file);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel())
+        {
+            cursor.offset = wholeLinesEnd(channel, 0, channel.size());
+            if (this.query.isLineNumbers())
+            {
+                // The lines covered by the index are not counted again.
+                LiteralIndex index = (this.indexes == null) ? null : this.indexes.get(file);
+                long from = 0;
+                if (index != null && index.getIndexedLength() <= cursor.offset)
+                {
+                    from = index.getIndexedLength();
+                    cursor.lines = index.getIndexedLines();
+                }
+                cursor.lines += countLines(channel, from, cursor.offset);
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Searches the whole lines appended to the followed file since the last call and
+     * passes the selected lines to the listener. A file which shrank or was replaced,
+     * as when the log is rotated, is followed again from its start; while the file
+     * is missing nothing is searched, and once the max count of the query was
+     * reached nothing more is.
+     *
+     * @param file Followed file.
+     * @param cursor Position of the query in the file, moved past the searched lines.
+     * @param listener Receiver of the selected lines.
+     * @throws IOException if the file cannot be read or the listener fails.
+     */
+    public void searchAppended(File file, FollowCursor cursor, final MatchListener listener) throws IOException
+    {
+        long maxCount = this.query.getMaxCount();
+        if (!file.isFile() || (maxCount >= 0 && maxCount - cursor.selectedLines <= 0))
+        {
+            return;
+        }
+
+        Object fileKey = fileKeyOf(file);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel())
+        {
+            long fileSize = channel.size();
+            if (fileSize < cursor.offset || (fileKey != null && !fileKey.equals(cursor.fileKey)))
+            {
+                cursor.offset = 0;
+                cursor.lines = 0;
+                cursor.fileKey = fileKey;
+            }
+
+            // A line being written is searched once its line terminator is.
+            long end = wholeLinesEnd(channel, cursor.offset, fileSize);
+            if (end <= cursor.offset)
+            {
+                return;
+            }
+
+            final long linesBefore = cursor.lines;
+            RangeResult result = this.scanRange(channel, cursor.offset, end,
+                (maxCount < 0) ? maxCount : maxCount - cursor.selectedLines, null, new MatchListener()
+                {
+                    @Override
+                    public void onMatch(long lineNumber, long byteOffset, String line) throws IOException
+                    {
+                        listener.onMatch(linesBefore + lineNumber, byteOffset, line);
+                    }
+                });
+            cursor.offset = end;
+            cursor.lines += result.lineCount;
+            cursor.selectedLines += result.selectedLines;
+        }
+    }
+
+    /**
+     * @param file File.
+     * @return Key telling the file apart from a file which replaced it, null if unknown.
+     */
+    static Object fileKeyOf(File file)
+    {
+        try
+        {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the end of the last whole line of a range, looking back from its end.
+     *
+     * @param channel Channel of the file.
+     * @param start Start offset of the range, at the start of a line.
+     * @param end End offset of the range, exclusive.
+     * @return Offset just after the last line terminator of the range, or start if there is none.
+     * @throws IOException if the file cannot be read.
+     */
+    private static long wholeLinesEnd(FileChannel channel, long start, long end) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = end;
+        while (position > start)
+        {
+            int length = (int) Math.min(buffer.capacity(), position - start);
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer, position - length + buffer.position()) < 0)
+                {
+                    return start;
+                }
+            }
+
+            int newline = lastIndexOf(buffer.array(), (byte) '\n', 0, length);
+            if (newline >= 0)
+            {
+                return position - length + newline + 1;
+            }
+            position -= length;
+        }
+
+        return start;
+    }
+
+    /**
+     * Counts the lines of a line-aligned range of the file.
+     *
+     * @param channel Channel of the file.
+     * @param start Start offset of the range, inclusive.
+     * @param end End offset of the range, exclusive.
+     * @return Number of line terminators in the range.
+     * @throws IOException if the file cannot be read.
+     */
+    static long countLines(FileChannel channel, long start, long end) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long lines = 0;
+        long position = start;
+        while (position < end)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+            {
+                break;
+            }
+
+            lines += count(buffer.array(), (byte) '\n', 0, read);
+            position += read;
+        }
+
+        return lines;
+    }
+
+    /**
+     * Splits the file into line-aligned chunks and scans them on the scan pool.
+     * At most parallelism chunks are in flight; their selected lines are buffered
+     * and passed to the listener in file order, with the line numbers and the max
+     * count applied across the whole file.
+     *
+     * @param channel Channel of the file.
+     * @param fileSize Size of the file.
+     * @param listener Receiver of the selected lines.
+     * @return Result of the whole search.
+     * @throws IOException if the file cannot be read or the listener fails.
+     */
+    private RangeResult searchParallel(FileChannel channel, long fileSize, MatchListener listener) throws IOException
+    {
+        long maxCount = this.query.getMaxCount();
+        Deque<Future<ChunkResult>> inFlight = new ArrayDeque<Future<ChunkResult>>();
+        long nextChunkStart = 0;
+        long linesBefore = 0;
+        RangeResult result = new RangeResult();
+
+        try
+        {
+            while ((nextChunkStart < fileSize || !inFlight.isEmpty()) && !this.stopped)
+            {
+                while (nextChunkStart < fileSize && inFlight.size() < this.parallelism)
+                {
+                    long chunkEnd = alignToLine(channel, nextChunkStart + this.chunkSize, fileSize);
+                    inFlight.add(SCAN_POOL.submit(new ChunkTask(channel, nextChunkStart, chunkEnd)));
+                    nextChunkStart = chunkEnd;
+                }
+
+                ChunkResult chunk = inFlight.poll().get();
+                this.deliverChunk(chunk, linesBefore, listener, result);
+                linesBefore += chunk.lineCount;
+                if (maxCount > 0 && result.selectedLines >= maxCount)
+                {
+                    result.selectedLines = maxCount;
+                    return result;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Search interrupted.", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+
+            throw new IOException("Chunk scan failed.", e.getCause());
+        }
+        finally
+        {
+            for (Future<ChunkResult> future : inFlight)
+            {
+                future.cancel(true);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Passes the buffered lines of a chunk to the listener, or adds up its counts
+     * when the query needs no lines, up to the max count of the query.
+     *
+     * @param chunk Result of the chunk, whose chunks before were delivered.
+     * @param linesBefore Number of lines of the file before the chunk.
+     * @param listener Receiver of the selected lines.
+     * @param result Result of the whole search, to which the chunk is added.
+     * @throws IOException if the listener fails.
+     */
+    void deliverChunk(ChunkResult chunk, long linesBefore, MatchListener listener, RangeResult result)
+        throws IOException
+    {
+        long maxCount = this.query.getMaxCount();
+        for (BufferedMatch match : chunk.matches)
+        {
+            if (result.selectedLines == maxCount)
+            {
+                break;
+            }
+
+            listener.onMatch(linesBefore + match.lineNumber, match.byteOffset, match.line);
+            result.addMatch(match.byteOffset);
+        }
+
+        if (!this.query.needsLines() && chunk.selectedLines > 0)
+        {
+            result.addGroups(chunk.groups);
+            result.selectedLines += chunk.selectedLines;
+            result.lastMatchOffset = chunk.lastMatchOffset;
+            if (result.firstMatchOffset < 0)
+            {
+                result.firstMatchOffset = chunk.firstMatchOffset;
+            }
+        }
+    }
+
+    /**
+     * Scans a line-aligned range of the file on the calling thread and adds it to
+     * the result of a search, as the part of a shared scan a query covers alone.
+     *
+     * @param channel Channel of the file.
+     * @param start Start offset of the range, inclusive.
+     * @param end End offset of the range, exclusive.
+     * @param linesBefore Number of lines of the file before the range.
+     * @param listener Receiver of the selected lines.
+     * @param result Result of the whole search, to which the range is added.
+     * @return Number of lines in the range.
+     * @throws IOException if the file cannot be read or the listener fails.
+     */
+    long scanPart(FileChannel channel, long start, long end, final long linesBefore, final MatchListener listener,
+        RangeResult result) throws IOException
+    {
+        ChunkResult part = new ChunkResult();
+        this.scanLines(channel, null, start, end, -1, null, new MatchListener()
+        {
+            @Override
+            public void onMatch(long lineNumber, long byteOffset, String line) throws IOException
+            {
+                listener.onMatch(linesBefore + lineNumber, byteOffset, line);
+            }
+        }, part);
+
+        if (part.selectedLines > 0)
+        {
+            result.addGroups(part.groups);
+            result.selectedLines += part.selectedLines;
+            result.lastMatchOffset = part.lastMatchOffset;
+            if (result.firstMatchOffset < 0)
+            {
+                result.firstMatchOffset = part.firstMatchOffset;
+            }
+        }
+        return part.lineCount;
+    }
+
+    /**
+     * Scans the part of the file written in the time window of the query. Its time
+     * index gives the blocks which have lines in the window; without it, the whole
+     * file is scanned, in one go as the lines need the timestamps of their records.
+     *
+     * @param channel Channel of the file.
+     * @param file File to be searched.
+     * @param fileSize Size of the file.
+     * @param listener Receiver of the selected lines.
+     * @return Result of the whole search.
+     * @throws IOException if the file cannot be read or the listener fails.
+     */
+    private RangeResult searchTimeRange(FileChannel channel, File file, long fileSize, MatchListener listener)
+        throws IOException
+    {
+        TimeIndex index = (this.indexes == null) ? null : this.indexes.getTimeIndex(file);
+        if (index == null || index.getIndexedLength() > fileSize)
+        {
+            return this.searchBlocks(channel, new ArrayList<TimeIndex.Range>(),
+                new TimeIndex.Range(0, fileSize, 0, -1), listener);
+        }
+
+        List<TimeIndex.Range> ranges = index.candidateRanges(this.query.getSince(), this.query.getUntil());
+        this.indexedBlocks += index.getBlockCount();
+        this.skippedBlocks += index.getBlockCount() - ranges.size();
+        return this.searchBlocks(channel, ranges, new TimeIndex.Range(index.getIndexedLength(), fileSize,
+            index.getIndexedLines(), index.getLastTimestamp()), listener);
+    }
+
+    /**
+     * Scans the blocks of the file picked by its index, in file order, followed by
+     * the part of the file written after it was indexed. For a query bounded in time
+     * the blocks are the TimeIndex.Range of the time index.
+     *
+     * @param channel Channel of the file.
+     * @param blocks Blocks which may hold selected lines.
+     * @param tail Part of the file which is not indexed, possibly empty.
+     * @param listener Receiver of the selected lines.
+     * @return Result of the whole search.
+     * @throws IOException if the file cannot be read or the listener fails.
+     */
+    private RangeResult searchBlocks(FileChannel channel, List<? extends BlockIndex.Block> blocks,
+        BlockIndex.Block tail, final MatchListener listener) throws IOException
+    {
+        long maxCount = this.query.getMaxCount();
+        List<BlockIndex.Block> ranges = new ArrayList<BlockIndex.Block>(blocks);
+        ranges.add(tail);
+        RangeResult result = new RangeResult();
+
+        for (final BlockIndex.Block block : ranges)
+        {
+            if (this.stopped)
+            {
+                break;
+            }
+            if (block.start >= block.end)
+            {
+                continue;
+            }
+
+            TimeWindow window = this.query.hasTimeRange()
+                ? new TimeWindow(((TimeIndex.Range) block).recordTimestamp)
+                : null;
+            RangeResult blockResult = this.scanRange(channel, block.start, block.end,
+                (maxCount < 0) ? maxCount : maxCount - result.selectedLines, window, new MatchListener()
+                {
+                    @Override
+                    public void onMatch(long lineNumber, long byteOffset, String line) throws IOException
+                    {
+                        listener.onMatch(block.linesBefore + lineNumber, byteOffset, line);
+                    }
+                });
+
+            if (blockResult.selectedLines > 0)
+            {
+                result.addGroups(blockResult.groups);
+                result.selectedLines += blockResult.selectedLines;
+                result.lastMatchOffset = blockResult.lastMatchOffset;
+                if (result.firstMatchOffset < 0)
+                {
+                    result.firstMatchOffset = blockResult.firstMatchOffset;
+                }
+            }
+
+            if (maxCount >= 0 && result.selectedLines >= maxCount)
+            {
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Moves an offset to the start of the next line.
+     *
+     * @param channel Channel of the file.
+     * @param offset Offset to be aligned.
+     * @param fileSize Size of the file.
+     * @return Offset just after the first line terminator at or after offset - 1,
+     *         or the file size if there is none.
+     * @throws IOException if the file cannot be read.
+     */
+    static long alignToLine(FileChannel channel, long offset, long fileSize) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = offset - 1;
+        while (position < fileSize)
+        {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+            {
+                break;
+            }
+
+            int newline = indexOf(buffer.array(), (byte) '\n', 0, read);
+            if (newline >= 0)
+            {
+                return position + newline + 1;
+            }
+
+            position += read;
+        }
+
+        return fileSize;
+    }
+
+    /**
+     * Scans a line-aligned byte range of the file.
+     *
+     * @param channel Channel of the file.
+     * @param start Start offset of the range, inclusive.
+     * @param end End offset of the range, exclusive.
+     * @param maxCount Number of selected lines after which the scan stops, negative for no limit.
+     * @param window Time window the lines must be in, null if the query has none.
+     * @param listener Receiver of the selected lines, with line numbers relative to the range.
+     * @return Result of the scan, empty if maxCount is 0.
+     * @throws IOException if the file cannot be read or the listener fails.
+     */
+    private RangeResult scanRange(FileChannel channel, long start, long end, long maxCount, TimeWindow window,
+        MatchListener listener) throws IOException
+    {
+        RangeResult result = new RangeResult();
+        // The scans only compare the count with maxCount after selecting a line.
+        if (maxCount == 0)
+        {
+            return result;
+        }
+        // The literal scan skips the lines without a match, whose timestamps a time window needs.
+        if (this.literalMatcher != null && window == null)
+        {
+            this.scanLiteral(channel, start, end, maxCount, listener, result);
+        }
+        else
+        {
+            this.scanLines(channel, null, start, end, maxCount, window, listener, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Scans the range line by line with the regex of the query.
+     *
+     * @param channel Channel of the file.
+     * @param in Stream to read the range from instead of the channel, null to read the channel.
+     * @param start Start offset of the range, inclusive.
+     * @param end End offset of the range, exclusive.
+     * @param maxCount Number of selected lines after which the scan stops, negative for no limit.
+     * @param window Time window the lines must be in, null if the query has none.
+     * @param listener Receiver of the selected lines.
+     * @param result Result to be filled.
+     * @throws IOException if the file cannot be read or the listener fails.
+     */
+    private void scanLines(FileChannel channel, InputStream in, long start, long end, final long maxCount,
+        final TimeWindow window, final MatchListener listener, final RangeResult result) throws IOException
+    {
+        final boolean needsLines = this.query.needsLines();
+        final Matcher matcher = this.pattern.matcher("");
+        result.lineCount = readLines(channel, in, start, end, new LineHandler()
+        {
+            @Override
+            public boolean onLine(long lineNumber, long byteOffset, String line) throws IOException
+            {
+                if ((window == null || window.admits(line)) && selectLine(matcher, line, byteOffset, result))
+                {
+                    if (needsLines)
+                    {
+                        listener.onMatch(lineNumber, byteOffset, line);
+                    }
+                    if (result.selectedLines == maxCount)
+                    {
+                        return false;
+                    }
+                }
+                return !stopped;
+            }
+        });
+    }
+
+    /**
+     * Matches a line with the regex of the query and counts it in the result if it
+     * is selected, in its group for a --group-by query.
+     *
+     * @param matcher Matcher of the pattern of the query, owned by the calling thread.
+     * @param line Line to be matched.
+     * @param byteOffset Offset of the line.
+     * @param result Result the selected line is counted in.
+     * @return true if the line is selected.
+     */
+    boolean selectLine(Matcher matcher, String line, long byteOffset, RangeResult result)
+    {
+        if (matcher.reset(line).find() == this.query.isInvertMatch())
+        {
+            return false;
+        }
+
+        result.addMatch(byteOffset);
+        if (this.groups != null)
+        {
+            String key = (this.groupName != null) ? matcher.group(this.groupName) : matcher.group(this.groupIndex);
+            // Lines where the group took no part are counted under the empty key.
+            result.addGroup((key == null) ? "" : key);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the lines of a line-aligned range and decodes each of them once.
+     *
+     * @param channel Channel of the file, null if the range is read from the stream.
+     * @param in Stream to read the range from instead of the channel, null to read the channel.
+     * @param start Start offset of the range, inclusive.
+     * @param end End offset of the range, exclusive.
+     * @param handler Receiver of the lines, which may end the reading early.
+     * @return Number of lines read.
+     * @throws IOException if the file cannot be read or the handler fails.
+     */
+    static long readLines(FileChannel channel, InputStream in, long start, long end, LineHandler handler)
+        throws IOException
+    {
+        long lineNumber = 0;
+
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(end - start, 1))];
+        // Bytes [0, filled) of the buffer are valid, the first one at file offset bufferOffset.
+        int filled = 0;
+        long bufferOffset = start;
+        long readPosition = start;
+        boolean endOfRange = false;
+
+        while (!endOfRange || filled > 0)
+        {
+            if (!endOfRange)
+            {
+                if (filled == buffer.length)
+                {
+                    // A single line is longer than the buffer.
+                    byte[] larger = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, larger, 0, filled);
+                    buffer = larger;
+                }
+
+                int toRead = (int) Math.min(buffer.length - filled, end - readPosition);
+                int read = (toRead == 0) ? -1
+                    : (in != null) ? in.read(buffer, filled, toRead)
+                    : channel.read(ByteBuffer.wrap(buffer, filled, toRead), readPosition);
+                if (read < 0)
+                {
+                    endOfRange = true;
+                }
+                else
+                {
+                    filled += read;
+                    readPosition += read;
+                }
+            }
+
+            int lineStart = 0;
+            while (lineStart < filled)
+            {
+                int lineEnd = indexOf(buffer, (byte) '\n', lineStart, filled);
+                if (lineEnd < 0)
+                {
+                    if (!endOfRange)
+                    {
+                        break;
+                    }
+
+                    // Last line of the file without a line terminator.
+                    lineEnd = filled;
+                }
+
+                lineNumber++;
+                String line = new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+                if (!handler.onLine(lineNumber, bufferOffset + lineStart, line))
+                {
+                    return lineNumber;
+                }
+
+                lineStart = lineEnd + 1;
+            }
+
+            // Moves the partial line to the start of the buffer.
+            int remaining = Math.max(filled - lineStart, 0);
+            System.arraycopy(buffer, Math.min(lineStart, filled), buffer, 0, remaining);
+            bufferOffset += filled - remaining;
+            filled = remaining;
+        }
+
+        return lineNumber;
+    }
+
+    /**
+     * Scans the range for the fixed string of the query. The range is mapped in
+     * windows that end on a line boundary and the matcher skips over the bytes
+     * between the matches, so lines are only looked at when they contain a match.
+     * Line terminators are only counted when the query asks for line numbers.
+     *
+     * @param channel Channel of the file.
+     * @param start Start offset of the range, inclusive.
+     * @param end End offset of the range, exclusive.
+     * @param maxCount Number of selected lines after which the scan stops, negative for no limit.
+     * @param listener Receiver of the selected lines.
+     * @param result Result to be filled.
+     * @throws IOException if the file cannot be read or the listener fails.
+     */
+    private void scanLiteral(FileChannel channel, long start, long end, long maxCount, MatchListener listener,
+        RangeResult result) throws IOException
+    {
+        boolean needsLines = this.query.needsLines();
+        boolean lineNumbers = this.query.isLineNumbers() && needsLines;
+        boolean wordRegex = this.query.isWordRegex();
+        Matcher matcher = this.pattern.matcher("");
+        byte[] scratch = new byte[SCAN_BLOCK_SIZE];
+        // Number of lines before the position lineNumberOffset of the current window.
+        long lineNumber = 0;
+
+        long windowOffset = start;
+        int windowSize = MAPPED_WINDOW_SIZE;
+
+        while (windowOffset < end && !this.stopped)
+        {
+            int length = (int) Math.min(windowSize, end - windowOffset);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowOffset, length);
+
+            // Only whole lines are searched in a window, unless it is the last one.
+            int limit = length;
+            if (windowOffset + length < end)
+            {
+                limit = lastIndexOf(window, (byte) '\n', 0, length, scratch) + 1;
+                if (limit == 0)
+                {
+                    if (windowSize > Integer.MAX_VALUE / 2)
+                    {
+                        throw new IOException("Line too long at offset " + windowOffset);
+                    }
+
+                    // A single line is longer than the window.
+                    windowSize *= 2;
+                    continue;
+                }
+            }
+
+            int lineNumberOffset = 0;
+            int position = 0;
+            int match;
+            while (position < limit && !this.stopped
+                && (match = this.literalMatcher.indexOf(window, position, limit)) >= 0)
+            {
+                int lineStart = lastIndexOf(window, (byte) '\n', position, match, scratch) + 1;
+                if (lineStart == 0)
+                {
+                    lineStart = position;
+                }
+
+                int lineEnd = indexOf(window, (byte) '\n', match + this.literalMatcher.length(), limit, scratch);
+                if (lineEnd < 0)
+                {
+                    lineEnd = limit;
+                }
+
+                position = lineEnd + 1;
+
+                String line = null;
+                if (wordRegex)
+                {
+                    // The literal is only a candidate, -w is checked on the whole line.
+                    line = decode(window, lineStart, lineEnd);
+                    if (!matcher.reset(line).find())
+                    {
+                        continue;
+                    }
+                }
+
+                result.addMatch(windowOffset + lineStart);
+                if (needsLines)
+                {
+                    if (lineNumbers)
+                    {
+                        lineNumber += count(window, (byte) '\n', lineNumberOffset, lineStart, scratch) + 1;
+                        lineNumberOffset = Math.min(lineEnd + 1, limit);
+                    }
+
+                    if (line == null)
+                    {
+                        line = decode(window, lineStart, lineEnd);
+                    }
+
+                    listener.onMatch(lineNumber, windowOffset + lineStart, line);
+                }
+
+                if (result.selectedLines == maxCount)
+                {
+                    result.lineCount = lineNumber;
+                    return;
+                }
+            }
+
+            if (lineNumbers)
+            {
+                lineNumber += count(window, (byte) '\n', lineNumberOffset, limit, scratch);
+            }
+
+            windowOffset += limit;
+            windowSize = MAPPED_WINDOW_SIZE;
+        }
+
+        result.lineCount = lineNumber;
+    }
+
+    /**
+     * Decodes bytes of the buffer as UTF-8.
+     *
+     * @param buffer Buffer to be decoded.
+     * @param from Start index, inclusive.
+     * @param to End index, exclusive.
+     * @return Decoded string.
+     */
+    private static String decode(ByteBuffer buffer, int from, int to)
+    {
+        byte[] bytes = new byte[to - from];
+        copy(buffer, from, bytes, bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies bytes of the buffer with a single bulk get, leaving its position alone.
+     *
+     * @param buffer Buffer to be copied from.
+     * @param from Start index in the buffer.
+     * @param bytes Array to be copied to, from its start.
+     * @param length Number of bytes to copy.
+     */
+    private static void copy(ByteBuffer buffer, int from, byte[] bytes, int length)
+    {
+        ByteBuffer view = buffer.duplicate();
+        view.clear();
+        view.position(from);
+        view.get(bytes, 0, length);
+    }
+
+    /**
+     * Finds a byte in the buffer, copying it out in blocks of the scratch array.
+     *
+     * @param buffer Buffer to be searched.
+     * @param value Byte to be found.
+     * @param from Start index, inclusive.
+     * @param to End index, exclusive.
+     * @param scratch Array the blocks are copied to.
+     * @return Index of the byte, or -1 if not found.
+     */
+    static int indexOf(ByteBuffer buffer, byte value, int from, int to, byte[] scratch)
+    {
+        int blockSize = Math.min(FIRST_SCAN_BLOCK_SIZE, scratch.length);
+        for (int block = from; block < to; block += blockSize, blockSize = scratch.length)
+        {
+            int length = Math.min(blockSize, to - block);
+            copy(buffer, block, scratch, length);
+            int index = indexOf(scratch, value, 0, length);
+            if (index >= 0)
+            {
+                return block + index;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the last occurrence of a byte in the buffer, copying it out in blocks of
+     * the scratch array from its end.
+     *
+     * @param buffer Buffer to be searched.
+     * @param value Byte to be found.
+     * @param from Start index, inclusive.
+     * @param to End index, exclusive.
+     * @param scratch Array the blocks are copied to.
+     * @return Index of the byte, or -1 if not found.
+     */
+    static int lastIndexOf(ByteBuffer buffer, byte value, int from, int to, byte[] scratch)
+    {
+        int blockSize = Math.min(FIRST_SCAN_BLOCK_SIZE, scratch.length);
+        for (int blockEnd = to; blockEnd > from; blockEnd -= blockSize, blockSize = scratch.length)
+        {
+            int length = Math.min(blockSize, blockEnd - from);
+            copy(buffer, blockEnd - length, scratch, length);
+            int index = lastIndexOf(scratch, value, 0, length);
+            if (index >= 0)
+            {
+                return blockEnd - length + index;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Counts the occurrences of a byte in the buffer, copying it out in blocks of the
+     * scratch array.
+     *
+     * @param buffer Buffer to be searched.
+     * @param value Byte to be counted.
+     * @param from Start index, inclusive.
+     * @param to End index, exclusive.
+     * @param scratch Array the blocks are copied to.
+     * @return Number of occurrences.
+     */
+    static int count(ByteBuffer buffer, byte value, int from, int to, byte[] scratch)
+    {
+        int count = 0;
+        for (int block = from; block < to; block += scratch.length)
+        {
+            int length = Math.min(scratch.length, to - block);
+            copy(buffer, block, scratch, length);
+            count += count(scratch, value, 0, length);
+        }
+
+        return count;
+    }
+
+    /**
+     * Finds a byte in the buffer.
+     *
+     * @param buffer Buffer to be searched.
+     * @param value Byte to be found.
+     * @param from Start index, inclusive.
+     * @param to End index, exclusive.
+     * @return Index of the byte, or -1 if not found.
+     */
+    static int indexOf(byte[] buffer, byte value, int from, int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            if (buffer[i] == value)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the last occurrence of a byte in the buffer.
+     *
+     * @param buffer Buffer to be searched.
+     * @param value Byte to be found.
+     * @param from Start index, inclusive.
+     * @param to End index, exclusive.
+     * @return Index of the byte, or -1 if not found.
+     */
+    static int lastIndexOf(byte[] buffer, byte value, int from, int to)
+    {
+        for (int i = to - 1; i >= from; i--)
+        {
+            if (buffer[i] == value)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Counts the occurrences of a byte in the buffer.
+     *
+     * @param buffer Buffer to be searched.
+     * @param value Byte to be counted.
+     * @param from Start index, inclusive.
+     * @param to End index, exclusive.
+     * @return Number of occurrences.
+     */
+    static int count(byte[] buffer, byte value, int from, int to)
+    {
+        int count = 0;
+        for (int i = from; i < to; i++)
+        {
+            if (buffer[i] == value)
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Scans a chunk of the file on the scan pool and buffers its selected lines.
+     */
+    private class ChunkTask implements Callable<ChunkResult>
+    {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        ChunkTask(FileChannel channel, long start, long end)
+        {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public ChunkResult call() throws IOException
+        {
+            final ChunkResult chunk = new ChunkResult();
+            RangeResult result = scanRange(this.channel, this.start, this.end, query.getMaxCount(), null,
+                new MatchListener()
+                {
+                    @Override
+                    public void onMatch(long lineNumber, long byteOffset, String line)
+                    {
+                        chunk.matches.add(new BufferedMatch(lineNumber, byteOffset, line));
+                    }
+                });
+
+            chunk.selectedLines = result.selectedLines;
+            chunk.lineCount = result.lineCount;
+            chunk.firstMatchOffset = result.firstMatchOffset;
+            chunk.lastMatchOffset = result.lastMatchOffset;
+            chunk.groups = result.groups;
+            return chunk;
+        }
+    }
+
+    /**
+     * Follows the log records of the scanned lines and tells whether each line
+     * belongs to a record written in the time window of the query. Lines before the
+     * first record of the file have no timestamp and are never in the window. When
+     * the query has no time window, every line is admitted.
+     */
+    private class TimeWindow
+    {
+        private final SimpleDateFormat format = RecordTimestamps.createFormat();
+
+        /**
+         * Timestamp of the record of the last line, -1 if none.
+         */
+        private long recordTimestamp;
+
+        /**
+         * @param recordTimestamp Timestamp of the record in progress at the start of
+         *        the scanned range, -1 if none.
+         */
+        TimeWindow(long recordTimestamp)
+        {
+            this.recordTimestamp = recordTimestamp;
+        }
+
+        /**
+         * @param line Next line of the range.
+         * @return true if the record of the line is in the window.
+         */
+        boolean admits(String line)
+        {
+            long timestamp = RecordTimestamps.parse(this.format, line);
+            if (timestamp >= 0)
+            {
+                this.recordTimestamp = timestamp;
+            }
+            if (!query.hasTimeRange())
+            {
+                return true;
+            }
+            return this.recordTimestamp >= 0 && this.recordTimestamp >= query.getSince()
+                && this.recordTimestamp < query.getUntil();
+        }
+    }
+
+    /**
+     * Position of a follow query in the followed file.
+     */
+    public static class FollowCursor
+    {
+        /**
+         * End of the last whole line searched.
+         */
+        private long offset;
+
+        /**
+         * Number of lines before offset, only counted when the query asks for line numbers.
+         */
+        private long lines;
+
+        /**
+         * Number of lines selected so far.
+         */
+        private long selectedLines;
+
+        /**
+         * Key of the followed file, null if unknown.
+         */
+        private Object fileKey;
+
+        private FollowCursor()
+        {
+        }
+
+        /**
+         * @return End of the last whole line searched.
+         */
+        public long getOffset()
+        {
+            return this.offset;
+        }
+
+        /**
+         * @return Number of lines selected so far.
+         */
+        public long getSelectedLines()
+        {
+            return this.selectedLines;
+        }
+    }
+
+    /**
+     * Result of scanning a byte range of the file.
+     */
+    static class RangeResult
+    {
+        /**
+         * Number of selected lines in the range.
+         */
+        long selectedLines;
+
+        /**
+         * Number of lines in the range, only counted when line numbers are needed.
+         */
+        long lineCount;
+
+        /**
+         * Offsets of the first and last selected lines, -1 if there is none.
+         */
+        long firstMatchOffset = -1;
+        long lastMatchOffset = -1;
+
+        /**
+         * Counts of the selected lines by group, null until a line is grouped.
+         */
+        GroupCounts groups;
+
+        /**
+         * Counts a selected line in its group.
+         * @param key Key of the group of the line.
+         */
+        void addGroup(String key)
+        {
+            if (this.groups == null)
+            {
+                this.groups = new GroupCounts();
+            }
+            this.groups.add(key, 1);
+        }
+
+        /**
+         * Adds the groups of a part of the range.
+         * @param other Counts of the part, null if it grouped no line.
+         */
+        void addGroups(GroupCounts other)
+        {
+            if (other == null)
+            {
+                return;
+            }
+            if (this.groups == null)
+            {
+                this.groups = other;
+                return;
+            }
+            this.groups.addAll(other);
+        }
+
+        /**
+         * Counts a selected line.
+         * @param byteOffset Offset of the selected line.
+         */
+        void addMatch(long byteOffset)
+        {
+            this.selectedLines++;
+            this.lastMatchOffset = byteOffset;
+            if (this.firstMatchOffset < 0)
+            {
+                this.firstMatchOffset = byteOffset;
+            }
+        }
+    }
+
+    /**
+     * Result of scanning a chunk, along with its selected lines.
+     */
+    static class ChunkResult extends RangeResult
+    {
+        final List<BufferedMatch> matches = new ArrayList<BufferedMatch>();
+    }
+
+    /**
+     * Selected line held until the chunks before it are delivered.
+     */
+    static class BufferedMatch
+    {
+        final long lineNumber;
+        final long byteOffset;
+        final String line;
+
+        BufferedMatch(long lineNumber, long byteOffset, String line)
+        {
+            this.lineNumber = lineNumber;
+            this.byteOffset = byteOffset;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Receiver of the lines read by readLines.
+     */
+    interface LineHandler
+    {
+        /**
+         * @param lineNumber Number of the line in the range, from 1.
+         * @param byteOffset Offset of the line in the file.
+         * @param line Decoded line, without its terminator.
+         * @return false to stop reading.
+         * @throws IOException if handling the line fails.
+         */
+        boolean onLine(long lineNumber, long byteOffset, String line) throws IOException;
+    }
+
+    /**
+     * @return Query being served.
+     */
+    public GrepQuery getQuery()
+    {
+        return this.query;
+    }
+
+    /**
+     * @return Max number of chunks of the file scanned at the same time.
+     */
+    int getParallelism()
+    {
+        return this.parallelism;
+    }
+
+    /**
+     * @return Size of a chunk in bytes.
+     */
+    long getChunkSize()
+    {
+        return this.chunkSize;
+    }
+
+    /**
+     * @return New matcher of the pattern of the query, for a thread of a shared scan.
+     */
+    Matcher newMatcher()
+    {
+        return this.pattern.matcher("");
+    }
+
+    /**
+     * @return true if the searches were stopped.
+     */
+    boolean isStopped()
+    {
+        return this.stopped;
+    }
+}
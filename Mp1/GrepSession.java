@@ -0,0 +1,372 @@
+/**
+ * Class for a long-lived connection from the client to one server.
+ * 
+ * @author Prateeth Reddy Chagari (chagari2@illinois.edu)
+ */
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A session carries many requests over one connection. Each request gets its own
+ * id and several requests can be in flight at once; a reader thread hands the
+ * frames sent by the server to the request they belong to. Sessions are kept in a
+ * pool and reused by the later queries to the same server.
+ */
+public class GrepSession {
+    /**
+     * session slots, by server address and port. Each slot is locked on its own so
+     * that the connections to different servers are set up in parallel.
+     */
+    private static final Map<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+
+    /**
+     * max number of frames buffered for a request which is not read yet.
+     */
+    private static final int REQUEST_QUEUE_SIZE = 256;
+
+    /**
+     * frame queued for the pending requests when the session closes.
+     */
+    private static final GrepProtocol.Frame SESSION_CLOSED = new GrepProtocol.Frame((byte) -1, 0, new byte[0]);
+
+    private final String name;
+    private final Socket socket;
+    private final DataInputStream inputStream;
+    private final DataOutputStream outputStream;
+
+    /**
+     * id of the next request.
+     */
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+
+    /**
+     * frame queues of the requests waiting for their trailer, by request id.
+     */
+    private final Map<Integer, BlockingQueue<GrepProtocol.Frame>> pendingRequests =
+        new ConcurrentHashMap<Integer, BlockingQueue<GrepProtocol.Frame>>();
+
+    /**
+     * ids of the requests given up by the client, whose frames are dropped until their trailer.
+     */
+    private final Set<Integer> abandonedRequests = ConcurrentHashMap.newKeySet();
+
+    /**
+     * time at which the session was last used.
+     */
+    private volatile long lastUsedMillis = System.currentTimeMillis();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Logger instance.
+     */
+    private GrepLogger logger = GrepLogger.getInstance();
+
+    /**
+     * Opens a session to a server.
+     * 
+     * @param address server address.
+     * @param port server port number.
+     * @throws IOException if the connection fails.
+     */
+    private GrepSession(String address, int port) throws IOException {
+        this.name = address + ":" + port;
+        this.socket = new Socket();
+        try {
+            this.socket.connect(new InetSocketAddress(address, port),
+                GrepConfig.getInstance().getInt("Connect_timeout_ms", 3000));
+            this.socket.setSoTimeout(100000);
+            this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            GrepProtocol.writeHandshake(this.outputStream);
+            this.outputStream.flush();
+        } catch (IOException e) {
+            this.socket.close();
+            throw e;
+        }
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readFrames();
+            }
+        }, "GrepSession-" + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Gets an open session to the server, connecting if there is none. Sessions
+     * without pending requests which were idle for half of Session_idle_timeout_ms
+     * are replaced, as the server may be about to close them. Connecting gives up after Connect_timeout_ms.
+     * 
+     * @param address server address.
+     * @param port server port number.
+     * @return open session.
+     * @throws IOException if the connection fails or times out.
+     */
+    public static GrepSession get(String address, int port) throws IOException {
+        String key = address + ":" + port;
+        Slot slot = slots.get(key);
+        if (slot == null) {
+            Slot created = new Slot();
+            slot = slots.putIfAbsent(key, created);
+            if (slot == null) {
+                slot = created;
+            }
+        }
+        return slot.get(address, port);
+    }
+
+    /**
+     * Opens a session to the server which is not shared with other queries, for
+     * queries that may pause reading their results. The caller closes it.
+     * 
+     * @param address server address.
+     * @param port server port number.
+     * @return open session.
+     * @throws IOException if the connection fails or times out.
+     */
+    public static GrepSession open(String address, int port) throws IOException {
+        return new GrepSession(address, port);
+    }
+
+    /**
+     * Closes all the sessions of the pool.
+     */
+    public static void closeAll() {
+        List<Slot> openSlots = new ArrayList<Slot>(slots.values());
+        slots.clear();
+        for (Slot slot : openSlots) {
+            slot.close();
+        }
+    }
+
+    /**
+     * Holds the session to one server.
+     */
+    private static class Slot {
+        private GrepSession session = null;
+
+        synchronized GrepSession get(String address, int port) throws IOException {
+            long maxIdleMillis = GrepConfig.getInstance().getLong("Session_idle_timeout_ms", 60000) / 2;
+            // a session with requests in flight is not idle, however long their results take
+            if (session != null && !session.closed && (!session.pendingRequests.isEmpty()
+                    || System.currentTimeMillis() - session.lastUsedMillis < maxIdleMillis)) {
+                session.lastUsedMillis = System.currentTimeMillis();
+                return session;
+            }
+            if (session != null) {
+                session.close();
+            }
+            session = new GrepSession(address, port);
+            return session;
+        }
+
+        synchronized void close() {
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Sends a request on the session.
+     * 
+     * @param logFileName log file to be searched.
+     * @param clientInput grep command given by the user.
+     * @param acceptedCodecs bit mask of the codecs accepted for the results.
+     * @return the request, to read its frames from.
+     * @throws IOException if sending fails.
+     */
+    public Request submit(String logFileName, String clientInput, byte acceptedCodecs) throws IOException {
+        int requestId = nextRequestId.getAndIncrement();
+        BlockingQueue<GrepProtocol.Frame> frames = new ArrayBlockingQueue<GrepProtocol.Frame>(REQUEST_QUEUE_SIZE);
+        pendingRequests.put(requestId, frames);
+        if (closed) {
+            pendingRequests.remove(requestId);
+            throw new EOFException("Session to " + name + " is closed.");
+        }
+
+        try {
+            GrepProtocol.writeRequest(outputStream, requestId, logFileName, clientInput, acceptedCodecs);
+        } catch (IOException e) {
+            pendingRequests.remove(requestId);
+            close();
+            throw e;
+        }
+        lastUsedMillis = System.currentTimeMillis();
+        return new Request(this, requestId, frames);
+    }
+
+    /**
+     * Reads the frames sent by the server and queues them for their request, until
+     * the session closes.
+     */
+    private void readFrames() {
+        try {
+            while (!closed) {
+                GrepProtocol.Frame frame;
+                try {
+                    frame = GrepProtocol.readFrame(inputStream);
+                } catch (SocketTimeoutException e) {
+                    if (pendingRequests.isEmpty()) {
+                        continue;
+                    }
+                    throw e;
+                }
+
+                BlockingQueue<GrepProtocol.Frame> frames = pendingRequests.get(frame.requestId);
+                if (frames == null && abandonedRequests.contains(frame.requestId)) {
+                    if (frame.type == GrepProtocol.FRAME_TRAILER) {
+                        abandonedRequests.remove(frame.requestId);
+                    }
+                    continue;
+                }
+                if (frames == null) {
+                    logger.LogWarning("[Client] Dropping frame of unknown request " + frame.requestId + " from " + name);
+                    continue;
+                }
+                frames.put(frame);
+                if (frame.type == GrepProtocol.FRAME_TRAILER) {
+                    pendingRequests.remove(frame.requestId);
+                }
+                lastUsedMillis = System.currentTimeMillis();
+            }
+        } catch (EOFException e) {
+            logger.LogInfo("[Client] Session to " + name + " closed by the server.");
+        } catch (Exception e) {
+            if (!closed) {
+                logger.LogException("[Client] Session to " + name + " failed.", e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stops delivering the frames of a request the client no longer waits for, and
+     * asks the server to stop it so that it does not keep searching for nobody.
+     * 
+     * @param requestId id of the request.
+     */
+    private void abandon(int requestId) {
+        stop(requestId);
+        abandonedRequests.add(requestId);
+        if (pendingRequests.remove(requestId) == null) {
+            // the trailer already arrived
+            abandonedRequests.remove(requestId);
+        }
+    }
+
+    /**
+     * Asks the server to stop a request early. Its frames keep coming until its
+     * trailer, which tells how many lines the server found before stopping.
+     * 
+     * @param requestId id of the request.
+     */
+    private void stop(int requestId) {
+        if (closed || !pendingRequests.containsKey(requestId)) {
+            return;
+        }
+        try {
+            GrepProtocol.writeStop(outputStream, requestId);
+        } catch (IOException e) {
+            logger.LogWarning("[Client] Failed to stop request " + requestId + " on " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the session. Requests which are still pending get SESSION_CLOSED.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.LogWarning("[Client] Failed to close session to " + name + ": " + e.getMessage());
+        }
+        for (BlockingQueue<GrepProtocol.Frame> frames : pendingRequests.values()) {
+            frames.clear();
+            frames.offer(SESSION_CLOSED);
+        }
+        pendingRequests.clear();
+    }
+
+    /**
+     * @return server address and port of the session.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * A request sent on the session.
+     */
+    public static class Request {
+        private final int requestId;
+        private final BlockingQueue<GrepProtocol.Frame> frames;
+
+        private final GrepSession session;
+
+        Request(GrepSession session, int requestId, BlockingQueue<GrepProtocol.Frame> frames) {
+            this.session = session;
+            this.requestId = requestId;
+            this.frames = frames;
+        }
+
+        /**
+         * Gives up the request, its remaining frames are dropped.
+         */
+        public void abandon() {
+            session.abandon(requestId);
+            frames.clear();
+        }
+
+        /**
+         * Asks the server to stop the request, its trailer still comes.
+         */
+        public void stop() {
+            session.stop(requestId);
+        }
+
+        /**
+         * Waits for the next frame of the request.
+         * 
+         * @return next frame.
+         * @throws EOFException if the session closed before the request completed.
+         * @throws InterruptedIOException if the wait is interrupted.
+         */
+        public GrepProtocol.Frame nextFrame() throws IOException {
+            GrepProtocol.Frame frame;
+            try {
+                frame = frames.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for request " + requestId);
+            }
+            if (frame == SESSION_CLOSED) {
+                throw new EOFException("Session closed before request " + requestId + " completed.");
+            }
+            return frame;
+        }
+
+        public int getRequestId() {
+            return requestId;
+        }
+    }
+}
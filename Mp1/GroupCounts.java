@@ -0,0 +1,298 @@
+/**
+ * Counts of the selected lines of a --group-by query by group key.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Number of selected lines for each key captured by the group of a --group-by
+ * query. The keys are held in an open addressing hash table next to an array of
+ * long counts, so that counting a line whose key was seen allocates nothing.
+ * Servers send their largest groups along with the totals of the groups they left
+ * out, and the client adds up the groups of all the VMs.
+ */
+public class GroupCounts
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Keys of the table, null in empty slots, and the count of each key.
+     */
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private long[] counts = new long[INITIAL_CAPACITY];
+
+    /**
+     * Number of keys in the table.
+     */
+    private int size = 0;
+
+    /**
+     * Number of groups left out by top, and their lines.
+     */
+    private long omittedGroups = 0;
+    private long omittedLines = 0;
+
+    /**
+     * Upper bound of the lines of any group which are missing from its count,
+     * because a VM left the group out of its top groups.
+     */
+    private long missingBound = 0;
+
+    /**
+     * Adds lines to a group.
+     *
+     * @param key Key of the group.
+     * @param count Number of lines.
+     */
+    public void add(String key, long count)
+    {
+        int slot = this.slotOf(key);
+        if (this.keys[slot] == null)
+        {
+            this.keys[slot] = key;
+            this.size++;
+            if (this.size * 2 > this.keys.length)
+            {
+                this.counts[slot] = count;
+                this.resize();
+                return;
+            }
+        }
+        this.counts[slot] += count;
+    }
+
+    /**
+     * Adds the groups of other counts, along with the groups they left out.
+     *
+     * @param other Counts to be added.
+     */
+    public void addAll(GroupCounts other)
+    {
+        for (int i = 0; i < other.keys.length; i++)
+        {
+            if (other.keys[i] != null)
+            {
+                this.add(other.keys[i], other.counts[i]);
+            }
+        }
+        this.omittedGroups += other.omittedGroups;
+        this.omittedLines += other.omittedLines;
+        this.missingBound += other.missingBound;
+    }
+
+    /**
+     * Keeps the largest groups. The others are only counted, and their largest
+     * count bounds what a group missing here may lack once added to other counts.
+     *
+     * @param limit Number of groups kept, negative to keep them all.
+     * @return Counts of the largest groups, or these counts if there are no more groups than the limit.
+     */
+    public GroupCounts top(int limit)
+    {
+        if (limit < 0 || this.size <= limit)
+        {
+            return this;
+        }
+
+        List<Group> groups = this.sorted();
+        GroupCounts top = new GroupCounts();
+        for (int i = 0; i < limit; i++)
+        {
+            top.add(groups.get(i).key, groups.get(i).count);
+        }
+
+        top.omittedGroups = this.omittedGroups + groups.size() - limit;
+        top.omittedLines = this.omittedLines;
+        for (int i = limit; i < groups.size(); i++)
+        {
+            top.omittedLines += groups.get(i).count;
+        }
+        top.missingBound = Math.max(this.missingBound, groups.get(limit).count);
+        return top;
+    }
+
+    /**
+     * @return Groups by decreasing count, then by key.
+     */
+    public List<Group> sorted()
+    {
+        List<Group> groups = new ArrayList<Group>(this.size);
+        for (int i = 0; i < this.keys.length; i++)
+        {
+            if (this.keys[i] != null)
+            {
+                groups.add(new Group(this.keys[i], this.counts[i]));
+            }
+        }
+
+        Collections.sort(groups, new Comparator<Group>()
+        {
+            @Override
+            public int compare(Group first, Group second)
+            {
+                int byCount = Long.compare(second.count, first.count);
+                return (byCount != 0) ? byCount : first.key.compareTo(second.key);
+            }
+        });
+        return groups;
+    }
+
+    /**
+     * Writes the counts to a frame payload.
+     *
+     * @param out Payload stream.
+     * @throws IOException if writing fails.
+     */
+    public void write(DataOutputStream out) throws IOException
+    {
+        out.writeInt(this.size);
+        for (int i = 0; i < this.keys.length; i++)
+        {
+            if (this.keys[i] != null)
+            {
+                GrepProtocol.writeString(out, this.keys[i]);
+                out.writeLong(this.counts[i]);
+            }
+        }
+        out.writeLong(this.omittedGroups);
+        out.writeLong(this.omittedLines);
+        out.writeLong(this.missingBound);
+    }
+
+    /**
+     * Reads counts written by write.
+     *
+     * @param in Payload stream.
+     * @return Counts read.
+     * @throws IOException if reading fails.
+     */
+    public static GroupCounts read(DataInputStream in) throws IOException
+    {
+        GroupCounts groups = new GroupCounts();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++)
+        {
+            groups.add(GrepProtocol.readString(in), in.readLong());
+        }
+        groups.omittedGroups = in.readLong();
+        groups.omittedLines = in.readLong();
+        groups.missingBound = in.readLong();
+        return groups;
+    }
+
+    /**
+     * @return Number of groups counted.
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * @return Number of lines of all the groups, including the ones left out.
+     */
+    public long getTotal()
+    {
+        long total = this.omittedLines;
+        for (int i = 0; i < this.keys.length; i++)
+        {
+            if (this.keys[i] != null)
+            {
+                total += this.counts[i];
+            }
+        }
+        return total;
+    }
+
+    public long getOmittedGroups()
+    {
+        return this.omittedGroups;
+    }
+
+    public long getOmittedLines()
+    {
+        return this.omittedLines;
+    }
+
+    public long getMissingBound()
+    {
+        return this.missingBound;
+    }
+
+    /**
+     * Finds the slot of a key, or the empty slot where it would go.
+     *
+     * @param key Key of a group.
+     * @return Slot in the table.
+     */
+    private int slotOf(String key)
+    {
+        int hash = key.hashCode();
+        int mask = this.keys.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (this.keys[slot] != null && !this.keys[slot].equals(key))
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Doubles the table once it is half full.
+     */
+    private void resize()
+    {
+        String[] oldKeys = this.keys;
+        long[] oldCounts = this.counts;
+        this.keys = new String[oldKeys.length * 2];
+        this.counts = new long[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++)
+        {
+            if (oldKeys[i] != null)
+            {
+                int slot = this.slotOf(oldKeys[i]);
+                this.keys[slot] = oldKeys[i];
+                this.counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    /**
+     * Key of a group and its number of lines.
+     */
+    public static class Group
+    {
+        private final String key;
+        private final long count;
+
+        Group(String key, long count)
+        {
+            this.key = key;
+            this.count = count;
+        }
+
+        public String getKey()
+        {
+            return this.key;
+        }
+
+        public long getCount()
+        {
+            return this.count;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.count + " " + this.key;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * Index of the strings of the blocks of a log file.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records which sequences of three bytes (trigrams) each block of a log file
+ * contains, so that a query only scans the blocks which hold every trigram of a
+ * string its selected lines contain. ASCII letters are folded to lower case so
+ * that the index also serves case insensitive queries. How the trigrams of the
+ * blocks are stored is up to the subclasses.
+ */
+public abstract class LiteralIndex extends BlockIndex
+{
+    /**
+     * Size of the read buffer used while indexing.
+     */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    protected LiteralIndex(Blocks blocks)
+    {
+        super(blocks);
+    }
+
+    /**
+     * Gets the blocks which may hold lines matching the query.
+     *
+     * @param requiredLiterals For each pattern of the query the strings a line
+     *        matching it contains, as returned by GrepQuery.getRequiredLiterals().
+     * @return Candidate blocks in file order.
+     */
+    public abstract List<Block> candidateBlocks(List<List<String>> requiredLiterals);
+
+    /**
+     * Gets the trigrams of the strings required by each pattern of a query.
+     *
+     * @param requiredLiterals For each pattern the strings a line matching it contains.
+     * @return For each pattern the trigrams of all its strings, folded.
+     */
+    protected static List<int[]> trigramsOf(List<List<String>> requiredLiterals)
+    {
+        List<int[]> patternTrigrams = new ArrayList<int[]>();
+        for (List<String> literals : requiredLiterals)
+        {
+            int[] trigrams = new int[0];
+            for (String literal : literals)
+            {
+                byte[] bytes = literal.getBytes(StandardCharsets.UTF_8);
+                int count = trigrams.length;
+                trigrams = Arrays.copyOf(trigrams, count + Math.max(bytes.length - 2, 0));
+                for (int i = 0; i + 3 <= bytes.length; i++)
+                {
+                    trigrams[count + i] = (fold(bytes[i]) << 16) | (fold(bytes[i + 1]) << 8) | fold(bytes[i + 2]);
+                }
+            }
+            patternTrigrams.add(trigrams);
+        }
+        return patternTrigrams;
+    }
+
+    /**
+     * @param b Byte.
+     * @return Unsigned value of the byte, ASCII upper case letters folded to lower case.
+     */
+    private static int fold(byte b)
+    {
+        int value = b & 0xFF;
+        return (value >= 'A' && value <= 'Z') ? value + ('a' - 'A') : value;
+    }
+
+    /**
+     * Reads the whole lines of the log file after the ones covered by the base index,
+     * splits them into blocks and passes the trigrams of each block to the visitor.
+     *
+     * @param logFile Log file.
+     * @param blockSize Approximate size of a block in bytes.
+     * @param base Index of the start of the file, null to read the whole file.
+     * @param visitor Receiver of the trigrams of each block, in file order.
+     * @return The blocks of the base followed by the new ones, or null if no whole
+     *         line was appended after the base.
+     * @throws IOException if the log cannot be read.
+     */
+    protected static Blocks scan(File logFile, int blockSize, BlockIndex base, BlockVisitor visitor)
+        throws IOException
+    {
+        long start = (base == null) ? 0 : base.blocks.indexedLength;
+        long lines = (base == null) ? 0 : base.blocks.indexedLines;
+        int blockId = (base == null) ? 0 : base.blocks.starts.length;
+        List<Long> blockStarts = new ArrayList<Long>();
+        List<Long> linesBefore = new ArrayList<Long>();
+        TrigramSet blockTrigrams = new TrigramSet();
+        long wholeLinesEnd = start;
+
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "r");
+             FileChannel channel = file.getChannel())
+        {
+            long length = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = start;
+            long blockStart = start;
+            // Last two bytes before the buffer, folded, -1 at a line or block start.
+            int previous2 = -1;
+            int previous1 = -1;
+            blockStarts.add(start);
+            linesBefore.add(lines);
+
+            while (position < length)
+            {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0)
+                {
+                    break;
+                }
+
+                byte[] bytes = buffer.array();
+                for (int i = 0; i < read; i++)
+                {
+                    int b = fold(bytes[i]);
+                    if (b == '\n')
+                    {
+                        lines++;
+                        wholeLinesEnd = position + i + 1;
+                        previous2 = -1;
+                        previous1 = -1;
+                        if (position + i + 1 - blockStart >= blockSize && position + i + 1 < length)
+                        {
+                            visitor.visit(blockId, blockTrigrams);
+                            blockTrigrams.clear();
+                            blockId++;
+                            blockStart = position + i + 1;
+                            blockStarts.add(blockStart);
+                            linesBefore.add(lines);
+                        }
+                        continue;
+                    }
+
+                    if (previous2 >= 0)
+                    {
+                        blockTrigrams.add((previous2 << 16) | (previous1 << 8) | b);
+                    }
+                    previous2 = previous1;
+                    previous1 = b;
+                }
+                position += read;
+            }
+
+            if (base != null && wholeLinesEnd == start)
+            {
+                return null;
+            }
+            visitor.visit(blockId, blockTrigrams);
+
+            return new Blocks(wholeLinesEnd, lines, anchorChecksum(channel, wholeLinesEnd),
+                concat((base == null) ? new long[0] : base.blocks.starts, blockStarts),
+                concat((base == null) ? new long[0] : base.blocks.linesBefore, linesBefore));
+        }
+    }
+
+    /**
+     * Receives the trigrams of each block while a log file is indexed.
+     */
+    protected interface BlockVisitor
+    {
+        /**
+         * @param blockId Id of the block.
+         * @param trigrams Distinct trigrams of the block, only valid during the call.
+         */
+        void visit(int blockId, TrigramSet trigrams);
+    }
+
+    /**
+     * Set of the distinct trigrams of a block, with open addressing.
+     */
+    protected static class TrigramSet
+    {
+        private int[] slots = new int[1 << 16];
+        private int[] members = new int[1 << 12];
+        private int size = 0;
+
+        TrigramSet()
+        {
+            Arrays.fill(this.slots, -1);
+        }
+
+        int size()
+        {
+            return this.size;
+        }
+
+        /**
+         * @param index Index of a member, from 0 to size() - 1.
+         * @return The trigram.
+         */
+        int get(int index)
+        {
+            return this.members[index];
+        }
+
+        void add(int trigram)
+        {
+            int mask = this.slots.length - 1;
+            int slot = slotOf(trigram, mask);
+            while (this.slots[slot] != -1)
+            {
+                if (this.slots[slot] == trigram)
+                {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            this.slots[slot] = trigram;
+            if (this.size == this.members.length)
+            {
+                this.members = Arrays.copyOf(this.members, this.size * 2);
+            }
+            this.members[this.size++] = trigram;
+            if (this.size * 2 > this.slots.length)
+            {
+                this.grow();
+            }
+        }
+
+        void clear()
+        {
+            // All the members are removed, so clearing their slots one by one leaves
+            // no broken probe chains. Large sets reset the whole table instead.
+            if (this.size > this.slots.length / 8)
+            {
+                Arrays.fill(this.slots, -1);
+            }
+            else
+            {
+                int mask = this.slots.length - 1;
+                for (int i = 0; i < this.size; i++)
+                {
+                    int slot = slotOf(this.members[i], mask);
+                    while (this.slots[slot] != this.members[i])
+                    {
+                        slot = (slot + 1) & mask;
+                    }
+                    this.slots[slot] = -1;
+                }
+            }
+            this.size = 0;
+        }
+
+        private static int slotOf(int trigram, int mask)
+        {
+            int hash = trigram * 0x9E3779B1;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+
+        private void grow()
+        {
+            int[] members = Arrays.copyOf(this.members, this.size);
+            this.slots = new int[this.slots.length * 2];
+            Arrays.fill(this.slots, -1);
+            int count = this.size;
+            this.size = 0;
+            for (int i = 0; i < count; i++)
+            {
+                this.add(members[i]);
+            }
+        }
+    }
+}
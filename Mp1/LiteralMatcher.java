@@ -0,0 +1,174 @@
+/**
+ * Byte level matcher for fixed string patterns.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds a fixed string in raw bytes with the Boyer-Moore-Horspool algorithm. The
+ * case-insensitive variant folds ASCII letters only.
+ */
+public class LiteralMatcher
+{
+    /**
+     * Maps every byte to its ASCII lower case.
+     */
+    private static final byte[] FOLD = new byte[256];
+
+    static
+    {
+        for (int b = 0; b < 256; b++)
+        {
+            FOLD[b] = (byte) ((b >= 'A' && b <= 'Z') ? (b | 0x20) : b);
+        }
+    }
+
+    /**
+     * UTF-8 bytes of the pattern, folded when case is ignored.
+     */
+    private final byte[] pattern;
+
+    /**
+     * Distance to shift the pattern for each value of the last byte of the window.
+     */
+    private final int[] shift = new int[256];
+
+    /**
+     * Whether ASCII case is ignored.
+     */
+    private final boolean ignoreCase;
+
+    /**
+     * Constructor for the class LiteralMatcher.
+     *
+     * @param pattern Pattern bytes.
+     * @param ignoreCase Whether ASCII case is ignored.
+     */
+    private LiteralMatcher(byte[] pattern, boolean ignoreCase)
+    {
+        this.ignoreCase = ignoreCase;
+        this.pattern = pattern;
+        if (ignoreCase)
+        {
+            for (int i = 0; i < pattern.length; i++)
+            {
+                pattern[i] = FOLD[pattern[i] & 0xff];
+            }
+        }
+
+        int last = pattern.length - 1;
+        for (int b = 0; b < 256; b++)
+        {
+            this.shift[b] = pattern.length;
+        }
+
+        for (int i = 0; i < last; i++)
+        {
+            this.shift[pattern[i] & 0xff] = last - i;
+        }
+    }
+
+    /**
+     * Creates a matcher for the literal.
+     *
+     * @param literal Fixed string to be found.
+     * @param ignoreCase Whether case is ignored.
+     * @return Matcher, or null if the literal is empty or case is ignored for non-ASCII
+     *         text or for a letter which also matches a non-ASCII letter.
+     */
+    public static LiteralMatcher create(String literal, boolean ignoreCase)
+    {
+        if (literal.isEmpty())
+        {
+            return null;
+        }
+
+        for (int i = 0; i < literal.length(); i++)
+        {
+            char c = literal.charAt(i);
+            if (c == '\n' || (ignoreCase && c > 0x7f))
+            {
+                return null;
+            }
+            // The regex folds k, s and i to the Kelvin sign, the long s and the dotted
+            // and dotless i too, which the ASCII folding would miss.
+            if (ignoreCase && "kKsSiI".indexOf(c) >= 0)
+            {
+                return null;
+            }
+        }
+
+        return new LiteralMatcher(literal.getBytes(StandardCharsets.UTF_8), ignoreCase);
+    }
+
+    /**
+     * Finds the first occurrence of the pattern in the buffer.
+     *
+     * @param buffer Buffer to be searched, read with absolute gets.
+     * @param from Start index, inclusive.
+     * @param to End index, exclusive.
+     * @return Index of the start of the occurrence, or -1 if not found.
+     */
+    public int indexOf(ByteBuffer buffer, int from, int to)
+    {
+        byte[] pattern = this.pattern;
+        int last = pattern.length - 1;
+        byte lastByte = pattern[last];
+
+        for (int position = from; position + last < to; )
+        {
+            int b = buffer.get(position + last) & 0xff;
+            if (this.ignoreCase)
+            {
+                b = FOLD[b] & 0xff;
+            }
+
+            if ((byte) b == lastByte && this.matchesAt(buffer, position, last))
+            {
+                return position;
+            }
+
+            position += this.shift[b];
+        }
+
+        return -1;
+    }
+
+    /**
+     * Compares the first bytes of the pattern with the buffer.
+     *
+     * @param buffer Buffer to be compared.
+     * @param position Index of the buffer to compare the pattern at.
+     * @param length Number of bytes to compare.
+     * @return true if the bytes are equal.
+     */
+    private boolean matchesAt(ByteBuffer buffer, int position, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            byte b = buffer.get(position + i);
+            if (this.ignoreCase)
+            {
+                b = FOLD[b & 0xff];
+            }
+
+            if (b != this.pattern[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return Length of the pattern in bytes.
+     */
+    public int length()
+    {
+        return this.pattern.length;
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Expands the log file names of a request.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A request names its log files as a comma separated list, each entry a file name
+ * or a glob such as vm3.log* which also picks up the rotated logs vm3.log.1,
+ * vm3.log.2 and so on. Wildcards (*, ?, [...] and {a,b}) are only allowed in the
+ * last component of an entry. The index files kept by the server next to the logs
+ * are never picked.
+ */
+public class LogFiles
+{
+    private LogFiles()
+    {
+    }
+
+    /**
+     * @param names Log file names of a request.
+     * @return true if the names are a single file name, without a list or wildcards.
+     */
+    public static boolean isSingleFile(String names)
+    {
+        return names.indexOf(',') < 0 && !hasWildcard(names);
+    }
+
+    /**
+     * Expands the log file names of a request into the files they name.
+     *
+     * @param names Log file names of the request.
+     * @return Existing files, sorted by path, each once. Names of missing files and
+     *         globs matching nothing add no file.
+     * @throws IllegalArgumentException if a glob is malformed or has wildcards before its last component.
+     */
+    public static List<File> expand(String names) throws IllegalArgumentException
+    {
+        Set<File> files = new LinkedHashSet<File>();
+        for (String entry : splitList(names))
+        {
+            if (!hasWildcard(entry))
+            {
+                File file = new File(entry);
+                if (file.isFile())
+                {
+                    files.add(file);
+                }
+                continue;
+            }
+
+            int separator = Math.max(entry.lastIndexOf('/'), entry.lastIndexOf(File.separatorChar));
+            String directoryName = (separator < 0) ? null : entry.substring(0, separator + 1);
+            String glob = entry.substring(separator + 1);
+            if (directoryName != null && hasWildcard(directoryName))
+            {
+                throw new IllegalArgumentException("Wildcards are only allowed in the file name: " + entry);
+            }
+
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            File[] candidates = new File((directoryName == null) ? "." : directoryName).listFiles();
+            if (candidates == null)
+            {
+                continue;
+            }
+
+            for (File candidate : candidates)
+            {
+                if (candidate.isFile() && !LogIndexes.isIndexFile(candidate)
+                    && matcher.matches(Paths.get(candidate.getName())))
+                {
+                    files.add(new File(directoryName, candidate.getName()));
+                }
+            }
+        }
+
+        List<File> sorted = new ArrayList<File>(files);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Splits the names on the commas which are not in a {a,b} group.
+     *
+     * @param names Log file names of a request.
+     * @return Non-empty entries of the list.
+     */
+    private static List<String> splitList(String names)
+    {
+        List<String> entries = new ArrayList<String>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= names.length(); i++)
+        {
+            char c = (i < names.length()) ? names.charAt(i) : ',';
+            if (c == '{')
+            {
+                depth++;
+            }
+            else if (c == '}' && depth > 0)
+            {
+                depth--;
+            }
+            else if (c == ',' && (depth == 0 || i == names.length()))
+            {
+                String entry = names.substring(start, i).trim();
+                if (!entry.isEmpty())
+                {
+                    entries.add(entry);
+                }
+                start = i + 1;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @param name File name or glob.
+     * @return true if the name has glob wildcards.
+     */
+    private static boolean hasWildcard(String name)
+    {
+        for (int i = 0; i < name.length(); i++)
+        {
+            if ("*?[{".indexOf(name.charAt(i)) >= 0)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
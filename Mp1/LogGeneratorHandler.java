@@ -6,12 +6,13 @@
  */
 
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
 
 /**
  * Class handles the client requests of generating the logs.
  */
-public class LogGeneratorHandler extends Thread
+public class LogGeneratorHandler implements Runnable
 {
     /**
      * Client socket.
@@ -45,7 +46,7 @@ public class LogGeneratorHandler extends Thread
     }
 
     /**
-     * Overrides the run method of Thread class. This serves the client requested operations.
+     * Serves the client on the thread started by the ServerHandler. This serves the client requested operations.
      * {@inheritDoc}
      */
     @Override
@@ -56,20 +57,33 @@ public class LogGeneratorHandler extends Thread
         /**
          * Server serves client requests as follows:
          * 1) Reads the patterns serialized string(format has been shared by both client and server) 
-         *    via socket input stream.
+         *    from the REQUEST frame via socket input stream.
          * 2) Generates the log file.
-         * 3) Sends ACK message "Log file generated to client."
+         * 3) Sends ACK message "Log file generated to client." in a BATCH frame, followed by
+         *    the TRAILER frame.
          * 4) Closes all the resources used in serving the client.
          */
         try 
         {
+            byte version = GrepProtocol.readHandshake(this.socketInputStream);
+            GrepProtocol.Frame frame = GrepProtocol.readFrame(this.socketInputStream,
+                this.socketInputStream.readByte(), GrepProtocol.MAX_REQUEST_BYTES);
+            if (version != GrepProtocol.VERSION || frame.type != GrepProtocol.FRAME_REQUEST)
+            {
+                throw new ProtocolException("Unsupported protocol version " + version + " or frame " + frame.type);
+            }
+
             // Reads the patterns and number of lines to be there in generated logs.
             // The pattern is being shared with client which calls this server.
             // Expected format : "pattern1=count,pattern2=count,...."
-            String dummyLogFileName = this.socketInputStream.readUTF();
-            String patternsSerializedString = this.socketInputStream.readUTF();
+            DataInputStream request = frame.payloadStream();
+            String dummyLogFileName = GrepProtocol.readString(request);
+            String patternsSerializedString = GrepProtocol.readString(request);
             GrepLogger.generateLogs(dummyLogFileName, patternsSerializedString);
-            this.socketOutputStream.writeUTF("Log file generated"); 
+
+            ResultBatchWriter resultWriter = new ResultBatchWriter(this.socketOutputStream, frame.requestId, "");
+            resultWriter.writeLine("Log file generated");
+            resultWriter.finish();
             logger.LogInfo("[LogGenerator] Client request has been served.");
         } 
         catch (Exception ex) 
@@ -0,0 +1,505 @@
+/**
+ * Keeps the block indexes of the log files.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the indexes of the log files and keeps the recently used ones in memory.
+ * The log files whose index is in memory are watched: every Index_update_ms the
+ * lines appended to them are indexed in the background, once there is at least a
+ * block of them. Queries scan the lines which are not indexed yet along with the
+ * blocks picked by the index, so a query never waits for indexing. A log file
+ * which was replaced rather than appended to is scanned whole while it is indexed
+ * again. Logs smaller than Index_min_file_kb are not indexed.
+ *
+ * A log file may have two indexes, each built on the first query which needs it:
+ * the literal index, a TrigramIndex or a BloomIndex as picked by Index_type, and
+ * the TimeIndex for the queries bounded in time.
+ */
+public class LogIndexes
+{
+    /**
+     * Single instance of the class.
+     */
+    private static final LogIndexes instance = new LogIndexes();
+
+    /**
+     * Kinds of indexes.
+     */
+    private enum Kind
+    {
+        TRIGRAM(TrigramIndex.INDEX_SUFFIX)
+        {
+            @Override
+            BlockIndex read(File logFile) throws IOException
+            {
+                return TrigramIndex.read(logFile);
+            }
+
+            @Override
+            BlockIndex build(File logFile, int blockSize) throws IOException
+            {
+                return TrigramIndex.build(logFile, blockSize);
+            }
+        },
+        BLOOM(BloomIndex.INDEX_SUFFIX)
+        {
+            @Override
+            BlockIndex read(File logFile) throws IOException
+            {
+                return BloomIndex.read(logFile);
+            }
+
+            @Override
+            BlockIndex build(File logFile, int blockSize) throws IOException
+            {
+                return BloomIndex.build(logFile, blockSize);
+            }
+        },
+        TIME(TimeIndex.INDEX_SUFFIX)
+        {
+            @Override
+            BlockIndex read(File logFile) throws IOException
+            {
+                return TimeIndex.read(logFile);
+            }
+
+            @Override
+            BlockIndex build(File logFile, int blockSize) throws IOException
+            {
+                return TimeIndex.build(logFile, blockSize);
+            }
+        };
+
+        /**
+         * Suffix of the index file name.
+         */
+        final String suffix;
+
+        Kind(String suffix)
+        {
+            this.suffix = suffix;
+        }
+
+        abstract BlockIndex read(File logFile) throws IOException;
+
+        abstract BlockIndex build(File logFile, int blockSize) throws IOException;
+    }
+
+    /**
+     * Whether the indexes are used, from the Index_enabled setting.
+     */
+    private final boolean enabled;
+
+    /**
+     * Kind of the literal index, from the Index_type setting.
+     */
+    private final Kind literalKind;
+
+    /**
+     * Size of a literal index block in bytes, from the Index_block_kb setting.
+     */
+    private final int blockSize;
+
+    /**
+     * Size of a time index block in bytes, from the Time_index_block_kb setting.
+     */
+    private final int timeBlockSize;
+
+    /**
+     * Size of the smallest indexed log file in bytes, from the Index_min_file_kb setting.
+     */
+    private final long minFileSize;
+
+    /**
+     * Loaded indexes by the path of their index file, least recently used first.
+     */
+    private final Map<String, BlockIndex> loaded;
+
+    /**
+     * Paths of the index files being built or extended.
+     */
+    private final Set<String> updating = new HashSet<String>();
+
+    /**
+     * Builds and extends the indexes one at a time, so that indexing does not
+     * compete with the queries, and runs the watcher.
+     */
+    private final ScheduledExecutorService indexer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread thread = new Thread(task, "Indexer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    /**
+     * Logger instance.
+     */
+    private final GrepLogger logger = GrepLogger.getInstance();
+
+    private LogIndexes()
+    {
+        GrepConfig config = GrepConfig.getInstance();
+        this.enabled = config.getBoolean("Index_enabled", true);
+        this.literalKind = config.getString("Index_type", "trigram").equalsIgnoreCase("bloom")
+            ? Kind.BLOOM : Kind.TRIGRAM;
+        this.blockSize = Math.max(config.getInt("Index_block_kb", 64), 1) << 10;
+        this.timeBlockSize = Math.max(config.getInt("Time_index_block_kb", 256), 1) << 10;
+        this.minFileSize = config.getLong("Index_min_file_kb", 1024) << 10;
+        final int cacheSize = Math.max(config.getInt("Index_cache_files", 16), 1);
+        this.loaded = new LinkedHashMap<String, BlockIndex>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BlockIndex> eldest)
+            {
+                return this.size() > cacheSize;
+            }
+        };
+
+        long updateMillis = Math.max(config.getLong("Index_update_ms", 5000), 100);
+        if (this.enabled)
+        {
+            this.indexer.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    watch();
+                }
+            }, updateMillis, updateMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return Single instance of the class.
+     */
+    public static LogIndexes getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * @return true if the indexes are used, from the Index_enabled setting.
+     */
+    public boolean isEnabled()
+    {
+        return this.enabled;
+    }
+
+    /**
+     * @param file A file.
+     * @return true if the file is an index file, or one being written, rather than a log.
+     */
+    public static boolean isIndexFile(File file)
+    {
+        String name = file.getName();
+        if (name.endsWith(".tmp"))
+        {
+            name = name.substring(0, name.length() - ".tmp".length());
+        }
+
+        for (Kind kind : Kind.values())
+        {
+            if (name.endsWith(kind.suffix))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the literal index of a log file, and starts building it if there is none.
+     *
+     * @param logFile Log file.
+     * @return Index of the start of the file, or null if there is none yet. The
+     *         lines after getIndexedLength() are not indexed.
+     */
+    public LiteralIndex get(File logFile)
+    {
+        return (LiteralIndex) this.get(logFile, this.literalKind);
+    }
+
+    /**
+     * Gets the time index of a log file, and starts building it if there is none.
+     *
+     * @param logFile Log file.
+     * @return Index of the start of the file, or null if there is none yet. The
+     *         lines after getIndexedLength() are not indexed.
+     */
+    public TimeIndex getTimeIndex(File logFile)
+    {
+        return (TimeIndex) this.get(logFile, Kind.TIME);
+    }
+
+    /**
+     * Gets the literal index of a log file if it is in memory, without reading or
+     * building one, for deciding how cheap a query is before it runs.
+     *
+     * @param logFile Log file.
+     * @return Index of the start of the file, or null if none is in memory.
+     */
+    public LiteralIndex peek(File logFile)
+    {
+        return (LiteralIndex) this.peek(logFile, this.literalKind);
+    }
+
+    /**
+     * Gets the time index of a log file if it is in memory, without reading or
+     * building one.
+     *
+     * @param logFile Log file.
+     * @return Index of the start of the file, or null if none is in memory.
+     */
+    public TimeIndex peekTimeIndex(File logFile)
+    {
+        return (TimeIndex) this.peek(logFile, Kind.TIME);
+    }
+
+    /**
+     * Gets an index of a log file if it is in memory.
+     *
+     * @param logFile Log file.
+     * @param kind Kind of the index.
+     * @return Index of the start of the file, or null if none is in memory or the
+     *         file is shorter than the part indexed.
+     */
+    private synchronized BlockIndex peek(File logFile, Kind kind)
+    {
+        if (!this.enabled)
+        {
+            return null;
+        }
+
+        BlockIndex index = this.loaded.get(logFile.getAbsolutePath() + kind.suffix);
+        return (index == null || index.getIndexedLength() > logFile.length()) ? null : index;
+    }
+
+    /**
+     * Gets an index of a log file, and starts building it if there is none.
+     *
+     * @param logFile Log file.
+     * @param kind Kind of the index.
+     * @return Index of the start of the file, or null if there is none yet.
+     */
+    private BlockIndex get(File logFile, Kind kind)
+    {
+        if (!this.enabled || logFile.length() < this.minFileSize)
+        {
+            return null;
+        }
+
+        String key = logFile.getAbsolutePath() + kind.suffix;
+        BlockIndex index;
+        synchronized (this)
+        {
+            index = this.loaded.get(key);
+            if (index == null && this.updating.contains(key))
+            {
+                return null;
+            }
+        }
+
+        if (index == null)
+        {
+            // An index left on disk by an earlier run covers the lines written until then.
+            index = this.read(logFile, kind);
+            if (index != null)
+            {
+                synchronized (this)
+                {
+                    this.loaded.put(key, index);
+                }
+            }
+        }
+
+        if (index == null || !index.isPrefixOf(logFile))
+        {
+            this.scheduleUpdate(logFile, kind);
+            return null;
+        }
+
+        if (logFile.length() - index.getIndexedLength() >= this.blockSizeOf(kind))
+        {
+            this.scheduleUpdate(logFile, kind);
+        }
+        return index;
+    }
+
+    /**
+     * @param kind Kind of an index.
+     * @return Size of its blocks in bytes.
+     */
+    private int blockSizeOf(Kind kind)
+    {
+        return (kind == Kind.TIME) ? this.timeBlockSize : this.blockSize;
+    }
+
+    /**
+     * Reads the index file of a log file.
+     *
+     * @param logFile Log file.
+     * @param kind Kind of the index.
+     * @return The index, or null if there is none or it cannot be read.
+     */
+    private BlockIndex read(File logFile, Kind kind)
+    {
+        try
+        {
+            return kind.read(logFile);
+        }
+        catch (IOException e)
+        {
+            logger.LogWarning("[Server] Ignoring the unreadable index of " + logFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Indexes the lines appended to the watched log files, and forgets the files
+     * which were deleted.
+     */
+    private void watch()
+    {
+        List<String> keys;
+        synchronized (this)
+        {
+            keys = new ArrayList<String>(this.loaded.keySet());
+        }
+
+        for (String key : keys)
+        {
+            for (Kind kind : Kind.values())
+            {
+                if (!key.endsWith(kind.suffix))
+                {
+                    continue;
+                }
+
+                File logFile = new File(key.substring(0, key.length() - kind.suffix.length()));
+                BlockIndex index;
+                synchronized (this)
+                {
+                    index = this.loaded.get(key);
+                    if (index != null && !logFile.isFile())
+                    {
+                        this.loaded.remove(key);
+                        continue;
+                    }
+                }
+
+                if (index != null && logFile.length() - index.getIndexedLength() >= this.blockSizeOf(kind))
+                {
+                    this.scheduleUpdate(logFile, kind);
+                }
+            }
+        }
+    }
+
+    /**
+     * Extends an index of the log file with its appended lines in the background,
+     * or builds it again if the file was replaced, unless this is already under way.
+     *
+     * @param logFile Log file.
+     * @param kind Kind of the index.
+     */
+    private void scheduleUpdate(final File logFile, final Kind kind)
+    {
+        final String key = logFile.getAbsolutePath() + kind.suffix;
+        synchronized (this)
+        {
+            if (!this.updating.add(key))
+            {
+                return;
+            }
+        }
+
+        this.indexer.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    update(logFile, kind, key);
+                }
+                catch (IOException e)
+                {
+                    logger.LogWarning("[Server] Could not index " + logFile + ": " + e.getMessage());
+                }
+                finally
+                {
+                    synchronized (LogIndexes.this)
+                    {
+                        updating.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Extends or builds an index of the log file, keeps it in memory and writes it
+     * next to the file. Without the file the index lasts until the server stops or
+     * it leaves the cache.
+     *
+     * @param logFile Log file.
+     * @param kind Kind of the index.
+     * @param key Path of the index file.
+     * @throws IOException if the log cannot be read or the index cannot be written.
+     */
+    private void update(File logFile, Kind kind, String key) throws IOException
+    {
+        BlockIndex index;
+        synchronized (this)
+        {
+            index = this.loaded.get(key);
+        }
+
+        long startTime = System.currentTimeMillis();
+        BlockIndex updated;
+        if (index != null && index.isPrefixOf(logFile))
+        {
+            updated = index.extend(logFile, this.blockSizeOf(kind));
+            if (updated == index)
+            {
+                return;
+            }
+            logger.LogInfo("[Server] Extended the " + updated.getKind() + " index of " + logFile + " from "
+                + index.getBlockCount() + " to " + updated.getBlockCount() + " blocks in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+        }
+        else
+        {
+            updated = kind.build(logFile, this.blockSizeOf(kind));
+            logger.LogInfo("[Server] Built the " + updated.getKind() + " index of " + logFile + " in "
+                + updated.getBlockCount() + " blocks in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+        }
+
+        synchronized (this)
+        {
+            this.loaded.put(key, updated);
+        }
+        updated.write(logFile);
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * Callback for the lines selected by a grep search.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.IOException;
+
+/**
+ * Receives the lines selected by the search engine.
+ */
+public interface MatchListener
+{
+    /**
+     * Called for each selected line, in file order.
+     *
+     * @param lineNumber Line number of the selected line, starting from 1.
+     * @param byteOffset Byte offset of the start of the line in the file.
+     * @param line Selected line without the line terminator.
+     * @throws IOException if the line cannot be delivered.
+     */
+    void onMatch(long lineNumber, long byteOffset, String line) throws IOException;
+}
@@ -0,0 +1,716 @@
+/**
+ * Event loop based server core for the grep protocol.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves grep sessions with a single selector thread which accepts the connections,
+ * reads the request frames and writes the queued output frames without blocking.
+ * The requests run on a bounded pool of workers. A worker whose connection has more
+ * than Session_write_buffer_kb queued for the client waits until the client reads
+ * it, so a slow client slows down its own scans instead of filling the memory.
+ */
+public class NioServer
+{
+    /**
+     * Size of the handshake: the magic and the version.
+     */
+    private static final int HANDSHAKE_BYTES = 5;
+
+    /**
+     * Size of a frame header: the type, the request id and the payload length.
+     */
+    private static final int FRAME_HEADER_BYTES = 9;
+
+    /**
+     * Port number where server is running.
+     */
+    private final int port;
+
+    /**
+     * Runs the requests of all the connections.
+     */
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * Runs the follow requests, which mostly wait for their log to grow and would
+     * hold a worker for as long as their session lasts.
+     */
+    private final ExecutorService followThreads = TaskThreads.newExecutor("GrepFollow-", false);
+
+    /**
+     * Workers wait while their connection has more than this many bytes queued.
+     */
+    private final long writeBufferBytes;
+
+    /**
+     * Connections with no running request are closed after this long without a request.
+     */
+    private final long idleTimeoutMillis;
+
+    /**
+     * Connections whose write queue or running requests changed, for the selector thread.
+     */
+    private final ConcurrentLinkedQueue<Connection> pendingUpdates = new ConcurrentLinkedQueue<Connection>();
+
+    /**
+     * Open connections, only used by the selector thread.
+     */
+    private final Set<Connection> connections = new HashSet<Connection>();
+
+    private Selector selector;
+
+    /**
+     * Logger instance.
+     */
+    private GrepLogger logger;
+
+    /**
+     * Constructor for the class NioServer. The pool is sized by the Worker_threads and
+     * Worker_queue_size settings.
+     *
+     * @param port Port on which server is listening.
+     */
+    public NioServer(int port)
+    {
+        GrepConfig config = GrepConfig.getInstance();
+        int threads = Math.max(config.getInt("Worker_threads", 2 * Runtime.getRuntime().availableProcessors()), 1);
+        int queueSize = Math.max(config.getInt("Worker_queue_size", 1000), 1);
+
+        this.port = port;
+        this.writeBufferBytes = Math.max(config.getLong("Session_write_buffer_kb", 1024), 1) << 10;
+        this.idleTimeoutMillis = config.getLong("Session_idle_timeout_ms", 60000);
+        this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    return new Thread(runnable, "GrepWorker-" + count.incrementAndGet());
+                }
+            });
+        this.logger = GrepLogger.getInstance();
+    }
+
+    /**
+     * Runs the event loop until the server socket fails.
+     *
+     * @throws IOException if the server socket cannot be opened.
+     */
+    public void run() throws IOException
+    {
+        this.selector = Selector.open();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try
+        {
+            server.bind(new InetSocketAddress(this.port), 1024);
+            server.configureBlocking(false);
+            server.register(this.selector, SelectionKey.OP_ACCEPT);
+            logger.LogInfo("[Server] Server started at Port : " + this.port + " with " + this.workers.getMaximumPoolSize()
+                + " workers");
+
+            while (true)
+            {
+                this.selector.select(1000);
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                    {
+                        continue;
+                    }
+
+                    if (key.isAcceptable())
+                    {
+                        this.accept(server);
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    try
+                    {
+                        if (key.isReadable())
+                        {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable())
+                        {
+                            connection.onWritable();
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        logger.LogWarning("[Server] Closing connection " + connection + ": " + e.getMessage());
+                        connection.close();
+                    }
+                }
+
+                this.processUpdates();
+                this.closeIdleConnections();
+            }
+        }
+        finally
+        {
+            this.workers.shutdown();
+            for (Connection connection : new ArrayList<Connection>(this.connections))
+            {
+                connection.close();
+            }
+            server.close();
+            this.selector.close();
+        }
+    }
+
+    /**
+     * Accepts the pending connections.
+     *
+     * @param server Server socket channel.
+     * @throws IOException if accepting fails.
+     */
+    private void accept(ServerSocketChannel server) throws IOException
+    {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null)
+        {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            // Detects clients which vanished without closing the connection.
+            channel.socket().setKeepAlive(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+            this.connections.add(connection);
+            logger.LogInfo("[Server] Server started serving client: " + connection + ", "
+                + this.connections.size() + " open connections");
+        }
+    }
+
+    /**
+     * Updates the interest of the connections which queued output or completed requests.
+     */
+    private void processUpdates()
+    {
+        Connection connection;
+        while ((connection = this.pendingUpdates.poll()) != null)
+        {
+            if (!connection.key.isValid())
+            {
+                continue;
+            }
+
+            if (connection.hasQueuedOutput())
+            {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+            }
+            else
+            {
+                connection.closeIfDone();
+            }
+        }
+    }
+
+    /**
+     * Closes the connections which had no request for the idle timeout.
+     */
+    private void closeIdleConnections()
+    {
+        if (this.idleTimeoutMillis <= 0)
+        {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (Connection connection : new ArrayList<Connection>(this.connections))
+        {
+            if (connection.isIdleSince(now - this.idleTimeoutMillis))
+            {
+                logger.LogInfo("[Server] Session idle after " + connection.requestsServed + " requests.");
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * State of a client connection.
+     */
+    private class Connection implements WriteThrottle
+    {
+        private final SocketChannel channel;
+
+        private SelectionKey key;
+
+        /**
+         * Bytes received and not parsed yet, in read mode between reads.
+         */
+        private ByteBuffer readBuffer = ByteBuffer.allocate(1 << 16);
+
+        /**
+         * Output stream of the session, its frames are queued for the selector thread.
+         */
+        private final DataOutputStream out = new DataOutputStream(new FrameOutputStream());
+
+        /**
+         * Frames waiting to be written, guarded by the connection.
+         */
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+
+        private long queuedBytes = 0;
+
+        private final AtomicInteger requestsInFlight = new AtomicInteger();
+
+        /**
+         * Running requests, cancelled when the session ends.
+         */
+        private final Set<GrepQueryTask> runningTasks = ConcurrentHashMap.newKeySet();
+
+        private int requestsServed = 0;
+
+        private boolean handshakeDone = false;
+
+        /**
+         * Set when the client closed its side or the session must end.
+         */
+        private boolean inputClosed = false;
+
+        private volatile boolean closed = false;
+
+        private volatile long lastActiveMillis = System.currentTimeMillis();
+
+        /**
+         * Address of the client, whose queries share the server fairly with the others.
+         */
+        private final String clientAddress;
+
+        Connection(SocketChannel channel)
+        {
+            this.channel = channel;
+            this.clientAddress = channel.socket().getInetAddress().getHostAddress();
+            this.readBuffer.flip();
+        }
+
+        /**
+         * Reads the available bytes and serves the complete frames.
+         *
+         * @throws IOException if reading fails or the client breaks the protocol.
+         */
+        void onReadable() throws IOException
+        {
+            this.readBuffer.compact();
+            int read = this.channel.read(this.readBuffer);
+            this.readBuffer.flip();
+            if (read < 0)
+            {
+                logger.LogInfo("[Server] Client closed the session after " + this.requestsServed + " requests.");
+                this.endInput();
+                return;
+            }
+
+            this.lastActiveMillis = System.currentTimeMillis();
+            while (!this.inputClosed && this.parseNext())
+            {
+            }
+        }
+
+        /**
+         * Parses the handshake or the next frame from the read buffer.
+         *
+         * @return true if something was parsed, false if more bytes are needed.
+         * @throws IOException if the client breaks the protocol.
+         */
+        private boolean parseNext() throws IOException
+        {
+            if (!this.handshakeDone)
+            {
+                if (this.readBuffer.remaining() < HANDSHAKE_BYTES)
+                {
+                    return false;
+                }
+
+                int magic = this.readBuffer.getInt();
+                if (magic != GrepProtocol.MAGIC)
+                {
+                    throw new ProtocolException("Unexpected protocol magic " + Integer.toHexString(magic));
+                }
+
+                byte version = this.readBuffer.get();
+                this.handshakeDone = true;
+                if (version != GrepProtocol.VERSION)
+                {
+                    GrepProtocol.writeTrailer(this.out, 0, "", 0, GrepProtocol.STATUS_ERROR,
+                        "Unsupported protocol version " + version);
+                    this.endInput();
+                }
+                return true;
+            }
+
+            if (this.readBuffer.remaining() < FRAME_HEADER_BYTES)
+            {
+                return false;
+            }
+
+            int start = this.readBuffer.position();
+            int length = this.readBuffer.getInt(start + 5);
+            if (length < 0 || length > GrepProtocol.MAX_REQUEST_BYTES)
+            {
+                throw new ProtocolException("Invalid frame length " + length);
+            }
+
+            if (this.readBuffer.remaining() < FRAME_HEADER_BYTES + length)
+            {
+                this.ensureCapacity(FRAME_HEADER_BYTES + length);
+                return false;
+            }
+
+            byte type = this.readBuffer.get();
+            int requestId = this.readBuffer.getInt();
+            this.readBuffer.getInt();
+            byte[] payload = new byte[length];
+            this.readBuffer.get(payload);
+            this.dispatch(new GrepProtocol.Frame(type, requestId, payload));
+            return true;
+        }
+
+        /**
+         * Grows the read buffer so that a frame of the given size fits.
+         *
+         * @param frameBytes Size of the frame.
+         */
+        private void ensureCapacity(int frameBytes)
+        {
+            if (this.readBuffer.capacity() >= frameBytes)
+            {
+                return;
+            }
+
+            ByteBuffer larger = ByteBuffer.allocate(frameBytes);
+            larger.put(this.readBuffer);
+            larger.flip();
+            this.readBuffer = larger;
+        }
+
+        /**
+         * Runs a request frame on the workers.
+         *
+         * @param frame Frame sent by the client.
+         * @throws IOException if the error reply cannot be queued.
+         */
+        private void dispatch(GrepProtocol.Frame frame) throws IOException
+        {
+            if (frame.type == GrepProtocol.FRAME_STOP)
+            {
+                this.stopRequest(frame.requestId);
+                return;
+            }
+            if (frame.type != GrepProtocol.FRAME_REQUEST)
+            {
+                GrepProtocol.writeTrailer(this.out, frame.requestId, "", 0, GrepProtocol.STATUS_ERROR,
+                    "Expected a request frame.");
+                return;
+            }
+
+            this.requestsServed++;
+            this.requestsInFlight.incrementAndGet();
+            final GrepQueryTask task = new GrepQueryTask(this.out, frame, this);
+            this.runningTasks.add(task);
+            Runnable query = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    finally
+                    {
+                        runningTasks.remove(task);
+                        requestsInFlight.decrementAndGet();
+                        lastActiveMillis = System.currentTimeMillis();
+                        pendingUpdates.add(Connection.this);
+                        selector.wakeup();
+                    }
+                }
+            };
+
+            // Follow requests mostly wait for their log to grow, so they are not scheduled.
+            long retryMillis = -1;
+            try
+            {
+                if (task.isFollow())
+                {
+                    followThreads.execute(query);
+                }
+                else
+                {
+                    retryMillis = QueryScheduler.getInstance().submit(this.clientAddress, task.getLane(), query,
+                        workers);
+                }
+            }
+            catch (RejectedExecutionException e)
+            {
+                retryMillis = 1000;
+            }
+
+            if (retryMillis >= 0)
+            {
+                this.runningTasks.remove(task);
+                this.requestsInFlight.decrementAndGet();
+                logger.LogWarning("[Server] Rejected request " + frame.requestId + " of " + this.clientAddress
+                    + ", the run queue is full. Retry after " + retryMillis + " ms.");
+                GrepProtocol.writeBusy(this.out, frame.requestId, retryMillis);
+            }
+        }
+
+        /**
+         * Stops reading from the client. The connection is closed once its requests
+         * completed and their output was written.
+         */
+        private void endInput()
+        {
+            this.inputClosed = true;
+            this.cancelRequests();
+            if (this.key.isValid())
+            {
+                this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            this.closeIfDone();
+        }
+
+        /**
+         * Writes the queued frames until the socket buffer is full.
+         *
+         * @throws IOException if writing fails.
+         */
+        void onWritable() throws IOException
+        {
+            boolean drained;
+            synchronized (this)
+            {
+                while (!this.writeQueue.isEmpty())
+                {
+                    ByteBuffer buffer = this.writeQueue.peek();
+                    this.queuedBytes -= this.channel.write(buffer);
+                    if (buffer.hasRemaining())
+                    {
+                        break;
+                    }
+                    this.writeQueue.poll();
+                }
+
+                drained = this.writeQueue.isEmpty();
+                if (this.queuedBytes <= writeBufferBytes)
+                {
+                    this.notifyAll();
+                }
+            }
+
+            if (drained)
+            {
+                this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+                this.closeIfDone();
+            }
+        }
+
+        /**
+         * Queues a frame for the selector thread.
+         *
+         * @param frame Bytes of the frame.
+         * @throws IOException if the connection closed.
+         */
+        private void enqueue(byte[] frame) throws IOException
+        {
+            synchronized (this)
+            {
+                if (this.closed)
+                {
+                    throw new ClosedChannelException();
+                }
+                this.writeQueue.add(ByteBuffer.wrap(frame));
+                this.queuedBytes += frame.length;
+            }
+
+            pendingUpdates.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void awaitWritable() throws IOException
+        {
+            while (!this.closed && this.queuedBytes > writeBufferBytes)
+            {
+                try
+                {
+                    this.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the client.");
+                }
+            }
+
+            if (this.closed)
+            {
+                throw new ClosedChannelException();
+            }
+        }
+
+        synchronized boolean hasQueuedOutput()
+        {
+            return !this.writeQueue.isEmpty();
+        }
+
+        /**
+         * @param since Time before which the last activity must be.
+         * @return true if the connection has no running request or queued output and
+         *         was last active before the given time.
+         */
+        boolean isIdleSince(long since)
+        {
+            return this.requestsInFlight.get() == 0 && !this.hasQueuedOutput() && this.lastActiveMillis < since;
+        }
+
+        /**
+         * Closes the connection if the client ended its input and nothing is left to do.
+         */
+        void closeIfDone()
+        {
+            if (this.inputClosed && this.requestsInFlight.get() == 0 && !this.hasQueuedOutput())
+            {
+                logger.LogInfo("[Server] Closing connection");
+                this.close();
+            }
+        }
+
+        /**
+         * Closes the connection and wakes the workers waiting on it.
+         */
+        void close()
+        {
+            synchronized (this)
+            {
+                if (this.closed)
+                {
+                    return;
+                }
+                this.closed = true;
+                this.writeQueue.clear();
+                this.queuedBytes = 0;
+                this.notifyAll();
+            }
+            this.cancelRequests();
+
+            connections.remove(this);
+            this.key.cancel();
+            try
+            {
+                this.channel.close();
+            }
+            catch (IOException e)
+            {
+                logger.LogException("[Server] Failed in closing resources with message:", e);
+            }
+        }
+
+        /**
+         * Stops a running request of the session. A request which already completed
+         * is left alone, its trailer is on its way to the client.
+         *
+         * @param requestId Id of the request.
+         */
+        private void stopRequest(int requestId)
+        {
+            for (GrepQueryTask task : this.runningTasks)
+            {
+                if (task.getRequestId() == requestId)
+                {
+                    logger.LogInfo("[Server] Client stopped request " + requestId);
+                    task.stop();
+                }
+            }
+        }
+
+        /**
+         * Cancels the running requests, which stops the ones following a log.
+         */
+        private void cancelRequests()
+        {
+            for (GrepQueryTask task : this.runningTasks)
+            {
+                task.cancel();
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.valueOf(this.channel.socket().getRemoteSocketAddress());
+        }
+
+        /**
+         * Collects the bytes of a frame and queues them when the frame is flushed.
+         * GrepProtocol writes each frame and flushes it while holding the lock of the
+         * session output stream, so the frames of concurrent requests stay whole.
+         */
+        private class FrameOutputStream extends OutputStream
+        {
+            private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+
+            @Override
+            public void write(int b)
+            {
+                this.frame.write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length)
+            {
+                this.frame.write(bytes, offset, length);
+            }
+
+            @Override
+            public void flush() throws IOException
+            {
+                if (this.frame.size() == 0)
+                {
+                    return;
+                }
+
+                byte[] bytes = this.frame.toByteArray();
+                this.frame.reset();
+                enqueue(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Class for the outcome of a query on one server.
+ * 
+ * @author Prateeth Reddy Chagari (chagari2@illinois.edu)
+ */
+
+/**
+ * What became of the query sent to one VM.
+ */
+public class QueryOutcome {
+    /**
+     * Status of a query.
+     */
+    public enum Status {
+        /** the server sent all the results. */
+        SUCCESS,
+        /** the connection or the query failed. */
+        ERROR,
+        /** the query did not complete before the deadline, its results are partial. */
+        TIMEOUT,
+        /** the query was stopped by the user, as follow queries are. */
+        STOPPED,
+        /** the server was too busy to run the query, even after the retries. */
+        BUSY
+    }
+
+    private final String vmId;
+    private final Status status;
+    private final long outputLines;
+    private final long elapsedMillis;
+    private final String message;
+
+    /**
+     * constructor of QueryOutcome type class.
+     * 
+     * @param vmId the associated vm log file id.
+     * @param status status of the query.
+     * @param outputLines number of output lines received.
+     * @param elapsedMillis time the query took.
+     * @param message error message, empty on success.
+     */
+    public QueryOutcome(String vmId, Status status, long outputLines, long elapsedMillis, String message) {
+        this.vmId = vmId;
+        this.status = status;
+        this.outputLines = outputLines;
+        this.elapsedMillis = elapsedMillis;
+        this.message = message == null ? "" : message;
+    }
+
+    public String getVmId() {
+        return vmId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isSuccess() {
+        return status == Status.SUCCESS;
+    }
+
+    public long getOutputLines() {
+        return outputLines;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        String text = vmId + " " + status + " " + outputLines + " lines in " + elapsedMillis + " ms";
+        return message.isEmpty() ? text : text + ": " + message;
+    }
+}
@@ -0,0 +1,326 @@
+/**
+ * Admits the grep queries of all the sessions of the server.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Bounds the number of queries which search the logs at once, so that a burst of
+ * heavy queries does not take all the cores of a VM which also runs other
+ * services. At most Max_running_queries queries run; the others wait in a bounded
+ * run queue, and a query which finds the queue full is answered at once with a
+ * busy reply telling the client when to retry.
+ *
+ * Waiting queries are kept per client and in two lanes. Cheap queries, whose log
+ * an index in memory narrows to at most half of its blocks, run ahead of the full
+ * scans, though a full scan waits for at most FAST_BURST cheap queries in a row. Within a lane the
+ * next query comes from the client with the fewest running queries, and among
+ * those from the client served longest ago, so a client sending many queries gets
+ * its share of the server but no more.
+ */
+public class QueryScheduler
+{
+    private static final QueryScheduler instance = new QueryScheduler();
+
+    /**
+     * Max number of cheap queries started in a row while full scans wait.
+     */
+    private static final int FAST_BURST = 4;
+
+    /**
+     * Bounds of the retry delay of a busy reply, in milliseconds.
+     */
+    private static final long MIN_RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 60000;
+
+    /**
+     * Lane of a query.
+     */
+    public enum Lane
+    {
+        /** Queries an index narrows to at most half of their log. */
+        FAST,
+        /** Queries which read the whole log, or most of it. */
+        SCAN
+    }
+
+    /**
+     * Max number of queries running at once, from the Max_running_queries setting.
+     */
+    private final int maxRunning;
+
+    /**
+     * Max number of queries waiting, overall and per client.
+     */
+    private final int maxQueued;
+    private final int maxQueuedPerClient;
+
+    /**
+     * Clients with running or waiting queries, by address.
+     */
+    private final Map<String, ClientQueue> clients = new LinkedHashMap<String, ClientQueue>();
+
+    /**
+     * Number of running and waiting queries.
+     */
+    private int running = 0;
+    private int queued = 0;
+
+    /**
+     * Number of cheap queries started in a row while full scans waited.
+     */
+    private int fastStreak = 0;
+
+    /**
+     * Number of queries started so far, which orders the clients by their last start.
+     */
+    private long started = 0;
+
+    /**
+     * Moving average of the run time of the queries, from which the retry delay of
+     * the busy replies is estimated.
+     */
+    private double averageRunMillis = 1000;
+
+    /**
+     * Logger instance.
+     */
+    private final GrepLogger logger = GrepLogger.getInstance();
+
+    private QueryScheduler()
+    {
+        this(GrepConfig.getInstance().getInt("Max_running_queries", Runtime.getRuntime().availableProcessors()),
+            GrepConfig.getInstance().getInt("Max_queued_queries", 64),
+            GrepConfig.getInstance().getInt("Max_queued_per_client", 16));
+    }
+
+    /**
+     * Constructor for the class QueryScheduler with the given bounds, used by the tests.
+     *
+     * @param maxRunning Max number of queries running at once.
+     * @param maxQueued Max number of queries waiting.
+     * @param maxQueuedPerClient Max number of queries of one client waiting.
+     */
+    QueryScheduler(int maxRunning, int maxQueued, int maxQueuedPerClient)
+    {
+        this.maxRunning = Math.max(maxRunning, 1);
+        this.maxQueued = Math.max(maxQueued, 0);
+        this.maxQueuedPerClient = Math.max(maxQueuedPerClient, 0);
+    }
+
+    /**
+     * @return Single instance of the class.
+     */
+    public static QueryScheduler getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Runs a query on the executor once its turn comes.
+     *
+     * @param client Address of the client, whose queries share the server fairly with the others.
+     * @param lane Lane of the query.
+     * @param query Query to be run.
+     * @param executor Executor which runs the query.
+     * @return -1 if the query runs or waits for its turn, otherwise the delay in
+     *         milliseconds after which the client may retry, as the run queue is full.
+     */
+    public synchronized long submit(String client, Lane lane, Runnable query, Executor executor)
+    {
+        ClientQueue clientQueue = this.clients.get(client);
+        int clientQueued = (clientQueue == null) ? 0 : clientQueue.size();
+        if (this.running >= this.maxRunning
+            && (this.queued >= this.maxQueued || clientQueued >= this.maxQueuedPerClient))
+        {
+            return this.retryDelay();
+        }
+
+        if (clientQueue == null)
+        {
+            clientQueue = new ClientQueue(client);
+            this.clients.put(client, clientQueue);
+        }
+        clientQueue.lane(lane).add(new Admission(clientQueue, query, executor));
+        this.queued++;
+        this.startQueries();
+        return -1;
+    }
+
+    /**
+     * Starts waiting queries while fewer than Max_running_queries run.
+     */
+    private void startQueries()
+    {
+        while (this.running < this.maxRunning && this.queued > 0)
+        {
+            Admission admission = this.next();
+            this.queued--;
+            this.running++;
+            admission.client.running++;
+            admission.client.lastStarted = ++this.started;
+            try
+            {
+                admission.executor.execute(admission);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // The query still has to run to release its session and its slot.
+                logger.LogWarning("[Server] Executor rejected a query, running it on a thread of its own.");
+                TaskThreads.newThread(null, admission, "GrepQuery-" + this.started, false).start();
+            }
+        }
+    }
+
+    /**
+     * Takes the next query to be started out of the queues.
+     *
+     * @return Next query, there must be one waiting.
+     */
+    private Admission next()
+    {
+        boolean fastWaiting = this.hasWaiting(Lane.FAST);
+        boolean scanWaiting = this.hasWaiting(Lane.SCAN);
+        Lane lane;
+        if (fastWaiting && (!scanWaiting || this.fastStreak < FAST_BURST))
+        {
+            lane = Lane.FAST;
+            this.fastStreak = scanWaiting ? this.fastStreak + 1 : 0;
+        }
+        else
+        {
+            lane = Lane.SCAN;
+            this.fastStreak = 0;
+        }
+
+        ClientQueue chosen = null;
+        for (ClientQueue client : this.clients.values())
+        {
+            if (!client.lane(lane).isEmpty() && (chosen == null || client.running < chosen.running
+                || (client.running == chosen.running && client.lastStarted < chosen.lastStarted)))
+            {
+                chosen = client;
+            }
+        }
+        return chosen.lane(lane).poll();
+    }
+
+    /**
+     * @param lane A lane.
+     * @return true if a query waits in the lane.
+     */
+    private boolean hasWaiting(Lane lane)
+    {
+        for (ClientQueue client : this.clients.values())
+        {
+            if (!client.lane(lane).isEmpty())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Releases the slot of a query which completed and starts the next one.
+     *
+     * @param client Client of the query.
+     * @param runMillis Run time of the query.
+     */
+    private synchronized void finished(ClientQueue client, long runMillis)
+    {
+        this.running--;
+        client.running--;
+        this.averageRunMillis = 0.8 * this.averageRunMillis + 0.2 * runMillis;
+        if (client.running == 0 && client.size() == 0)
+        {
+            this.clients.remove(client.address);
+        }
+        this.startQueries();
+    }
+
+    /**
+     * Estimates when a slot of the run queue frees up: the queries ahead of a new
+     * one take about the average run time for every Max_running_queries of them.
+     *
+     * @return Retry delay in milliseconds.
+     */
+    private long retryDelay()
+    {
+        long delay = (long) (this.averageRunMillis * (this.running + this.queued) / this.maxRunning);
+        return Math.min(Math.max(delay, MIN_RETRY_MILLIS), MAX_RETRY_MILLIS);
+    }
+
+    /**
+     * Waiting queries of one client, by lane.
+     */
+    private static class ClientQueue
+    {
+        private final String address;
+        private final Deque<Admission> fast = new ArrayDeque<Admission>();
+        private final Deque<Admission> scan = new ArrayDeque<Admission>();
+
+        /**
+         * Number of running queries of the client.
+         */
+        private int running = 0;
+
+        /**
+         * Order of the last start of a query of the client.
+         */
+        private long lastStarted = 0;
+
+        ClientQueue(String address)
+        {
+            this.address = address;
+        }
+
+        Deque<Admission> lane(Lane lane)
+        {
+            return (lane == Lane.FAST) ? this.fast : this.scan;
+        }
+
+        int size()
+        {
+            return this.fast.size() + this.scan.size();
+        }
+    }
+
+    /**
+     * Query admitted to the queue, which releases its slot once it ran.
+     */
+    private class Admission implements Runnable
+    {
+        private final ClientQueue client;
+        private final Runnable query;
+        private final Executor executor;
+
+        Admission(ClientQueue client, Runnable query, Executor executor)
+        {
+            this.client = client;
+            this.query = query;
+            this.executor = executor;
+        }
+
+        @Override
+        public void run()
+        {
+            long startMillis = System.currentTimeMillis();
+            try
+            {
+                this.query.run();
+            }
+            finally
+            {
+                finished(this.client, System.currentTimeMillis() - startMillis);
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Finds the timestamps of the log records of selected lines.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * A log record starts with a line beginning with its timestamp, in the format of
+ * the Log_timestamp_format setting ("MMM d, yyyy h:mm:ss a" by default, as written
+ * by java.util.logging), and may span more lines. The timestamp of a selected line
+ * is the one of the closest record start at or before it, found by reading the file
+ * backwards from the line. Lines before the first record get the timestamp of the
+ * previous lookup, or 0.
+ */
+public class RecordTimestamps implements AutoCloseable
+{
+    /**
+     * Size of the first window read backwards from a line.
+     */
+    private static final int BLOCK_SIZE = 4096;
+
+    /**
+     * Max number of bytes read backwards to find the start of a record.
+     */
+    private static final int MAX_LOOKBACK = 1 << 16;
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final SimpleDateFormat format;
+
+    /**
+     * Timestamp returned by the previous lookup.
+     */
+    private long lastTimestamp = 0;
+
+    /**
+     * Constructor for the class RecordTimestamps.
+     *
+     * @param logFile Log file the lines are from.
+     * @throws IOException if the file cannot be opened.
+     */
+    public RecordTimestamps(File logFile) throws IOException
+    {
+        this.file = new RandomAccessFile(logFile, "r");
+        this.channel = this.file.getChannel();
+        this.format = createFormat();
+    }
+
+    /**
+     * @return Format of the timestamps which start the log records, from the
+     *         Log_timestamp_format setting.
+     */
+    public static SimpleDateFormat createFormat()
+    {
+        SimpleDateFormat format = new SimpleDateFormat(
+            GrepConfig.getInstance().getString("Log_timestamp_format", "MMM d, yyyy h:mm:ss a"), Locale.US);
+        format.setLenient(false);
+        return format;
+    }
+
+    /**
+     * Parses the timestamp at the start of a line.
+     *
+     * @param format Format of the timestamps, from createFormat().
+     * @param line Line text.
+     * @return Timestamp in milliseconds, -1 if the line does not start with one.
+     */
+    public static long parse(SimpleDateFormat format, String line)
+    {
+        ParsePosition position = new ParsePosition(0);
+        Date date = format.parse(line, position);
+        return (date == null || position.getErrorIndex() >= 0) ? -1 : date.getTime();
+    }
+
+    /**
+     * Gets the timestamp of the record of a line.
+     *
+     * @param byteOffset Offset of the start of the line in the file.
+     * @param line The line.
+     * @return Timestamp in milliseconds.
+     * @throws IOException if reading the file fails.
+     */
+    public long timestampOf(long byteOffset, String line) throws IOException
+    {
+        long timestamp = parse(this.format, line);
+        if (timestamp < 0)
+        {
+            timestamp = this.findBefore(byteOffset);
+        }
+
+        if (timestamp >= 0)
+        {
+            this.lastTimestamp = timestamp;
+        }
+        return this.lastTimestamp;
+    }
+
+    /**
+     * Reads backwards from a line start for the closest line which starts with a
+     * timestamp. A small window before the line is tried first, then a larger one.
+     *
+     * @param lineStart Offset of the start of a line.
+     * @return Timestamp in milliseconds, -1 if none was found.
+     * @throws IOException if reading the file fails.
+     */
+    private long findBefore(long lineStart) throws IOException
+    {
+        for (int window = BLOCK_SIZE; ; window *= 16)
+        {
+            long start = Math.max(0, lineStart - window);
+            byte[] bytes = this.read(start, (int) (lineStart - start));
+
+            // Walks the lines of the window from the last one; the first line is only
+            // complete if the window starts at the beginning of the file.
+            int end = bytes.length;
+            if (end > 0 && bytes[end - 1] == '\n')
+            {
+                end--;
+            }
+            for (int i = end - 1; i >= -1; i--)
+            {
+                if (i >= 0 && bytes[i] != '\n')
+                {
+                    continue;
+                }
+                if (i < 0 && start > 0)
+                {
+                    break;
+                }
+
+                long timestamp = parse(this.format, new String(bytes, i + 1, end - i - 1, StandardCharsets.UTF_8));
+                if (timestamp >= 0)
+                {
+                    return timestamp;
+                }
+                end = i;
+            }
+
+            if (start == 0 || window >= MAX_LOOKBACK)
+            {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Reads a range of the file.
+     *
+     * @param position Offset of the range.
+     * @param length Length of the range.
+     * @return Bytes of the range.
+     * @throws IOException if reading the file fails.
+     */
+    private byte[] read(long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+        {
+            if (this.channel.read(buffer, position + buffer.position()) < 0)
+            {
+                break;
+            }
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.file.close();
+    }
+}
@@ -0,0 +1,628 @@
+/**
+ * Sends the output lines of a request in BATCH frames.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+
+/**
+ * Collects output lines and sends them in BATCH frames of the grep protocol. The
+ * label of the lines is sent once per batch instead of once per line. A batch is
+ * sent when it reaches the batch size, or when its first line has waited for the
+ * flush interval, so that slow scans still deliver their lines quickly. Batches
+ * can be deflated when the client accepts it. A timed writer sends TIMED_BATCH
+ * frames, with the timestamp of the log record of each line. The lines of each
+ * file of a multi-file request go through a writer of their own, labelled with
+ * the file, and are counted in the trailer of the request writer.
+ *
+ * The flush timer is shared by all the writers of the server, so it never writes
+ * itself: a batch which waited long enough is sent on a thread of the writer's
+ * own, and a client which stops reading only holds up that thread.
+ */
+public class ResultBatchWriter
+{
+    /**
+     * Timer which finds the batches that waited for the flush interval.
+     */
+    private static final ScheduledExecutorService FLUSH_TIMER =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "BatchFlushTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * Runs the timed flushes, which may block in a socket write.
+     */
+    private static final ExecutorService FLUSH_EXECUTOR = TaskThreads.newExecutor("BatchFlush-",
+        ServerHandler.isVirtualMode());
+
+    /**
+     * Output stream of the socket.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * Id of the request the lines belong to.
+     */
+    private final int requestId;
+
+    /**
+     * Label of the output lines, the log file name for grep requests.
+     */
+    private final String label;
+
+    /**
+     * A batch is sent once its lines take this many bytes.
+     */
+    private final int batchBytes;
+
+    /**
+     * A batch is sent once its first line waited this many milliseconds.
+     */
+    private final long flushMillis;
+
+    /**
+     * Codec of the batches.
+     */
+    private final byte codec;
+
+    /**
+     * Deflater for the batches, null if they are not compressed.
+     */
+    private final Deflater deflater;
+
+    /**
+     * True if the lines carry timestamps.
+     */
+    private final boolean timed;
+
+    /**
+     * Encoded lines of the current batch.
+     */
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+
+    /**
+     * Stream to encode lines in the current batch.
+     */
+    private final DataOutputStream batchStream = new DataOutputStream(this.batch);
+
+    /**
+     * Number of lines in the current batch.
+     */
+    private int batchLines = 0;
+
+    /**
+     * Time at which the first line of the current batch was added.
+     */
+    private long batchStartMillis = 0;
+
+    /**
+     * Number of lines written so far.
+     */
+    private long linesWritten = 0;
+
+    /**
+     * Size of the batch bodies before and after compression, for the statistics.
+     */
+    private long rawBytes = 0;
+    private long sentBytes = 0;
+
+    /**
+     * Periodic task which sends the batch once it waited long enough.
+     */
+    private ScheduledFuture<?> flushTask = null;
+
+    /**
+     * Whether a timed flush was handed to the flush executor and has not run yet.
+     */
+    private final AtomicBoolean flushQueued = new AtomicBoolean(false);
+
+    /**
+     * Whether the timer and the deflater were released.
+     */
+    private boolean released = false;
+
+    /**
+     * Writer of the request the lines of this file writer are counted in, null if
+     * this is the writer of the request.
+     */
+    private ResultBatchWriter requestWriter = null;
+
+    /**
+     * Constructor for the class ResultBatchWriter, for uncompressed batches.
+     *
+     * @param out Output stream of the socket.
+     * @param requestId Id of the request the lines belong to.
+     * @param label Label of the output lines.
+     */
+    public ResultBatchWriter(DataOutputStream out, int requestId, String label)
+    {
+        this(out, requestId, label, GrepProtocol.CODEC_NONE);
+    }
+
+    /**
+     * Constructor for the class ResultBatchWriter. The batch size and flush interval
+     * are taken from the Batch_size_kb and Batch_flush_ms settings.
+     *
+     * @param out Output stream of the socket.
+     * @param requestId Id of the request the lines belong to.
+     * @param label Label of the output lines.
+     * @param codec Codec of the batches.
+     */
+    public ResultBatchWriter(DataOutputStream out, int requestId, String label, byte codec)
+    {
+        this(out, requestId, label, codec, false);
+    }
+
+    /**
+     * Constructor for the class ResultBatchWriter. The batch size and flush interval
+     * are taken from the Batch_size_kb and Batch_flush_ms settings.
+     *
+     * @param out Output stream of the socket.
+     * @param requestId Id of the request the lines belong to.
+     * @param label Label of the output lines.
+     * @param codec Codec of the batches.
+     * @param timed True if the lines are written with their timestamps.
+     */
+    public ResultBatchWriter(DataOutputStream out, int requestId, String label, byte codec, boolean timed)
+    {
+        this(out, requestId, label, codec, timed,
+            GrepConfig.getInstance().getInt("Batch_size_kb", 64) << 10,
+            GrepConfig.getInstance().getLong("Batch_flush_ms", 200));
+    }
+
+    /**
+     * Constructor for the class ResultBatchWriter.
+     *
+     * @param out Output stream of the socket.
+     * @param requestId Id of the request the lines belong to.
+     * @param label Label of the output lines.
+     * @param codec Codec of the batches.
+     * @param timed True if the lines are written with their timestamps.
+     * @param batchBytes Size in bytes at which a batch is sent.
+     * @param flushMillis Time in milliseconds after which a batch is sent, 0 to disable.
+     */
+    public ResultBatchWriter(DataOutputStream out, int requestId, String label, byte codec, boolean timed,
+        int batchBytes, long flushMillis)
+    {
+        this.out = out;
+        this.requestId = requestId;
+        this.label = label;
+        this.codec = codec;
+        this.timed = timed;
+        this.batchBytes = Math.max(batchBytes, 1);
+        this.flushMillis = flushMillis;
+        this.deflater = (codec == GrepProtocol.CODEC_DEFLATE) ? new Deflater(Deflater.BEST_SPEED) : null;
+    }
+
+    /**
+     * Creates the writer of the lines of one file of a multi-file request. It sends
+     * its batches with the same request id and settings, labelled with the file.
+     *
+     * @param fileLabel Label of the lines of the file.
+     * @return Writer of the file, ended with finishFile().
+     */
+    public ResultBatchWriter newFileWriter(String fileLabel)
+    {
+        ResultBatchWriter writer = new ResultBatchWriter(this.out, this.requestId, fileLabel, this.codec,
+            this.timed, this.batchBytes, this.flushMillis);
+        writer.requestWriter = this;
+        return writer;
+    }
+
+    /**
+     * Picks the codec of the batches for a request.
+     *
+     * @param acceptedCodecs Bit mask of the codecs accepted by the client.
+     * @return CODEC_DEFLATE if the client accepts it and the Compression_enabled
+     *         setting allows it, otherwise CODEC_NONE.
+     */
+    public static byte negotiateCodec(byte acceptedCodecs)
+    {
+        boolean compressionEnabled = GrepConfig.getInstance().getBoolean("Compression_enabled", true);
+        return (compressionEnabled && (acceptedCodecs & GrepProtocol.CODEC_DEFLATE) != 0)
+            ? GrepProtocol.CODEC_DEFLATE
+            : GrepProtocol.CODEC_NONE;
+    }
+
+    /**
+     * Adds an output line, sending the batch if it is full or has waited long enough.
+     *
+     * @param line Output line.
+     * @throws IOException if sending fails.
+     */
+    public synchronized void writeLine(String line) throws IOException
+    {
+        if (this.timed)
+        {
+            throw new IllegalStateException("Lines of a timed writer need their timestamps.");
+        }
+        this.addLine(line);
+    }
+
+    /**
+     * Adds an output line with the timestamp of its log record, sending the batch if
+     * it is full or has waited long enough.
+     *
+     * @param timestamp Timestamp of the log record in milliseconds.
+     * @param line Output line.
+     * @throws IOException if sending fails.
+     */
+    public synchronized void writeLine(long timestamp, String line) throws IOException
+    {
+        if (!this.timed)
+        {
+            throw new IllegalStateException("Lines of an untimed writer have no timestamps.");
+        }
+        this.checkNotReleased();
+        this.batchStream.writeLong(timestamp);
+        this.addLine(line);
+    }
+
+    /**
+     * Adds an output line to the batch, after its timestamp if the writer is timed.
+     *
+     * @param line Output line.
+     * @throws IOException if sending fails.
+     */
+    private void addLine(String line) throws IOException
+    {
+        this.checkNotReleased();
+        if (this.batchLines == 0)
+        {
+            this.batchStartMillis = System.currentTimeMillis();
+            this.startFlushTimer();
+        }
+
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        this.batchStream.writeInt(bytes.length);
+        this.batchStream.write(bytes);
+        this.batchLines++;
+        this.linesWritten++;
+        if (this.requestWriter != null)
+        {
+            this.requestWriter.countFileOutput(1, 0, 0);
+        }
+
+        if (this.batch.size() >= this.batchBytes || this.isFlushDue())
+        {
+            this.flush();
+        }
+    }
+
+    /**
+     * Sends the lines of the current batch, if any.
+     *
+     * @throws IOException if sending fails.
+     */
+    public synchronized void flush() throws IOException
+    {
+        if (this.batchLines == 0)
+        {
+            return;
+        }
+        this.sendBatch();
+    }
+
+    /**
+     * Sends the lines of the current batch, or an empty batch if there are none, so
+     * that the client can tell a quiet request from a lost connection.
+     *
+     * @throws IOException if sending fails.
+     */
+    public synchronized void sendKeepAlive() throws IOException
+    {
+        this.sendBatch();
+    }
+
+    /**
+     * Sends the current batch as a BATCH or TIMED_BATCH frame.
+     *
+     * @throws IOException if sending fails.
+     */
+    private void sendBatch() throws IOException
+    {
+        this.checkNotReleased();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(this.batch.size() + 64);
+        DataOutputStream bodyStream = new DataOutputStream(body);
+        GrepProtocol.writeString(bodyStream, this.label);
+        bodyStream.writeInt(this.batchLines);
+        this.batch.writeTo(bodyStream);
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(body.size() + 8);
+        DataOutputStream payloadStream = new DataOutputStream(payload);
+        payloadStream.writeByte(this.codec);
+        if (this.deflater != null)
+        {
+            payloadStream.writeInt(body.size());
+            this.deflate(body.toByteArray(), payload);
+        }
+        else
+        {
+            body.writeTo(payload);
+        }
+
+        this.rawBytes += body.size();
+        this.sentBytes += payload.size();
+        if (this.requestWriter != null)
+        {
+            this.requestWriter.countFileOutput(0, body.size(), payload.size());
+        }
+        GrepProtocol.writeFrame(this.out, this.timed ? GrepProtocol.FRAME_TIMED_BATCH : GrepProtocol.FRAME_BATCH,
+            this.requestId, payload);
+
+        this.batch.reset();
+        this.batchLines = 0;
+    }
+
+    /**
+     * Sends the remaining lines and a SUMMARY frame.
+     *
+     * @param summaries Summaries of the searched files.
+     * @throws IOException if sending fails.
+     */
+    public synchronized void writeSummary(List<FileSummary> summaries) throws IOException
+    {
+        this.flush();
+        GrepProtocol.writeSummary(this.out, this.requestId, summaries);
+    }
+
+    /**
+     * Sends the remaining lines and a GROUPS frame.
+     *
+     * @param groups Counts of the selected lines by group.
+     * @throws IOException if sending fails.
+     */
+    public synchronized void writeGroups(GroupCounts groups) throws IOException
+    {
+        this.flush();
+        GrepProtocol.writeGroups(this.out, this.requestId, groups);
+    }
+
+    /**
+     * Sends the remaining lines and the TRAILER frame with the number of lines written.
+     *
+     * @throws IOException if sending fails.
+     */
+    public synchronized void finish() throws IOException
+    {
+        this.close();
+        GrepProtocol.writeTrailer(this.out, this.requestId, this.label, this.linesWritten, GrepProtocol.STATUS_OK, "");
+    }
+
+    /**
+     * Sends the remaining lines of a file writer. The request ends with the trailer
+     * of its own writer.
+     *
+     * @throws IOException if sending fails.
+     */
+    public synchronized void finishFile() throws IOException
+    {
+        this.close();
+    }
+
+    /**
+     * Counts the output of one of the file writers of the request.
+     *
+     * @param lines Number of lines written.
+     * @param raw Size of the batch bodies sent.
+     * @param sent Size of the batch bodies after compression.
+     */
+    private synchronized void countFileOutput(long lines, long raw, long sent)
+    {
+        this.linesWritten += lines;
+        this.rawBytes += raw;
+        this.sentBytes += sent;
+    }
+
+    /**
+     * Sends the remaining lines and a TRAILER frame reporting an error.
+     *
+     * @param message Error message.
+     * @throws IOException if sending fails.
+     */
+    public synchronized void fail(String message) throws IOException
+    {
+        this.close();
+        GrepProtocol.writeTrailer(this.out, this.requestId, this.label, this.linesWritten, GrepProtocol.STATUS_ERROR, message);
+    }
+
+    /**
+     * Sends the remaining lines and releases the timer and the deflater.
+     *
+     * @throws IOException if sending fails.
+     */
+    private void close() throws IOException
+    {
+        if (this.flushTask != null)
+        {
+            this.flushTask.cancel(false);
+            this.flushTask = null;
+        }
+
+        try
+        {
+            if (!this.released)
+            {
+                this.flush();
+            }
+        }
+        finally
+        {
+            this.release();
+        }
+    }
+
+    /**
+     * Releases the timer and the deflater without sending anything, for a request
+     * which ended without its trailer, as when its session ended. Releasing a writer
+     * which was finished does nothing.
+     */
+    public synchronized void release()
+    {
+        if (this.flushTask != null)
+        {
+            this.flushTask.cancel(false);
+            this.flushTask = null;
+        }
+
+        if (!this.released)
+        {
+            this.released = true;
+            if (this.deflater != null)
+            {
+                this.deflater.end();
+            }
+        }
+    }
+
+    /**
+     * @throws IOException if the writer was released, as the request ended.
+     */
+    private void checkNotReleased() throws IOException
+    {
+        if (this.released)
+        {
+            throw new IOException("Request " + this.requestId + " already ended.");
+        }
+    }
+
+    /**
+     * Deflates the batch body into the payload.
+     *
+     * @param body Batch body.
+     * @param payload Payload the compressed bytes are appended to.
+     */
+    private void deflate(byte[] body, ByteArrayOutputStream payload)
+    {
+        this.deflater.reset();
+        this.deflater.setInput(body);
+        this.deflater.finish();
+
+        byte[] buffer = new byte[8192];
+        while (!this.deflater.finished())
+        {
+            int count = this.deflater.deflate(buffer);
+            payload.write(buffer, 0, count);
+        }
+    }
+
+    /**
+     * @return true if the first line of the current batch waited for the flush interval.
+     */
+    private boolean isFlushDue()
+    {
+        return this.flushMillis > 0 && this.batchLines > 0
+            && System.currentTimeMillis() - this.batchStartMillis >= this.flushMillis;
+    }
+
+    /**
+     * Starts the periodic task which sends the batch once it waited long enough. The
+     * timer only hands the flush to the flush executor, at most one at a time, as
+     * the writer may be locked by a line being written to a client which stopped
+     * reading.
+     */
+    private void startFlushTimer()
+    {
+        if (this.flushTask != null || this.flushMillis <= 0)
+        {
+            return;
+        }
+
+        final Runnable timedFlush = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (ResultBatchWriter.this)
+                {
+                    try
+                    {
+                        if (!released && isFlushDue())
+                        {
+                            flush();
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        GrepLogger.getInstance().LogWarning("[Server] Timed batch flush failed: " + e.getMessage());
+                        if (flushTask != null)
+                        {
+                            flushTask.cancel(false);
+                        }
+                    }
+                    finally
+                    {
+                        flushQueued.set(false);
+                    }
+                }
+            }
+        };
+
+        this.flushTask = FLUSH_TIMER.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (!flushQueued.compareAndSet(false, true))
+                {
+                    return;
+                }
+
+                try
+                {
+                    FLUSH_EXECUTOR.execute(timedFlush);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    flushQueued.set(false);
+                }
+            }
+        }, this.flushMillis, this.flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Label of the output lines.
+     */
+    public String getLabel()
+    {
+        return this.label;
+    }
+
+    /**
+     * @return Number of lines written so far.
+     */
+    public synchronized long getLinesWritten()
+    {
+        return this.linesWritten;
+    }
+
+    /**
+     * @return Statistics of the bytes sent, for logging.
+     */
+    public synchronized String getStatistics()
+    {
+        return this.linesWritten + " lines, " + this.rawBytes + " bytes of batches sent as "
+            + this.sentBytes + " bytes";
+    }
+}
@@ -0,0 +1,512 @@
+/**
+ * Cache of the results of the grep queries.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the output of recent queries, so that a query run again on a log file
+ * which did not change is answered without scanning the file. Results are keyed
+ * by the log file and the normalized query, and hold the identity, size and
+ * modification time of the file they were computed from; a result of an older
+ * version of the file is dropped when it is looked up.
+ *
+ * The results are kept in memory up to Result_cache_mb, least recently used ones
+ * being evicted first. When Result_cache_spill_dir is set, evicted results are
+ * written to that directory, up to Result_cache_spill_mb, and read back on a hit.
+ */
+public class ResultCache
+{
+    /**
+     * Prefix of the names of the spilled result files.
+     */
+    private static final String SPILL_PREFIX = "grep-result-";
+
+    /**
+     * Estimated memory taken by a result and by each of its lines, besides the characters.
+     */
+    private static final long RESULT_OVERHEAD = 128;
+    private static final long LINE_OVERHEAD = 48;
+
+    /**
+     * Single instance of the class.
+     */
+    private static final ResultCache instance = new ResultCache();
+
+    /**
+     * Memory budget of the cached results in bytes, 0 if caching is disabled.
+     */
+    private final long memoryBudget;
+
+    /**
+     * Directory of the spilled results, null if results are not spilled.
+     */
+    private final File spillDirectory;
+
+    /**
+     * Disk budget of the spilled results in bytes.
+     */
+    private final long spillBudget;
+
+    /**
+     * Results in memory and spilled results by key, least recently used first.
+     */
+    private final LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>(16, 0.75f, true);
+    private final LinkedHashMap<String, SpilledResult> spilled =
+        new LinkedHashMap<String, SpilledResult>(16, 0.75f, true);
+
+    /**
+     * Estimated size of the results in memory and size of the spilled results.
+     */
+    private long memoryUsed = 0;
+    private long spillUsed = 0;
+
+    /**
+     * Numbers the spilled result files.
+     */
+    private final AtomicLong spillCounter = new AtomicLong();
+
+    /**
+     * Logger instance.
+     */
+    private final GrepLogger logger = GrepLogger.getInstance();
+
+    private ResultCache()
+    {
+        GrepConfig config = GrepConfig.getInstance();
+        this.memoryBudget = Math.max(config.getLong("Result_cache_mb", 64), 0) << 20;
+        this.spillBudget = Math.max(config.getLong("Result_cache_spill_mb", 512), 0) << 20;
+
+        String spillDirectoryName = config.getString("Result_cache_spill_dir", "").trim();
+        File directory = null;
+        if (this.memoryBudget > 0 && this.spillBudget > 0 && !spillDirectoryName.isEmpty())
+        {
+            directory = new File(spillDirectoryName);
+            if (directory.isDirectory() || directory.mkdirs())
+            {
+                // Results spilled by an earlier run cannot be matched to their keys.
+                File[] leftovers = directory.listFiles();
+                for (File leftover : (leftovers == null) ? new File[0] : leftovers)
+                {
+                    if (leftover.getName().startsWith(SPILL_PREFIX))
+                    {
+                        leftover.delete();
+                    }
+                }
+            }
+            else
+            {
+                logger.LogWarning("[Server] Cannot create the result spill directory " + directory
+                    + ", results are only cached in memory.");
+                directory = null;
+            }
+        }
+        this.spillDirectory = directory;
+    }
+
+    /**
+     * @return Single instance of the class.
+     */
+    public static ResultCache getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Gets the key of the results of a query on a log file.
+     *
+     * @param logFile Log file.
+     * @param query Query.
+     * @return Key, or null if caching is disabled or the file cannot be resolved.
+     */
+    public String keyOf(File logFile, GrepQuery query)
+    {
+        if (this.memoryBudget == 0)
+        {
+            return null;
+        }
+
+        try
+        {
+            return logFile.getCanonicalPath() + '\0' + query.getNormalizedForm();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return Largest result in bytes that is cached.
+     */
+    public long getMaxResultSize()
+    {
+        return this.memoryBudget / 4;
+    }
+
+    /**
+     * Gets the cached result of a query, if it was computed from this version of the file.
+     *
+     * @param key Key of the result.
+     * @param version Current version of the log file.
+     * @return The result, or null if there is none for this version.
+     */
+    public Result get(String key, FileVersion version)
+    {
+        SpilledResult spilledResult;
+        synchronized (this)
+        {
+            Result result = this.results.get(key);
+            if (result != null)
+            {
+                if (result.version.equals(version))
+                {
+                    return result;
+                }
+                this.results.remove(key);
+                this.memoryUsed -= result.size;
+            }
+
+            spilledResult = this.spilled.remove(key);
+            if (spilledResult == null)
+            {
+                return null;
+            }
+            this.spillUsed -= spilledResult.size;
+        }
+
+        // A spilled result moves back to memory.
+        try
+        {
+            if (!spilledResult.version.equals(version))
+            {
+                return null;
+            }
+
+            Result result = Result.read(spilledResult.file, version);
+            this.put(key, result);
+            return result;
+        }
+        catch (IOException e)
+        {
+            logger.LogWarning("[Server] Dropping the unreadable spilled result " + spilledResult.file + ": "
+                + e.getMessage());
+            return null;
+        }
+        finally
+        {
+            spilledResult.file.delete();
+        }
+    }
+
+    /**
+     * Caches a result, evicting the least recently used ones over the memory budget.
+     *
+     * @param key Key of the result.
+     * @param result Complete result.
+     */
+    public void put(String key, Result result)
+    {
+        if (result.size > this.getMaxResultSize())
+        {
+            return;
+        }
+
+        List<Map.Entry<String, Result>> evicted = new ArrayList<Map.Entry<String, Result>>();
+        synchronized (this)
+        {
+            Result previous = this.results.put(key, result);
+            this.memoryUsed += result.size - ((previous == null) ? 0 : previous.size);
+            SpilledResult previousSpilled = this.spilled.remove(key);
+            if (previousSpilled != null)
+            {
+                this.spillUsed -= previousSpilled.size;
+                previousSpilled.file.delete();
+            }
+
+            Iterator<Map.Entry<String, Result>> iterator = this.results.entrySet().iterator();
+            while (this.memoryUsed > this.memoryBudget && iterator.hasNext())
+            {
+                Map.Entry<String, Result> eldest = iterator.next();
+                iterator.remove();
+                this.memoryUsed -= eldest.getValue().size;
+                evicted.add(eldest);
+            }
+        }
+
+        if (this.spillDirectory != null)
+        {
+            for (Map.Entry<String, Result> entry : evicted)
+            {
+                this.spill(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Writes an evicted result to the spill directory, evicting the least recently
+     * used spilled results over the disk budget.
+     *
+     * @param key Key of the result.
+     * @param result Result evicted from memory.
+     */
+    private void spill(String key, Result result)
+    {
+        File file = new File(this.spillDirectory, SPILL_PREFIX + this.spillCounter.incrementAndGet());
+        try
+        {
+            result.write(file);
+        }
+        catch (IOException e)
+        {
+            logger.LogWarning("[Server] Could not spill a result to " + file + ": " + e.getMessage());
+            file.delete();
+            return;
+        }
+
+        List<File> deleted = new ArrayList<File>();
+        synchronized (this)
+        {
+            SpilledResult previous = this.spilled.put(key, new SpilledResult(result.version, file, file.length()));
+            if (previous != null)
+            {
+                this.spillUsed -= previous.size;
+                deleted.add(previous.file);
+            }
+            this.spillUsed += file.length();
+
+            Iterator<SpilledResult> iterator = this.spilled.values().iterator();
+            while (this.spillUsed > this.spillBudget && iterator.hasNext())
+            {
+                SpilledResult eldest = iterator.next();
+                iterator.remove();
+                this.spillUsed -= eldest.size;
+                deleted.add(eldest.file);
+            }
+        }
+
+        for (File oldFile : deleted)
+        {
+            oldFile.delete();
+        }
+    }
+
+    /**
+     * Identity, size and modification time of a log file. A log file which is
+     * appended to, rewritten or replaced gets a different version.
+     */
+    public static class FileVersion
+    {
+        private final String identity;
+        private final long size;
+        private final long lastModified;
+
+        private FileVersion(String identity, long size, long lastModified)
+        {
+            this.identity = identity;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @param file Log file.
+         * @return Current version of the file, or null if its attributes cannot be read.
+         */
+        public static FileVersion of(File file)
+        {
+            try
+            {
+                BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                // The file key (device and inode on Unix) tells a replaced file apart.
+                Object fileKey = attributes.fileKey();
+                return new FileVersion((fileKey == null) ? file.getCanonicalPath() : fileKey.toString(),
+                    attributes.size(), attributes.lastModifiedTime().toMillis());
+            }
+            catch (IOException e)
+            {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof FileVersion))
+            {
+                return false;
+            }
+
+            FileVersion version = (FileVersion) other;
+            return this.identity.equals(version.identity) && this.size == version.size
+                && this.lastModified == version.lastModified;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.identity.hashCode() * 31 + Long.hashCode(this.size) * 17 + Long.hashCode(this.lastModified);
+        }
+    }
+
+    /**
+     * Output of a query: the output lines, with their timestamps for ordered
+     * queries, and the summary of the file.
+     */
+    public static class Result
+    {
+        private final FileVersion version;
+        private final List<String> lines = new ArrayList<String>();
+        private long[] timestamps;
+        private FileSummary summary;
+        private long size = RESULT_OVERHEAD;
+
+        /**
+         * Constructor for the class Result, to record the output of a query.
+         *
+         * @param version Version of the log file the query runs on.
+         * @param timed True if the lines have timestamps.
+         */
+        public Result(FileVersion version, boolean timed)
+        {
+            this.version = version;
+            this.timestamps = timed ? new long[16] : null;
+        }
+
+        /**
+         * Records an output line.
+         *
+         * @param timestamp Timestamp of the line, ignored unless the lines have timestamps.
+         * @param line Output line.
+         */
+        public void addLine(long timestamp, String line)
+        {
+            if (this.timestamps != null)
+            {
+                if (this.lines.size() == this.timestamps.length)
+                {
+                    this.timestamps = Arrays.copyOf(this.timestamps, this.timestamps.length * 2);
+                }
+                this.timestamps[this.lines.size()] = timestamp;
+                this.size += 8;
+            }
+            this.lines.add(line);
+            this.size += LINE_OVERHEAD + 2L * line.length();
+        }
+
+        /**
+         * @return Estimated memory taken by the result.
+         */
+        public long getSize()
+        {
+            return this.size;
+        }
+
+        /**
+         * @param summary Summary of the file, which completes the result.
+         */
+        public void setSummary(FileSummary summary)
+        {
+            this.summary = summary;
+        }
+
+        public FileSummary getSummary()
+        {
+            return this.summary;
+        }
+
+        public int getLineCount()
+        {
+            return this.lines.size();
+        }
+
+        public String getLine(int index)
+        {
+            return this.lines.get(index);
+        }
+
+        /**
+         * @param index Index of a line.
+         * @return Timestamp of the line, 0 if the lines have none.
+         */
+        public long getTimestamp(int index)
+        {
+            return (this.timestamps == null) ? 0 : this.timestamps[index];
+        }
+
+        public boolean isTimed()
+        {
+            return this.timestamps != null;
+        }
+
+        private void write(File file) throws IOException
+        {
+            try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16)))
+            {
+                out.writeBoolean(this.isTimed());
+                this.summary.write(out);
+                out.writeInt(this.lines.size());
+                for (int i = 0; i < this.lines.size(); i++)
+                {
+                    if (this.isTimed())
+                    {
+                        out.writeLong(this.timestamps[i]);
+                    }
+                    GrepProtocol.writeString(out, this.lines.get(i));
+                }
+            }
+        }
+
+        private static Result read(File file, FileVersion version) throws IOException
+        {
+            try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16)))
+            {
+                Result result = new Result(version, in.readBoolean());
+                result.setSummary(FileSummary.read(in));
+                int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                {
+                    long timestamp = result.isTimed() ? in.readLong() : 0;
+                    result.addLine(timestamp, GrepProtocol.readString(in));
+                }
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Result written to the spill directory.
+     */
+    private static class SpilledResult
+    {
+        final FileVersion version;
+        final File file;
+        final long size;
+
+        SpilledResult(FileVersion version, File file, long size)
+        {
+            this.version = version;
+            this.file = file;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Class to merge the output lines of all the VMs by time.
+ * 
+ * @author Prateeth Reddy Chagari (chagari2@illinois.edu)
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * K-way merge of the timed lines sent by the VMs for --ordered queries. Each VM has
+ * a buffer of at most Merge_buffer_lines lines, and a heap holds the first line of
+ * every buffer. The earliest line is written as soon as every VM still running has
+ * a line buffered, since no VM can then send an earlier one: the lines of one VM
+ * arrive in the order of its log file. A VM whose buffer is full waits until its
+ * lines are written, which slows down its connection instead of using more memory.
+ * Lines and ends of VMs which arrive after close, from a query cancelled at the
+ * deadline, are ignored.
+ */
+public class ResultMerger {
+    /**
+     * Buffered lines of one VM.
+     */
+    private static class Source {
+        final int index;
+        final String vmId;
+        final ArrayDeque<Line> lines = new ArrayDeque<Line>();
+        boolean finished = false;
+
+        Source(int index, String vmId) {
+            this.index = index;
+            this.vmId = vmId;
+        }
+    }
+
+    /**
+     * A buffered line.
+     */
+    private static class Line implements Comparable<Line> {
+        final long timestamp;
+        final String text;
+        final Source source;
+
+        Line(long timestamp, String text, Source source) {
+            this.timestamp = timestamp;
+            this.text = text;
+            this.source = source;
+        }
+
+        @Override
+        public int compareTo(Line other) {
+            if (timestamp != other.timestamp) {
+                return timestamp < other.timestamp ? -1 : 1;
+            }
+            return Integer.compare(source.index, other.source.index);
+        }
+    }
+
+    private final Map<String, Source> sources = new HashMap<String, Source>();
+
+    /**
+     * first line of each buffer which is not empty.
+     */
+    private final PriorityQueue<Line> heads = new PriorityQueue<Line>();
+
+    /**
+     * number of running VMs whose buffer is empty; lines are written only when it is 0.
+     */
+    private int emptyRunning;
+
+    private final int bufferLines;
+    private final Writer out;
+    private long linesWritten = 0;
+    private IOException writeError = null;
+    private boolean closed = false;
+
+    /**
+     * constructor of ResultMerger type class.
+     * 
+     * @param vmIds log file IDs of the VMs to be merged.
+     * @param out output of the merged lines.
+     * @param bufferLines max number of lines buffered per VM.
+     */
+    public ResultMerger(List<String> vmIds, Writer out, int bufferLines) {
+        for (int i = 0; i < vmIds.size(); i++) {
+            sources.put(vmIds.get(i), new Source(i, vmIds.get(i)));
+        }
+        this.emptyRunning = sources.size();
+        this.bufferLines = Math.max(bufferLines, 1);
+        this.out = out;
+    }
+
+    /**
+     * Adds a line sent by a VM, waiting while the buffer of the VM is full.
+     * 
+     * @param vmId log file ID of the VM.
+     * @param timestamp timestamp of the log record of the line.
+     * @param text line to be written.
+     * @throws IOException if writing the merged output failed.
+     * @throws InterruptedIOException if the wait is interrupted.
+     */
+    public synchronized void add(String vmId, long timestamp, String text) throws IOException {
+        Source source = sources.get(vmId);
+        while (source.lines.size() >= bufferLines && writeError == null && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while merging the lines of " + vmId);
+            }
+        }
+        checkWriteError();
+        if (closed) {
+            return;
+        }
+
+        Line line = new Line(timestamp, text, source);
+        source.lines.add(line);
+        if (source.lines.size() == 1) {
+            heads.add(line);
+            emptyRunning--;
+        }
+        drain();
+    }
+
+    /**
+     * Marks a VM as done, whatever its outcome; its buffered lines are still written.
+     * 
+     * @param vmId log file ID of the VM.
+     */
+    public synchronized void finish(String vmId) {
+        Source source = sources.get(vmId);
+        if (source == null || source.finished || closed) {
+            return;
+        }
+        source.finished = true;
+        if (source.lines.isEmpty()) {
+            emptyRunning--;
+        }
+        try {
+            drain();
+        } catch (IOException e) {
+            // reported by close
+        }
+    }
+
+    /**
+     * Writes the lines that remain once every VM is done, and flushes the output.
+     * VMs not marked as done are treated as done, and anything they add later is ignored.
+     * 
+     * @return number of merged lines written.
+     * @throws IOException if writing fails.
+     */
+    public synchronized long close() throws IOException {
+        if (closed) {
+            return linesWritten;
+        }
+        for (Source source : sources.values()) {
+            finish(source.vmId);
+        }
+        closed = true;
+        notifyAll();
+        checkWriteError();
+        out.flush();
+        return linesWritten;
+    }
+
+    /**
+     * Writes the earliest lines while no running VM has an empty buffer.
+     * 
+     * @throws IOException if writing fails.
+     */
+    private void drain() throws IOException {
+        boolean written = false;
+        try {
+            while (emptyRunning == 0 && !heads.isEmpty() && writeError == null) {
+                Line line = heads.poll();
+                Source source = line.source;
+                source.lines.poll();
+                out.write(source.vmId + " " + line.text);
+                out.write(System.getProperty("line.separator"));
+                linesWritten++;
+                written = true;
+
+                Line next = source.lines.peek();
+                if (next != null) {
+                    heads.add(next);
+                } else if (!source.finished) {
+                    emptyRunning++;
+                }
+            }
+        } catch (IOException e) {
+            writeError = e;
+        } finally {
+            if (written || writeError != null) {
+                notifyAll();
+            }
+        }
+        checkWriteError();
+    }
+
+    private void checkWriteError() throws IOException {
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+}
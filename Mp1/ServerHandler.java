@@ -8,6 +8,7 @@ import java.io.*;
 import java.lang.reflect.Constructor;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.Semaphore;
 
 /**
  * Class to handle the server side operations.
@@ -40,6 +41,22 @@ public class ServerHandler {
      */
     private GrepLogger logger;
 
+    /**
+     * Server mode setting value to serve the grep sessions with the event loop.
+     */
+    private static final String SERVER_MODE_NIO = "nio";
+
+    /**
+     * Server mode setting value to serve each client on a virtual thread.
+     */
+    private static final String SERVER_MODE_VIRTUAL = "virtual";
+
+    /**
+     * Limits the number of clients served at once, from the Max_sessions setting.
+     */
+    private final Semaphore sessionPermits =
+        new Semaphore(Math.max(GrepConfig.getInstance().getInt("Max_sessions", 1000), 1));
+
     /**
      * Private constructor of ServerHandler type class.
      * 
@@ -104,9 +121,22 @@ public class ServerHandler {
      */
     public void run() throws IOException, IllegalArgumentException 
     {
+        // Grep sessions are served by the event loop unless Server_mode asks for a thread per client.
+        if (this.requestHandler == GrepRequestHandler.class && SERVER_MODE_NIO.equalsIgnoreCase(
+                GrepConfig.getInstance().getString("Server_mode", SERVER_MODE_NIO)))
+        {
+            new NioServer(this.port).run();
+            return;
+        }
+
         this.setupServer();
 
         int noOfClientsServed = 0;
+        boolean virtual = isVirtualMode();
+        if (virtual && !TaskThreads.isVirtualAvailable())
+        {
+            logger.LogWarning("[Server] Virtual threads need Java 21. Using platform threads with a small stack.");
+        }
 
         try {
 
@@ -114,14 +144,43 @@ public class ServerHandler {
                 logger.LogInfo("[Server] No of clients serverd so far: " + noOfClientsServed
                         + ". Waiting for more connections.");
 
+                // Waits for a free session slot, further clients wait in the accept backlog.
+                this.sessionPermits.acquire();
+
                 // Server waiting for the client connection.
-                Socket client = this.server.accept();
+                Socket client;
+                try
+                {
+                    client = this.server.accept();
+                    // Detects clients which vanished without closing the connection.
+                    client.setKeepAlive(true);
+                }
+                catch (IOException e)
+                {
+                    this.sessionPermits.release();
+                    throw e;
+                }
                 noOfClientsServed += 1;
 
                 // Creates a client handler to perform the client requested operations.
-                Thread clientRequestHandler = (Thread)this.getObjectofClientRequestHandler(client);
+                final Runnable clientRequestHandler = this.getObjectofClientRequestHandler(client);
+                Runnable session = new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            clientRequestHandler.run();
+                        }
+                        finally
+                        {
+                            sessionPermits.release();
+                        }
+                    }
+                };
 
-                clientRequestHandler.start();
+                TaskThreads.newSessionThread(null, session, "Session-" + noOfClientsServed, virtual).start();
             }
         } 
         catch (Exception e) 
@@ -134,6 +193,14 @@ public class ServerHandler {
         }
     }
 
+    /**
+     * @return true if the Server_mode setting asks for a virtual thread per client.
+     */
+    public static boolean isVirtualMode()
+    {
+        return SERVER_MODE_VIRTUAL.equalsIgnoreCase(GrepConfig.getInstance().getString("Server_mode", SERVER_MODE_NIO));
+    }
+
     /**
      * Setups the server on the port.
      * 
@@ -0,0 +1,611 @@
+/**
+ * Scan of a log file shared by the queries running on it at the same time.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+
+/**
+ * Reads a log file once for all the regex queries which search it at the same
+ * time. The first query starts the scan, which a coordinator thread runs over the
+ * file in line-aligned segments on the scan pool, as the parallel scan does. A
+ * query arriving while the scan runs joins it at the next segment instead of
+ * reading the file again: every line of a segment is decoded once and matched with
+ * the pattern of each query in the segment, into a result of its own. The segments
+ * are passed to each query in file order, so its lines and line numbers are the
+ * same as those of a scan of its own.
+ *
+ * A query which joined at an offset past the start of the file keeps the scan
+ * going when it reaches the end of the file, and the scan wraps around to the
+ * start until that query has read the part it missed. Its lines from the join
+ * offset on are held until then, up to Shared_scan_buffer_mb. A query which falls
+ * behind the scan, whose buffer is full or whose scan failed leaves the shared scan
+ * and reads the parts of the file it still misses alone. Lines appended after the
+ * scan started are searched by each query alone.
+ */
+public class SharedScan implements Runnable
+{
+    /**
+     * Running scans by the identity of their file, also the lock of all the scans.
+     */
+    private static final Map<Object, SharedScan> scans = new HashMap<Object, SharedScan>();
+
+    /**
+     * Runs the coordinators of the scans.
+     */
+    private static final ExecutorService coordinators = TaskThreads.newExecutor("SharedScan-", false);
+
+    /**
+     * Whether running scans are shared, from the Shared_scans_enabled setting.
+     */
+    private static final boolean enabled = GrepConfig.getInstance().getBoolean("Shared_scans_enabled", true);
+
+    /**
+     * Max size of the lines a late query holds until the scan wrapped around, from
+     * the Shared_scan_buffer_mb setting.
+     */
+    private static final long bufferBytes =
+        Math.max(GrepConfig.getInstance().getLong("Shared_scan_buffer_mb", 64), 0) << 20;
+
+    /**
+     * How often a query waiting for a segment checks whether it was stopped.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * Logger instance.
+     */
+    private static final GrepLogger logger = GrepLogger.getInstance();
+
+    /**
+     * Identity of the file.
+     */
+    private final Object key;
+
+    /**
+     * File scanned.
+     */
+    private final File file;
+
+    /**
+     * Size of the file when the scan started, which every lap of the scan reads.
+     */
+    private final long scanSize;
+
+    /**
+     * Max number of segments in flight and their size, from the query which started the scan.
+     */
+    private final int parallelism;
+    private final long segmentSize;
+
+    /**
+     * Queries which joined the scan, guarded by the scans lock.
+     */
+    private final List<Participant> participants = new ArrayList<Participant>();
+
+    /**
+     * Start of the next segment, guarded by the scans lock.
+     */
+    private long nextStart = 0;
+
+    /**
+     * Whether the coordinator is done and takes no more queries, guarded by the scans lock.
+     */
+    private boolean finished = false;
+
+    /**
+     * Constructor for the class SharedScan.
+     *
+     * @param key Identity of the file.
+     * @param file File scanned.
+     * @param scanSize Size of the file.
+     * @param searcher Searcher of the query which starts the scan.
+     */
+    private SharedScan(Object key, File file, long scanSize, GrepSearcher searcher)
+    {
+        this.key = key;
+        this.file = file;
+        this.scanSize = scanSize;
+        this.parallelism = searcher.getParallelism();
+        this.segmentSize = searcher.getChunkSize();
+    }
+
+    /**
+     * @return true if running scans are shared, from the Shared_scans_enabled setting.
+     */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Searches the file with a running scan of it, which the query joins, or with a
+     * new scan which later queries may join.
+     *
+     * @param file File to be searched.
+     * @param channel Channel of the file, read by the query for the parts it covers alone.
+     * @param fileSize Size of the file.
+     * @param searcher Searcher of the query, which has no max count.
+     * @param listener Receiver of the selected lines.
+     * @return Result of the whole search, null if the file shrank since the running
+     *         scan of it started and the query has to search it alone.
+     * @throws IOException if the file cannot be read or the listener fails.
+     */
+    static GrepSearcher.RangeResult search(File file, FileChannel channel, long fileSize, GrepSearcher searcher,
+        MatchListener listener) throws IOException
+    {
+        Object fileKey = GrepSearcher.fileKeyOf(file);
+        Object key = (fileKey != null) ? fileKey : file.getAbsolutePath();
+        Participant participant;
+        synchronized (scans)
+        {
+            SharedScan scan = scans.get(key);
+            if (scan == null)
+            {
+                scan = new SharedScan(key, file, fileSize, searcher);
+                scans.put(key, scan);
+                coordinators.execute(scan);
+            }
+            else if (scan.scanSize > fileSize)
+            {
+                return null;
+            }
+            else
+            {
+                logger.LogInfo("[Server] Query joined the running scan of " + file.getPath() + " at offset "
+                    + scan.nextStart + " of " + scan.scanSize);
+            }
+            participant = scan.join(searcher);
+        }
+
+        return participant.collect(channel, fileSize, listener);
+    }
+
+    /**
+     * Adds a query to the scan at the start of the next segment. Must be called
+     * holding the scans lock.
+     *
+     * @param searcher Searcher of the query.
+     * @return Participant of the query.
+     */
+    private Participant join(GrepSearcher searcher)
+    {
+        Participant participant = new Participant(searcher, this.nextStart, this.scanSize,
+            2 * this.parallelism);
+        this.participants.add(participant);
+        return participant;
+    }
+
+    /**
+     * Runs the scan while queries read it, and passes the segments to them in order.
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        Deque<Future<Segment>> inFlight = new ArrayDeque<Future<Segment>>();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "r");
+             FileChannel channel = randomAccessFile.getChannel())
+        {
+            long lapLines = 0;
+            while (this.submitSegments(channel, inFlight))
+            {
+                Segment segment = inFlight.poll().get();
+                if (segment.start == 0)
+                {
+                    lapLines = 0;
+                }
+                segment.linesBefore = lapLines;
+                lapLines += segment.lineCount;
+                for (int i = 0; i < segment.members.length; i++)
+                {
+                    Participant member = segment.members[i];
+                    if (!member.left && !member.queue.offer(segment.results[i].withSegment(segment)))
+                    {
+                        // The query falls behind the scan and reads the rest alone.
+                        member.left = true;
+                    }
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            if (e instanceof InterruptedException)
+            {
+                Thread.currentThread().interrupt();
+            }
+            logger.LogException("[Server] Shared scan of " + this.file.getPath() + " failed with:", e);
+        }
+        finally
+        {
+            for (Future<Segment> future : inFlight)
+            {
+                future.cancel(true);
+            }
+            this.finish();
+        }
+    }
+
+    /**
+     * Submits segments until parallelism of them are in flight, each one read for
+     * the queries which still miss it, and ends the scan when no query does.
+     *
+     * @param channel Channel of the file.
+     * @param inFlight Segments submitted and not yet passed to their queries.
+     * @return false if the scan ended.
+     * @throws IOException if the file cannot be read.
+     */
+    private boolean submitSegments(FileChannel channel, Deque<Future<Segment>> inFlight) throws IOException
+    {
+        synchronized (scans)
+        {
+            while (inFlight.size() < this.parallelism)
+            {
+                long needed = Long.MAX_VALUE;
+                List<Participant> members = new ArrayList<Participant>();
+                for (Participant participant : this.participants)
+                {
+                    if (!participant.left && participant.remaining > 0)
+                    {
+                        members.add(participant);
+                        needed = Math.min(needed, participant.remaining);
+                    }
+                }
+                if (members.isEmpty())
+                {
+                    break;
+                }
+
+                // A segment ends where the first of its queries has read the whole file.
+                long end = Math.min(Math.min(GrepSearcher.alignToLine(channel, this.nextStart + this.segmentSize,
+                    this.scanSize), this.scanSize), this.nextStart + needed);
+                for (Participant member : members)
+                {
+                    member.remaining -= end - this.nextStart;
+                }
+                inFlight.add(GrepSearcher.SCAN_POOL.submit(new SegmentTask(channel, this.nextStart, end,
+                    members.toArray(new Participant[members.size()]))));
+                this.nextStart = (end == this.scanSize) ? 0 : end;
+            }
+
+            if (inFlight.isEmpty())
+            {
+                this.finished = true;
+                scans.remove(this.key);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Ends the scan, whose queries still reading it read the rest alone.
+     */
+    private void finish()
+    {
+        synchronized (scans)
+        {
+            if (!this.finished)
+            {
+                this.finished = true;
+                scans.remove(this.key);
+            }
+            for (Participant participant : this.participants)
+            {
+                participant.left = true;
+            }
+            this.participants.clear();
+        }
+    }
+
+    /**
+     * Segment of the file read for a set of queries.
+     */
+    private static class Segment
+    {
+        final long start;
+        final long end;
+
+        /**
+         * Number of lines in the segment.
+         */
+        long lineCount;
+
+        /**
+         * Number of lines of the file before the segment, set when it is passed on.
+         */
+        long linesBefore;
+
+        /**
+         * Queries the segment was read for, and the result of each of them.
+         */
+        final Participant[] members;
+        final PartResult[] results;
+
+        Segment(long start, long end, Participant[] members)
+        {
+            this.start = start;
+            this.end = end;
+            this.members = members;
+            this.results = new PartResult[members.length];
+        }
+    }
+
+    /**
+     * Result of a segment for one query.
+     */
+    private static class PartResult extends GrepSearcher.ChunkResult
+    {
+        /**
+         * Segment of the result.
+         */
+        Segment segment;
+
+        /**
+         * Size of the selected lines held.
+         */
+        long bytes;
+
+        PartResult withSegment(Segment segment)
+        {
+            this.segment = segment;
+            return this;
+        }
+    }
+
+    /**
+     * Reads a segment on the scan pool, decoding each of its lines once, and matches
+     * the lines with the pattern of every query of the segment.
+     */
+    private static class SegmentTask implements Callable<Segment>
+    {
+        private final FileChannel channel;
+        private final Segment segment;
+
+        SegmentTask(FileChannel channel, long start, long end, Participant[] members)
+        {
+            this.channel = channel;
+            this.segment = new Segment(start, end, members);
+        }
+
+        @Override
+        public Segment call() throws IOException
+        {
+            final Participant[] members = this.segment.members;
+            final PartResult[] results = this.segment.results;
+            final Matcher[] matchers = new Matcher[members.length];
+            for (int i = 0; i < members.length; i++)
+            {
+                results[i] = new PartResult();
+                matchers[i] = members[i].searcher.newMatcher();
+            }
+
+            this.segment.lineCount = GrepSearcher.readLines(this.channel, null, this.segment.start,
+                this.segment.end, new GrepSearcher.LineHandler()
+                {
+                    @Override
+                    public boolean onLine(long lineNumber, long byteOffset, String line)
+                    {
+                        for (int i = 0; i < members.length; i++)
+                        {
+                            if (members[i].searcher.selectLine(matchers[i], line, byteOffset, results[i])
+                                && members[i].needsLines)
+                            {
+                                results[i].matches.add(new GrepSearcher.BufferedMatch(lineNumber, byteOffset, line));
+                                results[i].bytes += 2 * line.length() + 64;
+                            }
+                        }
+                        return true;
+                    }
+                });
+            return this.segment;
+        }
+    }
+
+    /**
+     * Query reading the scan.
+     */
+    private static class Participant
+    {
+        final GrepSearcher searcher;
+        final boolean needsLines;
+
+        /**
+         * Offset of the file the query joined the scan at.
+         */
+        final long joinOffset;
+
+        /**
+         * Size of the file scanned.
+         */
+        final long scanSize;
+
+        /**
+         * Segments read for the query and not yet taken by it.
+         */
+        final BlockingQueue<PartResult> queue;
+
+        /**
+         * Bytes of the file the scan has yet to submit for the query, guarded by the scans lock.
+         */
+        long remaining;
+
+        /**
+         * Whether the query reads the rest of the file alone.
+         */
+        volatile boolean left = false;
+
+        Participant(GrepSearcher searcher, long joinOffset, long scanSize, int queueSize)
+        {
+            this.searcher = searcher;
+            this.needsLines = searcher.getQuery().needsLines();
+            this.joinOffset = joinOffset;
+            this.scanSize = scanSize;
+            this.remaining = scanSize;
+            this.queue = new ArrayBlockingQueue<PartResult>(queueSize);
+        }
+
+        /**
+         * Takes the segments of the query and passes them to the listener in file
+         * order, then reads alone what the scan did not cover for it.
+         *
+         * @param channel Channel of the file.
+         * @param fileSize Size of the file for the query.
+         * @param listener Receiver of the selected lines.
+         * @return Result of the whole search.
+         * @throws IOException if the file cannot be read or the listener fails.
+         */
+        GrepSearcher.RangeResult collect(FileChannel channel, long fileSize, MatchListener listener)
+            throws IOException
+        {
+            GrepSearcher.RangeResult result = new GrepSearcher.RangeResult();
+            // Segments from the join offset to the end of the file, held until the scan wrapped around.
+            List<PartResult> held = new ArrayList<PartResult>();
+            long heldBytes = 0;
+            boolean wrapped = this.joinOffset == 0;
+            // End of the file read so far in the order of the scan, and the number of lines before it.
+            long covered = this.joinOffset;
+            long coveredLines = -1;
+            // Number of lines before the scan size, -1 until known.
+            long scanLines = -1;
+
+            try
+            {
+                while (!(wrapped && covered == (this.joinOffset == 0 ? this.scanSize : this.joinOffset)))
+                {
+                    if (this.searcher.isStopped())
+                    {
+                        this.left = true;
+                        return result;
+                    }
+
+                    PartResult part = this.queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (part == null)
+                    {
+                        if (this.left)
+                        {
+                            part = this.queue.poll();
+                            if (part == null)
+                            {
+                                break;
+                            }
+                        }
+                        else
+                        {
+                            continue;
+                        }
+                    }
+
+                    Segment segment = part.segment;
+                    if (segment.end == this.scanSize)
+                    {
+                        scanLines = segment.linesBefore + segment.lineCount;
+                    }
+                    if (segment.start == 0 && this.joinOffset > 0)
+                    {
+                        wrapped = true;
+                    }
+
+                    if (wrapped)
+                    {
+                        this.searcher.deliverChunk(part, segment.linesBefore, listener, result);
+                    }
+                    else if (heldBytes + part.bytes > bufferBytes)
+                    {
+                        // The lines held would take too much memory, the rest is read alone.
+                        this.left = true;
+                        break;
+                    }
+                    else
+                    {
+                        held.add(part);
+                        heldBytes += part.bytes;
+                    }
+                    covered = segment.end;
+                    coveredLines = segment.linesBefore + segment.lineCount;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                this.left = true;
+                Thread.currentThread().interrupt();
+                throw new IOException("Search interrupted.", e);
+            }
+
+            // Reads alone, in file order, the parts the scan did not cover.
+            if (this.joinOffset == 0)
+            {
+                if (covered < this.scanSize)
+                {
+                    long lines = (covered == 0) ? 0 : coveredLines;
+                    scanLines = lines + this.searcher.scanPart(channel, covered, this.scanSize, lines, listener,
+                        result);
+                }
+            }
+            else if (!wrapped)
+            {
+                long joinLines = this.searcher.scanPart(channel, 0, this.joinOffset, 0, listener, result);
+                this.deliverHeld(held, listener, result);
+                if (covered < this.scanSize)
+                {
+                    long lines = held.isEmpty() ? joinLines : coveredLines;
+                    scanLines = lines + this.searcher.scanPart(channel, covered, this.scanSize, lines, listener,
+                        result);
+                }
+            }
+            else
+            {
+                if (covered < this.joinOffset)
+                {
+                    this.searcher.scanPart(channel, covered, this.joinOffset, coveredLines, listener, result);
+                }
+                this.deliverHeld(held, listener, result);
+            }
+
+            // Lines appended since the scan started.
+            if (fileSize > this.scanSize && !this.searcher.isStopped())
+            {
+                if (scanLines < 0)
+                {
+                    scanLines = GrepSearcher.countLines(channel, 0, this.scanSize);
+                }
+                this.searcher.scanPart(channel, this.scanSize, fileSize, scanLines, listener, result);
+            }
+            return result;
+        }
+
+        /**
+         * Passes the held segments to the listener.
+         *
+         * @param held Segments from the join offset to the end of the file.
+         * @param listener Receiver of the selected lines.
+         * @param result Result of the whole search.
+         * @throws IOException if the listener fails.
+         */
+        private void deliverHeld(List<PartResult> held, MatchListener listener, GrepSearcher.RangeResult result)
+            throws IOException
+        {
+            for (PartResult part : held)
+            {
+                this.searcher.deliverChunk(part, part.segment.linesBefore, listener, result);
+            }
+        }
+    }
+}
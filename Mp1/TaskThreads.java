@@ -0,0 +1,161 @@
+/**
+ * Creates the threads which run the sessions and queries.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts tasks on virtual threads when the JVM has them (Java 21 and later), or on
+ * platform threads otherwise. Virtual threads are looked up by reflection so that
+ * the code still compiles and runs on older JVMs. Platform threads get the JVM
+ * default stack, as they may match backtracking regexes against long lines; only
+ * the session threads, which mostly wait for frames, get a small stack.
+ */
+public class TaskThreads
+{
+    /**
+     * Stack size of the platform session threads, from the Thread_stack_kb setting.
+     */
+    private static final long SESSION_STACK_BYTES = GrepConfig.getInstance().getLong("Thread_stack_kb", 256) << 10;
+
+    /**
+     * Thread.ofVirtual(), null if the JVM has no virtual threads. Builders are not
+     * thread safe, so one is made per thread.
+     */
+    private static final Method OF_VIRTUAL;
+
+    /**
+     * Thread.Builder.unstarted(Runnable), null if the JVM has no virtual threads.
+     */
+    private static final Method UNSTARTED;
+
+    static
+    {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        try
+        {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        }
+        catch (Exception e)
+        {
+            ofVirtual = null;
+            unstarted = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    private TaskThreads()
+    {
+    }
+
+    /**
+     * @return true if the JVM supports virtual threads.
+     */
+    public static boolean isVirtualAvailable()
+    {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates an unstarted thread for the task.
+     *
+     * @param group Thread group of a platform thread, may be null.
+     * @param task Task to be run.
+     * @param name Name of the thread.
+     * @param virtual true to use a virtual thread if the JVM supports them.
+     * @return Unstarted thread.
+     */
+    public static Thread newThread(ThreadGroup group, Runnable task, String name, boolean virtual)
+    {
+        return newThread(group, task, name, virtual, 0);
+    }
+
+    /**
+     * Creates an unstarted thread for a session, which only reads frames and hands
+     * its requests to other threads, with the small stack of the Thread_stack_kb setting.
+     *
+     * @param group Thread group of a platform thread, may be null.
+     * @param task Session to be served.
+     * @param name Name of the thread.
+     * @param virtual true to use a virtual thread if the JVM supports them.
+     * @return Unstarted thread.
+     */
+    public static Thread newSessionThread(ThreadGroup group, Runnable task, String name, boolean virtual)
+    {
+        return newThread(group, task, name, virtual, SESSION_STACK_BYTES);
+    }
+
+    /**
+     * Creates an unstarted thread for the task.
+     *
+     * @param group Thread group of a platform thread, may be null.
+     * @param task Task to be run.
+     * @param name Name of the thread.
+     * @param virtual true to use a virtual thread if the JVM supports them.
+     * @param stackBytes Stack size of a platform thread, 0 for the JVM default.
+     * @return Unstarted thread.
+     */
+    private static Thread newThread(ThreadGroup group, Runnable task, String name, boolean virtual, long stackBytes)
+    {
+        if (virtual && OF_VIRTUAL != null)
+        {
+            try
+            {
+                Thread thread = (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+                thread.setName(name);
+                return thread;
+            }
+            catch (Exception e)
+            {
+                GrepLogger.getInstance().LogWarning("Could not create a virtual thread: " + e.getMessage());
+            }
+        }
+
+        return new Thread(group, task, name, stackBytes);
+    }
+
+    /**
+     * Creates an executor which runs every task on a new virtual thread, or on a pool of
+     * platform threads with the JVM default stack.
+     *
+     * @param namePrefix Prefix of the thread names.
+     * @param virtual true to use virtual threads if the JVM supports them.
+     * @return Executor.
+     */
+    public static ExecutorService newExecutor(final String namePrefix, final boolean virtual)
+    {
+        if (virtual && OF_VIRTUAL != null)
+        {
+            try
+            {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (Exception e)
+            {
+                GrepLogger.getInstance().LogWarning("Could not create a virtual thread executor: " + e.getMessage());
+            }
+        }
+
+        return Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(null, runnable, namePrefix + count.incrementAndGet(), 0);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
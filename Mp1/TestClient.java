@@ -7,6 +7,8 @@
 import java.io.*;
 import java.util.Scanner;
 import java.util.Properties;
+import java.util.ArrayList;
+import java.util.List;
 
 public class TestClient {
     
@@ -46,11 +48,6 @@ public class TestClient {
     static enum patterns {infrequent, frequent, regex;}
     static int pass = 0, count, vm_count;
 
-    /**
-     * Thread group used to monitor the threads.
-     */
-    static ThreadGroup threadGroup = new ThreadGroup("TestClient");
-
     /**
      * Logger instance.
      */
@@ -74,7 +71,7 @@ public class TestClient {
         serverProps.load(inputServerProps);
         
         // calls the log generator method and returns number of log files generated (one for each server)
-        int pass = log_generator(threadGroup);
+        int pass = log_generator();
 	
         // input the test to be run
         System.out.println("Enter 1 for infrequent pattern test, 2 for frequent, 3 for regex, 4 for failure");
@@ -85,36 +82,36 @@ public class TestClient {
                 // run the grep command for infrequent pattern
                 String infrequentPattern = "this is log for VM2";
                 logger.LogInfo("Running test for infrequent pattern");
-                run_server(threadGroup, pass, infrequentPattern, 1);
+                run_server(pass, infrequentPattern, 1);
                 break;
             }
             case 2: {
                 // run the grep command for frequent pattern
                 String frequentPattern = "frequentpattern hello123";
-                run_server(threadGroup, pass, frequentPattern, 2);
+                run_server(pass, frequentPattern, 2);
                 break;
             }
             case 3: {
                 // run the grep command for regex pattern
                 String regexPattern = "-E \"a*bb*a*\"";
-                run_server(threadGroup, pass, regexPattern, 3);
+                run_server(pass, regexPattern, 3);
                 break;
             }
             case 4: {
                 // run the grep command for infrequent pattern and compare against expected frequentvalue
                 String infrequentPattern = "this is log for VM2";
                 logger.LogInfo("Running test for failure case");
-                run_server(threadGroup, pass, infrequentPattern, 2);
+                run_server(pass, infrequentPattern, 2);
                 break;
             }
         }
-        ThreadCount.waitForThreadsToComplete(threadGroup, logger);
+        // run_server waited for its queries, only the sessions are left to close
+        GrepSession.closeAll();
     }
     /**
      * Method to generate a log file in each server
-     * @param parentThreadGroup Parent thread group.
      */
-    public static int log_generator(ThreadGroup parentThreadGroup) throws IOException {
+    public static int log_generator() throws IOException {
 
         try {
             // get the corresponding property values from the .properties files
@@ -125,19 +122,18 @@ public class TestClient {
             logger.LogException("Error in reading properties.", e);
         }
 
-        // creates a thread group that waits for all threads to end before proceeding further
-        ThreadGroup logGeneratorThreadGroup = new ThreadGroup(parentThreadGroup, "LogGenerator");
-	
         // variable to store name of each logfile whose values are obtained from .properties file
+        List<Client> logGenerators = new ArrayList<Client>();
         String[] logfile = new String[addresses.length];
         for (int i = 0; i < addresses.length; i++) {
             logfile[i] = "dummy_"+vmIds[i];
 	     // invoke Client.main() thread that invokes each server with (server address, test pattern, logfileID, port)
             Client client = new Client(addresses[i], testProps.getProperty(addresses[i]), logfile[i], 5500);
-            client.create_thread(logGeneratorThreadGroup);
+            logGenerators.add(client);
         }
 
-        ThreadCount.waitForThreadsToComplete(logGeneratorThreadGroup, logger);
+        // waits for all the log files to be generated before proceeding further
+        ClusterQuery.run(logGenerators, 0, logger);
 
         // checks if the expected number of files have been generated
         for (int i=0; i < logfile.length; i++) {
@@ -159,16 +155,18 @@ public class TestClient {
         
      /**
      * Method to run each server 
-     * @param parentThreadGroup Parent thread group.
      * @param pass count indicating number of logfiles successfully created
      * @param clientInput input against which grep is tested
      * @param pattern indicates whether input is frequent pattern, infrequent pattern or regex(only for printing)
      * 
      */
-    public static void run_server(ThreadGroup parentThreadGroup, int pass, String clientInput, int pattern) throws IOException {
+    public static void run_server(int pass, String clientInput, int pattern) throws IOException {
         int pass_local = pass;
         String[] logfile = new String[addresses.length];
-        ThreadGroup grepTestGroup = new ThreadGroup(parentThreadGroup, "GrepTest");
+        List<Client> grepTests = new ArrayList<Client>();
+
+        // servers send only the count of matching lines for summary queries
+        ClusterSummary clusterSummary = new ClusterSummary();
 
         /**
         * checks if number of server addresses provided in test.properties 
@@ -180,27 +178,17 @@ public class TestClient {
             for (int i = 0; i < addresses.length; i++) {
                 logfile[i] = "dummy_"+vmIds[i];
 		
-                Client client = new Client(addresses[i], clientInput, logfile[i], 5000);
-                client.create_thread(grepTestGroup);   
+                Client client = new Client(addresses[i], "--summary " + clientInput, logfile[i], 5000, clusterSummary);
+                grepTests.add(client);   
             }
 
-            ThreadCount.waitForThreadsToComplete(grepTestGroup, logger);
+            ClusterQuery.run(grepTests, 0, logger);
 
             pass_local = 0;
             for (int i=0; i < addresses.length; i++) {
                 try {
-                        // read lines from newly generated local log files
-                        BufferedReader br = new BufferedReader(new FileReader("output_"+logfile[i]));
-                        String temp;
-                        while ((temp = br.readLine()) != null) {
-                            output = temp;
-                        }
-
-                        // obtain linecount from output which is in the form <fileName> <linecount>
-                        split_output = output.split(" ");
-
                         // line count obtained from server
-                        count = Integer.parseInt(split_output[1]);
+                        count = (int) clusterSummary.getSelectedLines(logfile[i]);
 
                         // extracts the VM patterns provided in test.properties for each server address
                         vm_patterns = testProps.getProperty(addresses[i]).split(",");
@@ -224,7 +212,71 @@ public class TestClient {
                     System.exit(1);
                 }
             }
+
+            // the summaries only carry counts, so the lines shipped by the servers are checked too
+            grepTests.clear();
+            for (int i = 0; i < addresses.length; i++) {
+                grepTests.add(new Client(addresses[i], clientInput, logfile[i], 5000));
+            }
+
+            ClusterQuery.run(grepTests, 0, logger);
+
+            for (int i = 0; i < addresses.length; i++) {
+                try {
+                    vm_patterns = testProps.getProperty(addresses[i]).split(",");
+                    String[] expected = vm_patterns[pattern-1].split("=");
+                    check_output_lines(logfile[i], "INFO: " + expected[0], Integer.parseInt(expected[1]));
+                }
+                catch(Exception e) {
+                    logger.LogException("Test failed while checking the output lines: ", e);
+                    System.exit(1);
+                }
+            }
         } 
         logger.LogInfo("Test passed");  
     }
+
+    /**
+     * Checks the lines written to the output file of a log: every matched line must be
+     * the generated pattern line, and the trailer line must carry their number.
+     * @param logfile log file the query searched
+     * @param expectedLine line the log generator wrote for the pattern
+     * @param expectedCount number of times the log generator wrote it
+     */
+    public static void check_output_lines(String logfile, String expectedLine, int expectedCount) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader br = new BufferedReader(new FileReader("output_" + logfile));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                // each line is "<label> <line>", the last one "<label> <count>"
+                lines.add(line.substring(line.indexOf(' ') + 1));
+            }
+        } finally {
+            br.close();
+        }
+
+        if (lines.isEmpty() || !lines.get(lines.size() - 1).equals(String.valueOf(expectedCount))) {
+            logger.LogError("Trailer of " + logfile + " does not report " + expectedCount + " lines. Test failed.");
+            System.exit(1);
+        }
+
+        int matched = 0;
+        for (String line : lines.subList(0, lines.size() - 1)) {
+            if (!line.equals(expectedLine)) {
+                logger.LogInfo("obtained:" + line);
+                logger.LogInfo("expected:" + expectedLine);
+                logger.LogError("Output line of " + logfile + " does not match. Test failed.");
+                System.exit(1);
+            }
+            matched++;
+        }
+
+        if (matched != expectedCount) {
+            logger.LogInfo("obtained:" + matched);
+            logger.LogInfo("expected:" + expectedCount);
+            logger.LogError("Number of output lines of " + logfile + " does not match. Test failed.");
+            System.exit(1);
+        }
+    }
 }
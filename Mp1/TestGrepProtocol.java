@@ -0,0 +1,363 @@
+/**
+ * Class for testing the client server protocol.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Inflater;
+
+/**
+ * Tests that the frames written by GrepProtocol and ResultBatchWriter read back the
+ * same, with and without compression, and that frames, strings and batches whose
+ * length is out of bounds are refused with a ProtocolException before anything is
+ * allocated for them.
+ */
+public class TestGrepProtocol
+{
+    /**
+     * Logger instance.
+     */
+    public static GrepLogger logger = GrepLogger.initialize("TestGrepProtocol", "TestGrepProtocol.log");
+
+    /**
+     * Number of failed checks.
+     */
+    private static int failures = 0;
+
+    public static void main(String[] args)
+    {
+        try
+        {
+            testHandshake();
+            testRequest();
+            testBatches(GrepProtocol.CODEC_NONE);
+            testBatches(GrepProtocol.CODEC_DEFLATE);
+            testTimedBatches();
+            testRelease();
+            testTrailers();
+            testSummaryAndGroups();
+            testOversizedFrames();
+        }
+        catch (IOException e)
+        {
+            logger.LogException("Test Failed.", e);
+            System.exit(1);
+        }
+
+        if (failures > 0)
+        {
+            logger.LogError("Test Failed: " + failures + " checks failed.");
+            System.exit(1);
+        }
+        logger.LogInfo("Test Passed.");
+        System.exit(0);
+    }
+
+    private static void testHandshake() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GrepProtocol.writeHandshake(new DataOutputStream(bytes));
+        check("handshake version", GrepProtocol.readHandshake(input(bytes.toByteArray())), GrepProtocol.VERSION);
+
+        byte[] http = "GET / HTTP/1.1\r\n".getBytes("US-ASCII");
+        try
+        {
+            GrepProtocol.readHandshake(input(http));
+            fail("bad magic", "no exception");
+        }
+        catch (ProtocolException e)
+        {
+            // expected
+        }
+    }
+
+    private static void testRequest() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        GrepProtocol.writeRequest(out, 7, "vm1.log*", "-i \"caf\u00e9 au lait\"", GrepProtocol.CODEC_DEFLATE);
+        GrepProtocol.writeStop(out, 7);
+
+        DataInputStream in = input(bytes.toByteArray());
+        GrepProtocol.Frame frame = GrepProtocol.readFrame(in, in.readByte(), GrepProtocol.MAX_REQUEST_BYTES);
+        check("request type", frame.type, GrepProtocol.FRAME_REQUEST);
+        check("request id", frame.requestId, 7);
+        DataInputStream payload = frame.payloadStream();
+        check("request file", GrepProtocol.readString(payload), "vm1.log*");
+        check("request input", GrepProtocol.readString(payload), "-i \"caf\u00e9 au lait\"");
+        check("request codecs", payload.readByte(), GrepProtocol.CODEC_DEFLATE);
+
+        frame = GrepProtocol.readFrame(in);
+        check("stop type", frame.type, GrepProtocol.FRAME_STOP);
+        check("stop id", frame.requestId, 7);
+        check("stop empty", frame.payloadStream().available(), 0);
+    }
+
+    /**
+     * Lines written in small batches come back in order, with their label, and the
+     * trailer counts them.
+     *
+     * @param codec Codec of the batches.
+     */
+    private static void testBatches(byte codec) throws IOException
+    {
+        String name = (codec == GrepProtocol.CODEC_NONE) ? "plain" : "deflate";
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 500; i++)
+        {
+            lines.add("line " + i + " \u00e9" + (i % 7 == 0 ? "" : " INFO: some repeated text"));
+        }
+        lines.add("");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ResultBatchWriter writer = new ResultBatchWriter(new DataOutputStream(bytes), 3, "vm2.log", codec, false,
+            256, 0);
+        for (String line : lines)
+        {
+            writer.writeLine(line);
+        }
+        writer.finish();
+
+        DataInputStream in = input(bytes.toByteArray());
+        Inflater inflater = new Inflater();
+        List<String> read = new ArrayList<String>();
+        int batches = 0;
+        GrepProtocol.Frame frame;
+        while ((frame = GrepProtocol.readFrame(in)).type == GrepProtocol.FRAME_BATCH)
+        {
+            batches++;
+            check(name + " batch id", frame.requestId, 3);
+            DataInputStream body = GrepProtocol.readBatchBody(frame, inflater);
+            check(name + " batch label", GrepProtocol.readString(body), "vm2.log");
+            int lineCount = body.readInt();
+            for (int i = 0; i < lineCount; i++)
+            {
+                read.add(GrepProtocol.readString(body));
+            }
+        }
+        inflater.end();
+
+        check(name + " lines", read, lines);
+        check(name + " several batches", batches > 1, true);
+        check(name + " trailer type", frame.type, GrepProtocol.FRAME_TRAILER);
+        DataInputStream payload = frame.payloadStream();
+        check(name + " trailer label", GrepProtocol.readString(payload), "vm2.log");
+        check(name + " trailer count", payload.readLong(), (long) lines.size());
+        check(name + " trailer status", payload.readByte(), GrepProtocol.STATUS_OK);
+        check(name + " end of stream", in.available(), 0);
+    }
+
+    private static void testTimedBatches() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ResultBatchWriter writer = new ResultBatchWriter(new DataOutputStream(bytes), 4, "", GrepProtocol.CODEC_NONE,
+            true, 1 << 16, 0);
+        writer.writeLine(1000L, "first");
+        writer.writeLine(Long.MIN_VALUE, "before any record");
+        writer.finish();
+
+        DataInputStream in = input(bytes.toByteArray());
+        GrepProtocol.Frame frame = GrepProtocol.readFrame(in);
+        check("timed type", frame.type, GrepProtocol.FRAME_TIMED_BATCH);
+        DataInputStream body = GrepProtocol.readBatchBody(frame, new Inflater());
+        check("timed label", GrepProtocol.readString(body), "");
+        check("timed count", body.readInt(), 2);
+        check("timed first", body.readLong() + " " + GrepProtocol.readString(body), "1000 first");
+        check("timed second", body.readLong() + " " + GrepProtocol.readString(body),
+            Long.MIN_VALUE + " before any record");
+        check("timed trailer", GrepProtocol.readFrame(in).type, GrepProtocol.FRAME_TRAILER);
+    }
+
+    /**
+     * A released writer sends nothing more, and releasing a finished writer does nothing.
+     */
+    private static void testRelease() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ResultBatchWriter writer = new ResultBatchWriter(new DataOutputStream(bytes), 5, "", GrepProtocol.CODEC_DEFLATE,
+            false, 1 << 16, 50);
+        writer.writeLine("held");
+        writer.release();
+        writer.release();
+        try
+        {
+            writer.writeLine("late");
+            fail("write after release", "no exception");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+        check("released writer sent nothing", bytes.size(), 0);
+
+        writer = new ResultBatchWriter(new DataOutputStream(bytes), 5, "", GrepProtocol.CODEC_DEFLATE, false,
+            1 << 16, 50);
+        writer.writeLine("sent");
+        writer.finish();
+        int finished = bytes.size();
+        writer.release();
+        check("release after finish", bytes.size(), finished);
+    }
+
+    private static void testTrailers() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        GrepProtocol.writeTrailer(out, 5, "vm3.log", 12, GrepProtocol.STATUS_ERROR, "Invalid pattern");
+        GrepProtocol.writeBusy(out, 6, 1500);
+
+        DataInputStream in = input(bytes.toByteArray());
+        DataInputStream payload = GrepProtocol.readFrame(in).payloadStream();
+        check("error label", GrepProtocol.readString(payload), "vm3.log");
+        check("error count", payload.readLong(), 12L);
+        check("error status", payload.readByte(), GrepProtocol.STATUS_ERROR);
+        check("error message", GrepProtocol.readString(payload), "Invalid pattern");
+
+        GrepProtocol.Frame frame = GrepProtocol.readFrame(in);
+        check("busy id", frame.requestId, 6);
+        payload = frame.payloadStream();
+        GrepProtocol.readString(payload);
+        payload.readLong();
+        check("busy status", payload.readByte(), GrepProtocol.STATUS_BUSY);
+        GrepProtocol.readString(payload);
+        check("busy retry", payload.readLong(), 1500L);
+    }
+
+    private static void testSummaryAndGroups() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        GrepProtocol.writeSummary(out, 8, Arrays.asList(new FileSummary("vm1.log", 3, 10, 250),
+            new FileSummary("vm1.log.1.gz", 0, -1, -1)));
+        GroupCounts groups = new GroupCounts();
+        groups.add("alice", 3);
+        groups.add("bob", 5);
+        groups.add("", 1);
+        GrepProtocol.writeGroups(out, 9, groups);
+
+        DataInputStream in = input(bytes.toByteArray());
+        List<FileSummary> summaries = GrepProtocol.readSummary(GrepProtocol.readFrame(in));
+        check("summary files", summaries.size(), 2);
+        check("summary first", summaries.get(0).getFileName() + " " + summaries.get(0).getSelectedLines() + " "
+            + summaries.get(0).getFirstMatchOffset() + " " + summaries.get(0).getLastMatchOffset(), "vm1.log 3 10 250");
+        check("summary second", summaries.get(1).getFileName() + " " + summaries.get(1).getSelectedLines(),
+            "vm1.log.1.gz 0");
+
+        GroupCounts read = GrepProtocol.readGroups(GrepProtocol.readFrame(in));
+        check("groups size", read.size(), 3);
+        check("groups total", read.getTotal(), 9L);
+        check("groups largest", read.sorted().get(0).getKey() + "=" + read.sorted().get(0).getCount(), "bob=5");
+    }
+
+    /**
+     * Lengths beyond the bounds are refused whatever bytes follow them.
+     */
+    private static void testOversizedFrames() throws IOException
+    {
+        // A request one byte over the bound a server accepts.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GrepProtocol.writeFrame(new DataOutputStream(bytes), GrepProtocol.FRAME_REQUEST, 1,
+            payload(new byte[GrepProtocol.MAX_REQUEST_BYTES + 1]));
+        DataInputStream in = input(bytes.toByteArray());
+        checkRefused("request over MAX_REQUEST_BYTES", in, in.readByte(), GrepProtocol.MAX_REQUEST_BYTES);
+        in = input(bytes.toByteArray());
+        check("request within MAX_FRAME_BYTES", GrepProtocol.readFrame(in).requestId, 1);
+
+        checkRefused("negative frame length", input(header(-1)), GrepProtocol.FRAME_BATCH,
+            GrepProtocol.MAX_FRAME_BYTES);
+        checkRefused("2 GB frame", input(header(Integer.MAX_VALUE)),
+            GrepProtocol.FRAME_BATCH, GrepProtocol.MAX_FRAME_BYTES);
+
+        // Strings and compressed batches carry lengths of their own.
+        ByteArrayOutputStream string = new ByteArrayOutputStream();
+        new DataOutputStream(string).writeInt(GrepProtocol.MAX_FRAME_BYTES + 1);
+        try
+        {
+            GrepProtocol.readString(input(string.toByteArray()));
+            fail("oversized string", "no exception");
+        }
+        catch (ProtocolException e)
+        {
+            // expected
+        }
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        DataOutputStream batchStream = new DataOutputStream(batch);
+        batchStream.writeByte(GrepProtocol.CODEC_DEFLATE);
+        batchStream.writeInt(Integer.MAX_VALUE);
+        bytes = new ByteArrayOutputStream();
+        GrepProtocol.writeFrame(new DataOutputStream(bytes), GrepProtocol.FRAME_BATCH, 2, batch);
+        try
+        {
+            GrepProtocol.readBatchBody(GrepProtocol.readFrame(input(bytes.toByteArray())), new Inflater());
+            fail("oversized batch body", "no exception");
+        }
+        catch (ProtocolException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Checks that the rest of a frame is refused with a ProtocolException.
+     */
+    private static void checkRefused(String name, DataInputStream in, byte type, int maxLength) throws IOException
+    {
+        try
+        {
+            GrepProtocol.readFrame(in, type, maxLength);
+            fail(name, "no exception");
+        }
+        catch (ProtocolException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * @return Request id and length of a frame whose type byte was read, without its payload.
+     */
+    private static byte[] header(int length) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeInt(length);
+        return bytes.toByteArray();
+    }
+
+    private static ByteArrayOutputStream payload(byte[] bytes) throws IOException
+    {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(bytes);
+        return payload;
+    }
+
+    private static DataInputStream input(byte[] bytes)
+    {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static void check(String name, Object actual, Object expected)
+    {
+        if (!expected.equals(actual))
+        {
+            fail(name, "expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    private static void fail(String name, String message)
+    {
+        failures++;
+        logger.LogError(name + ": " + message);
+    }
+}
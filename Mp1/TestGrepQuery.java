@@ -0,0 +1,253 @@
+/**
+ * Class for testing the parsing of the grep queries.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+/**
+ * Tests the tokenizing and option parsing of GrepQuery, the translation of basic
+ * regular expressions to Java regexes, and the literals taken from the patterns.
+ */
+public class TestGrepQuery
+{
+    /**
+     * Logger instance.
+     */
+    public static GrepLogger logger = GrepLogger.initialize("TestGrepQuery", "TestGrepQuery.log");
+
+    /**
+     * Number of failed checks.
+     */
+    private static int failures = 0;
+
+    public static void main(String[] args)
+    {
+        testTokenize();
+        testOptions();
+        testInvalidQueries();
+        testBasicToJavaRegex();
+        testCompile();
+        testLiteral();
+        testRequiredLiterals();
+
+        if (failures > 0)
+        {
+            logger.LogError("Test Failed: " + failures + " checks failed.");
+            System.exit(1);
+        }
+        logger.LogInfo("Test Passed.");
+        System.exit(0);
+    }
+
+    /**
+     * Quotes keep white space in one token and are removed; escapes work in double quotes only.
+     */
+    private static void testTokenize()
+    {
+        check("tokenize plain", GrepQuery.tokenize("  -i  ERROR  "), Arrays.asList("-i", "ERROR"));
+        check("tokenize quotes", GrepQuery.tokenize("-e \"a b\" -e 'c d'"), Arrays.asList("-e", "a b", "-e", "c d"));
+        check("tokenize escape", GrepQuery.tokenize("\"say \\\"hi\\\"\" 'x\\y'"), Arrays.asList("say \"hi\"", "x\\y"));
+        check("tokenize adjacent quotes", GrepQuery.tokenize("a\"b c\"d"), Arrays.asList("ab cd"));
+        checkThrows("tokenize unterminated quote", "-e \"abc");
+    }
+
+    /**
+     * Short options may be combined, long options take their value after '=' or as
+     * the next argument, and bare words make up one pattern.
+     */
+    private static void testOptions()
+    {
+        GrepQuery query = GrepQuery.parse("-inv -e foo --regexp=bar -m5");
+        check("-i", query.isIgnoreCase(), true);
+        check("-n", query.isLineNumbers(), true);
+        check("-v", query.isInvertMatch(), true);
+        check("-e patterns", query.getPatterns(), Arrays.asList("foo", "bar"));
+        check("-m5", query.getMaxCount(), 5L);
+
+        query = GrepQuery.parse("frequentpattern hello123");
+        check("bare words", query.getPatterns(), Collections.singletonList("frequentpattern hello123"));
+        check("no -m", query.getMaxCount(), -1L);
+
+        query = GrepQuery.parse("--max-count 3 --word-regexp --fixed-strings -- -x");
+        check("--max-count", query.getMaxCount(), 3L);
+        check("-w", query.isWordRegex(), true);
+        check("-F", query.isFixedStrings(), true);
+        check("pattern after --", query.getPatterns(), Collections.singletonList("-x"));
+
+        query = GrepQuery.parse("-E --group-by=1 --top=10 \"user=([a-z]+)\"");
+        check("--group-by", query.getGroupBy(), "1");
+        check("--top", query.getTop(), 10);
+
+        query = GrepQuery.parse("--since \"2026-10-16 10:00\" --until 1700000000000 ERROR");
+        check("--since/--until", query.hasTimeRange(), true);
+        check("--until millis", query.getUntil(), 1700000000000L);
+
+        check("normalized form", GrepQuery.parse("-n -i foo").getNormalizedForm(),
+            GrepQuery.parse("-in -e foo").getNormalizedForm());
+        check("grep arguments", GrepQuery.parse("-c -E a+").toGrepArguments(), Arrays.asList("-E", "-c", "-e", "a+"));
+    }
+
+    /**
+     * Unknown options, missing values and options which cannot go together are refused.
+     */
+    private static void testInvalidQueries()
+    {
+        checkThrows("no pattern", "-i");
+        checkThrows("unknown option", "--bogus foo");
+        checkThrows("missing -m value", "foo -m");
+        checkThrows("bad -m value", "-m x foo");
+        checkThrows("operand with -e", "-e foo bar");
+        checkThrows("--follow with -c", "--follow -c foo");
+        checkThrows("--group-by with -v", "-v --group-by=0 foo");
+        checkThrows("--top without --group-by", "--top=3 foo");
+        checkThrows("--limit with --ordered", "--limit=3 --ordered foo");
+        checkThrows("bad --since", "--since yesterday foo");
+
+        checkMessage("--limit error names it", "--limit=x foo", "Invalid value for --limit: x");
+        checkMessage("-m error names it", "-m x foo", "Invalid value for -m: x");
+        checkMessage("--since overflow names it", "--since 99999999999999999999 foo",
+            "Invalid value for --since: 99999999999999999999");
+    }
+
+    /**
+     * In a basic regex ?, +, {, }, |, ( and ) are literals unless escaped, a leading
+     * '*' is a literal, and bracket expressions keep their POSIX meaning.
+     */
+    private static void testBasicToJavaRegex()
+    {
+        check("BRE escaped group", GrepQuery.basicToJavaRegex("a\\(b\\)\\{2\\}"), "a(b){2}");
+        check("BRE alternation", GrepQuery.basicToJavaRegex("a\\|b"), "a|b");
+        check("BRE literal specials", GrepQuery.basicToJavaRegex("a+b?(c)|{d}"), "a\\+b\\?\\(c\\)\\|\\{d\\}");
+        check("BRE leading star", GrepQuery.basicToJavaRegex("*abc"), "\\*abc");
+        check("BRE anchored star", GrepQuery.basicToJavaRegex("^*abc"), "^\\*abc");
+        check("BRE inner star", GrepQuery.basicToJavaRegex("ab*c"), "ab*c");
+        check("BRE posix class", GrepQuery.basicToJavaRegex("[[:digit:]x]"), "[\\p{Digit}x]");
+        check("BRE leading bracket", GrepQuery.basicToJavaRegex("[]a]"), "[\\]a]");
+        check("BRE negated bracket", GrepQuery.basicToJavaRegex("[^]a]"), "[^\\]a]");
+        check("BRE backslash in bracket", GrepQuery.basicToJavaRegex("[\\[&]"), "[\\\\\\[\\&]");
+        check("BRE escaped dot", GrepQuery.basicToJavaRegex("a\\.b"), "a\\.b");
+        check("BRE word anchors", GrepQuery.basicToJavaRegex("\\<a\\>"),
+            "(?<![\\p{L}\\p{N}_])(?=[\\p{L}\\p{N}_])a(?<=[\\p{L}\\p{N}_])(?![\\p{L}\\p{N}_])");
+        check("ERE word anchors", GrepQuery.extendedToJavaRegex("\\<a+\\>"),
+            "(?<![\\p{L}\\p{N}_])(?=[\\p{L}\\p{N}_])a+(?<=[\\p{L}\\p{N}_])(?![\\p{L}\\p{N}_])");
+        check("ERE anchors in bracket", GrepQuery.extendedToJavaRegex("[\\<]"), "[\\<]");
+    }
+
+    /**
+     * The compiled pattern selects the same lines as grep would.
+     */
+    private static void testCompile()
+    {
+        checkFinds("BRE +", "a+b", "xa+by", true);
+        checkFinds("BRE + not repeat", "a+b", "aab", false);
+        checkFinds("ERE +", "-E a+b", "aab", true);
+        checkFinds("BRE \\|", "foo\\|bar", "a bar", true);
+        checkFinds("-F dot", "-F a.b", "axb", false);
+        checkFinds("-F dot literal", "-F a.b", "a.b", true);
+        checkFinds("-w whole word", "-w foo", "a foo.", true);
+        checkFinds("-w part of word", "-w foo", "foobar", false);
+        checkFinds("-i", "-i error", "ERROR", true);
+        checkFinds("-e any", "-e foo -e bar", "bar", true);
+        checkFinds("BRE word start", "\\<foo", "a foo", true);
+        checkFinds("BRE not word start", "\\<foo", "xfoo", false);
+        checkFinds("BRE word end", "foo\\>", "foo.", true);
+        checkFinds("BRE not word end", "foo\\>", "foox", false);
+        checkFinds("ERE word anchors", "-E \\<fo+\\>", "a foo b", true);
+        checkFinds("ERE not a word", "-E \\<fo+\\>", "afoo", false);
+    }
+
+    /**
+     * Only a single pattern without regex special characters is a literal.
+     */
+    private static void testLiteral()
+    {
+        check("literal", GrepQuery.parse("ERROR").getLiteral(), "ERROR");
+        check("BRE + literal", GrepQuery.parse("a+b").getLiteral(), "a+b");
+        check("ERE + not literal", GrepQuery.parse("-E a+b").getLiteral(), null);
+        check("dot not literal", GrepQuery.parse("a.b").getLiteral(), null);
+        check("-F literal", GrepQuery.parse("-F a.b").getLiteral(), "a.b");
+        check("two patterns", GrepQuery.parse("-e a -e b").getLiteral(), null);
+    }
+
+    /**
+     * Required literals come from the parts of a pattern every match contains.
+     */
+    private static void testRequiredLiterals()
+    {
+        check("required runs", GrepQuery.parse("-E foo.*bar").getRequiredLiterals(),
+            Collections.singletonList(Arrays.asList("foo", "bar")));
+        check("required per pattern", GrepQuery.parse("-e alpha -e beta").getRequiredLiterals(),
+            Arrays.asList(Collections.singletonList("alpha"), Collections.singletonList("beta")));
+        check("optional char dropped", GrepQuery.parse("-E abcd?ef").getRequiredLiterals(),
+            Collections.singletonList(Collections.singletonList("abc")));
+        check("short runs", GrepQuery.parse("-E ab.cd").getRequiredLiterals(), null);
+        check("alternation", GrepQuery.parse("-E foo|bar").getRequiredLiterals(), null);
+        check("-v", GrepQuery.parse("-v ERROR").getRequiredLiterals(), null);
+        check("-i splits on k, s and i", GrepQuery.parse("-i daemonkernel").getRequiredLiterals(),
+            Collections.singletonList(Arrays.asList("daemon", "ernel")));
+        check("-i no usable part", GrepQuery.parse("-i session").getRequiredLiterals(), null);
+        check("word anchors not literals", GrepQuery.parse("\\<error\\>").getRequiredLiterals(),
+            Collections.singletonList(Collections.singletonList("error")));
+        check("ERE word anchors not literals", GrepQuery.parse("-E \\<error\\>").getRequiredLiterals(),
+            Collections.singletonList(Collections.singletonList("error")));
+    }
+
+    /**
+     * Checks that a query selects a line or not.
+     */
+    private static void checkFinds(String name, String clientInput, String line, boolean expected)
+    {
+        Pattern pattern = GrepQuery.parse(clientInput).compile();
+        check(name, pattern.matcher(line).find(), expected);
+    }
+
+    /**
+     * Checks that a query is refused with an IllegalArgumentException.
+     */
+    private static void checkThrows(String name, String clientInput)
+    {
+        try
+        {
+            GrepQuery.parse(clientInput);
+            fail(name, "no exception for: " + clientInput);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Checks the message of the IllegalArgumentException a query is refused with.
+     */
+    private static void checkMessage(String name, String clientInput, String expected)
+    {
+        try
+        {
+            GrepQuery.parse(clientInput);
+            fail(name, "no exception for: " + clientInput);
+        }
+        catch (IllegalArgumentException e)
+        {
+            check(name, e.getMessage(), expected);
+        }
+    }
+
+    private static void check(String name, Object actual, Object expected)
+    {
+        if (expected == null ? actual != null : !expected.equals(actual))
+        {
+            fail(name, "expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    private static void fail(String name, String message)
+    {
+        failures++;
+        logger.LogError(name + ": " + message);
+    }
+}
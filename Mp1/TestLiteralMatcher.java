@@ -0,0 +1,178 @@
+/**
+ * Class for testing the byte level matcher of fixed strings.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests that LiteralMatcher finds a literal exactly where the regex path of the
+ * built-in engine does, and that it refuses the literals it cannot fold like the regex.
+ */
+public class TestLiteralMatcher
+{
+    /**
+     * Logger instance.
+     */
+    public static GrepLogger logger = GrepLogger.initialize("TestLiteralMatcher", "TestLiteralMatcher.log");
+
+    /**
+     * Letters of the random text, few enough that the literals occur often.
+     */
+    private static final String ALPHABET = "abcdeABCDE .-";
+
+    /**
+     * Number of failed checks.
+     */
+    private static int failures = 0;
+
+    public static void main(String[] args)
+    {
+        testCreate();
+        testFixedCases();
+        testRandomText(false);
+        testRandomText(true);
+
+        if (failures > 0)
+        {
+            logger.LogError("Test Failed: " + failures + " checks failed.");
+            System.exit(1);
+        }
+        logger.LogInfo("Test Passed.");
+        System.exit(0);
+    }
+
+    /**
+     * Literals which the ASCII folding would match differently from the regex get no matcher.
+     */
+    private static void testCreate()
+    {
+        check("empty literal", LiteralMatcher.create("", false) == null, true);
+        check("newline", LiteralMatcher.create("a\nb", false) == null, true);
+        check("non-ASCII", LiteralMatcher.create("caf\u00e9", false) != null, true);
+        check("non-ASCII -i", LiteralMatcher.create("caf\u00e9", true) == null, true);
+        check("ASCII -i", LiteralMatcher.create("ERROR", true) != null, true);
+        for (String literal : new String[] { "kernel", "DISK", "warning", "Sync" })
+        {
+            check("k, s or i in " + literal + " -i", LiteralMatcher.create(literal, true) == null, true);
+            check("k, s or i in " + literal, LiteralMatcher.create(literal, false) != null, true);
+        }
+
+        // The regex folds the Kelvin sign to k, which is why "k" has no matcher under -i.
+        check("Kelvin sign", regexIndexOf("\u212a", "k", true), 0);
+        check("length", LiteralMatcher.create("caf\u00e9", false).length(), 5);
+    }
+
+    /**
+     * Hand picked texts around the edges of the buffer and of the shift table.
+     */
+    private static void testFixedCases()
+    {
+        checkSame("at start", "abc", "abcxx", false);
+        checkSame("at end", "abc", "xxabc", false);
+        checkSame("whole text", "abc", "abc", false);
+        checkSame("longer than text", "abcd", "abc", false);
+        checkSame("repeated prefix", "aab", "aaaab", false);
+        checkSame("absent", "abd", "abcabcabc", false);
+        checkSame("single char", "x", "aaxa", false);
+        checkSame("case differs", "Error", "an ERROR here", false);
+        checkSame("case folded", "Error", "an ERROR here", true);
+        checkSame("punctuation -i", "A-B.C", "xa-b.cx", true);
+        checkSame("UTF-8 text", "caf\u00e9", "le caf\u00e9 noir", false);
+
+        // Only the range [from, to) of the buffer is searched.
+        LiteralMatcher matcher = LiteralMatcher.create("abc", false);
+        ByteBuffer buffer = ByteBuffer.wrap("abcxxabcxx".getBytes(StandardCharsets.US_ASCII));
+        check("from", matcher.indexOf(buffer, 1, buffer.limit()), 5);
+        check("to", matcher.indexOf(buffer, 1, 7), -1);
+        check("to inclusive end", matcher.indexOf(buffer, 1, 8), 5);
+    }
+
+    /**
+     * Random texts and literals: the matcher and the regex find the same first occurrence.
+     *
+     * @param ignoreCase Whether case is ignored.
+     */
+    private static void testRandomText(boolean ignoreCase)
+    {
+        Random random = new Random(425);
+        for (int round = 0; round < 20000; round++)
+        {
+            String text = randomString(random, random.nextInt(64));
+            String literal;
+            if (text.length() > 4 && random.nextBoolean())
+            {
+                int start = random.nextInt(text.length() - 3);
+                literal = text.substring(start, start + 1 + random.nextInt(3));
+            }
+            else
+            {
+                literal = randomString(random, 1 + random.nextInt(4));
+            }
+            checkSame("random " + round, literal, text, ignoreCase);
+        }
+    }
+
+    /**
+     * Checks that the matcher and the regex of a -F query find the literal at the same index.
+     */
+    private static void checkSame(String name, String literal, String text, boolean ignoreCase)
+    {
+        LiteralMatcher matcher = LiteralMatcher.create(literal, ignoreCase);
+        if (matcher == null)
+        {
+            fail(name, "no matcher for " + literal);
+            return;
+        }
+
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int found = matcher.indexOf(ByteBuffer.wrap(bytes), 0, bytes.length);
+        int foundChar = (found < 0) ? -1 : new String(bytes, 0, found, StandardCharsets.UTF_8).length();
+        int expected = regexIndexOf(text, literal, ignoreCase);
+        if (foundChar != expected)
+        {
+            fail(name, "\"" + literal + "\" in \"" + text + "\" found at " + foundChar + ", regex at " + expected);
+        }
+    }
+
+    /**
+     * Finds a literal the way the regex path of the built-in engine does.
+     *
+     * @return Index of the first match, or -1.
+     */
+    private static int regexIndexOf(String text, String literal, boolean ignoreCase)
+    {
+        Pattern pattern = GrepQuery.parse((ignoreCase ? "-i " : "") + "-F -e '" + literal + "'").compile();
+        Matcher matcher = pattern.matcher(text);
+        return matcher.find() ? matcher.start() : -1;
+    }
+
+    private static String randomString(Random random, int length)
+    {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < length; i++)
+        {
+            value.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return value.toString();
+    }
+
+    private static void check(String name, Object actual, Object expected)
+    {
+        if (!expected.equals(actual))
+        {
+            fail(name, "expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    private static void fail(String name, String message)
+    {
+        failures++;
+        logger.LogError(name + ": " + message);
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Class for testing the admission of the grep queries.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests the order in which QueryScheduler starts the waiting queries: the cheap
+ * lane ahead of the full scans but never more than FAST_BURST in a row, and within
+ * a lane the client with the fewest running queries first. The queries run on an
+ * executor which only holds them, so that the test decides when each one ends.
+ */
+public class TestQueryScheduler
+{
+    /**
+     * Logger instance.
+     */
+    public static GrepLogger logger = GrepLogger.initialize("TestQueryScheduler", "TestQueryScheduler.log");
+
+    /**
+     * Number of failed checks.
+     */
+    private static int failures = 0;
+
+    public static void main(String[] args)
+    {
+        testLanes();
+        testFairness();
+        testBusy();
+
+        if (failures > 0)
+        {
+            logger.LogError("Test Failed: " + failures + " checks failed.");
+            System.exit(1);
+        }
+        logger.LogInfo("Test Passed.");
+        System.exit(0);
+    }
+
+    /**
+     * With one slot, cheap queries start first, but a full scan waits for at most 4 of them.
+     */
+    private static void testLanes()
+    {
+        QueryScheduler scheduler = new QueryScheduler(1, 64, 64);
+        HeldExecutor executor = new HeldExecutor();
+        List<String> started = new ArrayList<String>();
+
+        submit(scheduler, executor, started, "a", QueryScheduler.Lane.SCAN, "first");
+        for (int i = 1; i <= 3; i++)
+        {
+            submit(scheduler, executor, started, "b", QueryScheduler.Lane.SCAN, "S" + i);
+        }
+        for (int i = 1; i <= 6; i++)
+        {
+            submit(scheduler, executor, started, "b", QueryScheduler.Lane.FAST, "F" + i);
+        }
+
+        check("only one query runs", executor.held.size(), 1);
+        executor.runAll();
+        check("lane order", started, Arrays.asList("first", "F1", "F2", "F3", "F4", "S1", "F5", "F6", "S2", "S3"));
+    }
+
+    /**
+     * With two slots, the next query comes from the client with the fewest running
+     * queries, and among those from the client which started one longest ago.
+     */
+    private static void testFairness()
+    {
+        QueryScheduler scheduler = new QueryScheduler(2, 64, 64);
+        HeldExecutor executor = new HeldExecutor();
+        List<String> started = new ArrayList<String>();
+
+        for (int i = 1; i <= 4; i++)
+        {
+            submit(scheduler, executor, started, "a", QueryScheduler.Lane.SCAN, "A" + i);
+        }
+        submit(scheduler, executor, started, "b", QueryScheduler.Lane.SCAN, "B1");
+        submit(scheduler, executor, started, "b", QueryScheduler.Lane.SCAN, "B2");
+        submit(scheduler, executor, started, "c", QueryScheduler.Lane.SCAN, "C1");
+
+        check("two queries run", executor.held.size(), 2);
+        executor.runAll();
+        check("fair order", started, Arrays.asList("A1", "A2", "B1", "C1", "A3", "B2", "A4"));
+    }
+
+    /**
+     * A query which finds the queue full, overall or for its client, gets a retry delay.
+     */
+    private static void testBusy()
+    {
+        QueryScheduler scheduler = new QueryScheduler(1, 2, 1);
+        HeldExecutor executor = new HeldExecutor();
+        List<String> started = new ArrayList<String>();
+
+        check("runs", submit(scheduler, executor, started, "a", QueryScheduler.Lane.SCAN, "A1"), -1L);
+        check("waits", submit(scheduler, executor, started, "a", QueryScheduler.Lane.SCAN, "A2"), -1L);
+        checkBusy("client queue full", submit(scheduler, executor, started, "a", QueryScheduler.Lane.FAST, "A3"));
+        check("other client waits", submit(scheduler, executor, started, "b", QueryScheduler.Lane.SCAN, "B1"), -1L);
+        checkBusy("queue full", submit(scheduler, executor, started, "c", QueryScheduler.Lane.SCAN, "C1"));
+
+        executor.runAll();
+        check("busy queries never run", started, Arrays.asList("A1", "B1", "A2"));
+        check("admits again", submit(scheduler, executor, started, "c", QueryScheduler.Lane.SCAN, "C1"), -1L);
+        executor.runAll();
+        check("slots released", started, Arrays.asList("A1", "B1", "A2", "C1"));
+    }
+
+    /**
+     * Submits a query which records its name when it runs.
+     */
+    private static long submit(QueryScheduler scheduler, Executor executor, final List<String> started,
+        String client, QueryScheduler.Lane lane, final String name)
+    {
+        return scheduler.submit(client, lane, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                started.add(name);
+            }
+        }, executor);
+    }
+
+    private static void checkBusy(String name, long retryMillis)
+    {
+        if (retryMillis < 100 || retryMillis > 60000)
+        {
+            fail(name, "expected a retry delay but was " + retryMillis);
+        }
+    }
+
+    private static void check(String name, Object actual, Object expected)
+    {
+        if (!expected.equals(actual))
+        {
+            fail(name, "expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    private static void fail(String name, String message)
+    {
+        failures++;
+        logger.LogError(name + ": " + message);
+    }
+
+    /**
+     * Executor which holds the started queries until the test runs them, in the
+     * order they were started.
+     */
+    private static class HeldExecutor implements Executor
+    {
+        private final Deque<Runnable> held = new ArrayDeque<Runnable>();
+
+        @Override
+        public void execute(Runnable task)
+        {
+            this.held.add(task);
+        }
+
+        /**
+         * Runs the held queries, and those they start as they end, until none is left.
+         */
+        void runAll()
+        {
+            while (!this.held.isEmpty())
+            {
+                this.held.poll().run();
+            }
+        }
+    }
+}
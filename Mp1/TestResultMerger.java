@@ -0,0 +1,218 @@
+/**
+ * Class for testing the merge of the ordered results.
+ *
+ * @author Prateeth Reddy Chagari (chagari2@illinois.edu)
+ */
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests that ResultMerger writes the lines of all the VMs by time, ties in the order
+ * of the VMs, only once no VM can send an earlier line, that a VM whose buffer is
+ * full waits for the others instead of buffering more, and that input arriving
+ * after close is ignored.
+ */
+public class TestResultMerger
+{
+    /**
+     * Logger instance.
+     */
+    public static GrepLogger logger = GrepLogger.initialize("TestResultMerger", "TestResultMerger.log");
+
+    /**
+     * Number of failed checks.
+     */
+    private static int failures = 0;
+
+    public static void main(String[] args)
+    {
+        try
+        {
+            testOrder();
+            testWaitsForEveryVm();
+            testFullBuffer();
+            testAfterClose();
+        }
+        catch (IOException | InterruptedException e)
+        {
+            logger.LogException("Test Failed.", e);
+            System.exit(1);
+        }
+
+        if (failures > 0)
+        {
+            logger.LogError("Test Failed: " + failures + " checks failed.");
+            System.exit(1);
+        }
+        logger.LogInfo("Test Passed.");
+        System.exit(0);
+    }
+
+    /**
+     * Lines come out by timestamp, equal timestamps in the order of the VMs.
+     */
+    private static void testOrder() throws IOException
+    {
+        StringWriter out = new StringWriter();
+        ResultMerger merger = new ResultMerger(Arrays.asList("vm1", "vm2", "vm3"), out, 100);
+        merger.add("vm2", Long.MIN_VALUE, "b-first");
+        merger.add("vm2", 10, "b10");
+        merger.add("vm1", 10, "a10");
+        merger.add("vm3", 5, "c5");
+        merger.add("vm3", 20, "c20");
+        merger.add("vm1", 15, "a15");
+
+        check("merged count", merger.close(), 6L);
+        check("merged order", lines(out),
+            Arrays.asList("vm2 b-first", "vm3 c5", "vm1 a10", "vm2 b10", "vm1 a15", "vm3 c20"));
+    }
+
+    /**
+     * A line is held while some running VM has nothing buffered, and released when
+     * that VM sends a later line or finishes.
+     */
+    private static void testWaitsForEveryVm() throws IOException
+    {
+        StringWriter out = new StringWriter();
+        ResultMerger merger = new ResultMerger(Arrays.asList("vm1", "vm2"), out, 100);
+        merger.add("vm1", 1, "a1");
+        merger.add("vm1", 3, "a3");
+        check("held while vm2 is empty", out.toString(), "");
+
+        merger.add("vm2", 2, "b2");
+        check("earliest lines written", lines(out), Arrays.asList("vm1 a1", "vm2 b2"));
+
+        merger.finish("vm2");
+        check("finished vm releases the rest", lines(out), Arrays.asList("vm1 a1", "vm2 b2", "vm1 a3"));
+        merger.finish("vm2");
+        check("close count", merger.close(), 3L);
+    }
+
+    /**
+     * With a buffer of 2 lines, a VM sending many early lines blocks until the other
+     * VM catches up, and the output is still in order.
+     */
+    private static void testFullBuffer() throws IOException, InterruptedException
+    {
+        StringWriter out = new StringWriter();
+        final ResultMerger merger = new ResultMerger(Arrays.asList("vm1", "vm2"), out, 2);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 50; i++)
+        {
+            expected.add("vm" + (i % 2 + 1) + " line" + i);
+        }
+
+        Thread[] senders = new Thread[2];
+        final IOException[] errors = new IOException[2];
+        for (int vm = 0; vm < 2; vm++)
+        {
+            final int index = vm;
+            senders[vm] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = index; i < 50; i += 2)
+                        {
+                            merger.add("vm" + (index + 1), i, "line" + i);
+                        }
+                        merger.finish("vm" + (index + 1));
+                    }
+                    catch (IOException e)
+                    {
+                        errors[index] = e;
+                    }
+                }
+            });
+        }
+
+        // vm1 alone fills its buffer and then waits for vm2.
+        senders[0].start();
+        Thread.sleep(200);
+        check("vm1 waits on its full buffer", senders[0].isAlive(), true);
+        check("nothing written yet", out.toString(), "");
+
+        senders[1].start();
+        for (Thread sender : senders)
+        {
+            sender.join(10000);
+            check("sender done", sender.isAlive(), false);
+        }
+        check("no send error", errors[0] == null && errors[1] == null, true);
+        check("full buffer count", merger.close(), 50L);
+        check("full buffer order", lines(out), expected);
+    }
+
+    /**
+     * A VM still running at close, as one cancelled at the deadline, neither writes
+     * nor blocks once the merger is closed.
+     */
+    private static void testAfterClose() throws IOException, InterruptedException
+    {
+        StringWriter out = new StringWriter();
+        final ResultMerger merger = new ResultMerger(Arrays.asList("vm1", "vm2"), out, 1);
+        merger.add("vm1", 1, "a1");
+
+        // vm1 waits on its full buffer when the merger is closed.
+        Thread late = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    merger.add("vm1", 2, "a2");
+                }
+                catch (IOException e)
+                {
+                    logger.LogException("Late add failed.", e);
+                }
+            }
+        });
+        late.start();
+        Thread.sleep(100);
+
+        check("close count", merger.close(), 1L);
+        late.join(10000);
+        check("waiting add released", late.isAlive(), false);
+
+        merger.add("vm2", 0, "b0");
+        merger.finish("vm2");
+        merger.finish("vm1");
+        check("input after close ignored", lines(out), Arrays.asList("vm1 a1"));
+        check("close again", merger.close(), 1L);
+    }
+
+    private static List<String> lines(StringWriter out)
+    {
+        List<String> lines = new ArrayList<String>();
+        for (String line : out.toString().split(System.getProperty("line.separator")))
+        {
+            if (!line.isEmpty())
+            {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static void check(String name, Object actual, Object expected)
+    {
+        if (!expected.equals(actual))
+        {
+            fail(name, "expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    private static void fail(String name, String message)
+    {
+        failures++;
+        logger.LogError(name + ": " + message);
+    }
+}
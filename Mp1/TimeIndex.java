@@ -0,0 +1,326 @@
+/**
+ * Timestamp index of a log file.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the earliest and latest log record timestamp of the lines of each block
+ * of the log file, so that a query for a time window only reads the blocks which
+ * overlap it. The timestamp of a line is the one of the record it belongs to, as
+ * for RecordTimestamps; lines before the first record have none. Logs are written
+ * in time order, so a narrow window usually falls in a few neighbouring blocks,
+ * while records written slightly out of order are still found.
+ *
+ * The index is stored next to the log file, in the file with the INDEX_SUFFIX:
+ * the blocks as written by BlockIndex, the timestamp of the record in progress at
+ * the end of the covered lines, and for each block the timestamp of the record in
+ * progress at its start and the earliest and latest timestamps of its lines.
+ */
+public class TimeIndex extends BlockIndex
+{
+    /**
+     * Suffix of the index file name.
+     */
+    public static final String INDEX_SUFFIX = ".tsi";
+
+    /**
+     * First bytes of an index file, "TSI1" in ASCII.
+     */
+    private static final int MAGIC = 0x54534931;
+
+    /**
+     * Size of the read buffer used while indexing.
+     */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Number of bytes at the start of a line in which its timestamp is looked for.
+     */
+    private static final int PREFIX_SIZE = 128;
+
+    /**
+     * Timestamp of the record in progress at the end of the covered lines, -1 if none.
+     */
+    private final long lastTimestamp;
+
+    /**
+     * For each block the timestamp of the record in progress at its start, -1 if
+     * none, and the earliest and latest timestamps of its lines. A block without
+     * timestamped lines has Long.MAX_VALUE and Long.MIN_VALUE.
+     */
+    private final long[] startTimestamps;
+    private final long[] minTimestamps;
+    private final long[] maxTimestamps;
+
+    private TimeIndex(Blocks blocks, long lastTimestamp, long[] startTimestamps, long[] minTimestamps,
+        long[] maxTimestamps)
+    {
+        super(blocks);
+        this.lastTimestamp = lastTimestamp;
+        this.startTimestamps = startTimestamps;
+        this.minTimestamps = minTimestamps;
+        this.maxTimestamps = maxTimestamps;
+    }
+
+    /**
+     * A block of the log file along with the timestamp of the log record in progress
+     * at its start, which its first lines belong to.
+     */
+    public static class Range extends Block
+    {
+        /**
+         * Timestamp of the record in progress at the start of the block, -1 if none.
+         */
+        public final long recordTimestamp;
+
+        Range(long start, long end, long linesBefore, long recordTimestamp)
+        {
+            super(start, end, linesBefore);
+            this.recordTimestamp = recordTimestamp;
+        }
+    }
+
+    /**
+     * @param logFile Log file.
+     * @return Index file of the log file.
+     */
+    public static File indexFileOf(File logFile)
+    {
+        return new File(logFile.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Gets the blocks which have lines in a time window.
+     *
+     * @param since Start of the window in milliseconds, inclusive.
+     * @param until End of the window in milliseconds, exclusive.
+     * @return Candidate blocks in file order.
+     */
+    public List<Range> candidateRanges(long since, long until)
+    {
+        List<Range> ranges = new ArrayList<Range>();
+        int blockCount = this.getBlockCount();
+        for (int id = 0; id < blockCount; id++)
+        {
+            if (this.maxTimestamps[id] >= since && this.minTimestamps[id] < until)
+            {
+                long end = (id + 1 < blockCount) ? this.blocks.starts[id + 1] : this.blocks.indexedLength;
+                ranges.add(new Range(this.blocks.starts[id], end, this.blocks.linesBefore[id],
+                    this.startTimestamps[id]));
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @return Timestamp of the record in progress at getIndexedLength(), -1 if none.
+     */
+    public long getLastTimestamp()
+    {
+        return this.lastTimestamp;
+    }
+
+    @Override
+    public String getKind()
+    {
+        return "time";
+    }
+
+    /**
+     * Builds the index of a log file.
+     *
+     * @param logFile Log file.
+     * @param blockSize Approximate size of a block in bytes.
+     * @return The index.
+     * @throws IOException if the log cannot be read.
+     */
+    public static TimeIndex build(File logFile, int blockSize) throws IOException
+    {
+        return index(logFile, blockSize, null);
+    }
+
+    @Override
+    public TimeIndex extend(File logFile, int blockSize) throws IOException
+    {
+        return index(logFile, blockSize, this);
+    }
+
+    /**
+     * Indexes the whole lines of the log file after the ones covered by the base index.
+     *
+     * @param logFile Log file.
+     * @param blockSize Approximate size of a block in bytes.
+     * @param base Index of the start of the file, null to index the whole file.
+     * @return The index of the whole lines of the file, or the base if no whole
+     *         line was appended.
+     * @throws IOException if the log cannot be read.
+     */
+    private static TimeIndex index(File logFile, int blockSize, TimeIndex base) throws IOException
+    {
+        long start = (base == null) ? 0 : base.blocks.indexedLength;
+        long lines = (base == null) ? 0 : base.blocks.indexedLines;
+        long timestamp = (base == null) ? -1 : base.lastTimestamp;
+        List<Long> blockStarts = new ArrayList<Long>();
+        List<Long> linesBefore = new ArrayList<Long>();
+        List<Long> startTimestamps = new ArrayList<Long>();
+        List<Long> minTimestamps = new ArrayList<Long>();
+        List<Long> maxTimestamps = new ArrayList<Long>();
+        SimpleDateFormat format = RecordTimestamps.createFormat();
+        byte[] prefix = new byte[PREFIX_SIZE];
+        int prefixLength = 0;
+        long wholeLinesEnd = start;
+        long anchorChecksum;
+
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "r");
+             FileChannel channel = file.getChannel())
+        {
+            long length = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = start;
+            long blockStart = start;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            blockStarts.add(start);
+            linesBefore.add(lines);
+            startTimestamps.add(timestamp);
+
+            while (position < length)
+            {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0)
+                {
+                    break;
+                }
+
+                byte[] bytes = buffer.array();
+                for (int i = 0; i < read; i++)
+                {
+                    if (bytes[i] != '\n')
+                    {
+                        if (prefixLength < PREFIX_SIZE)
+                        {
+                            prefix[prefixLength++] = bytes[i];
+                        }
+                        continue;
+                    }
+
+                    long lineTimestamp = RecordTimestamps.parse(format,
+                        new String(prefix, 0, prefixLength, StandardCharsets.UTF_8));
+                    if (lineTimestamp >= 0)
+                    {
+                        timestamp = lineTimestamp;
+                    }
+                    if (timestamp >= 0)
+                    {
+                        min = Math.min(min, timestamp);
+                        max = Math.max(max, timestamp);
+                    }
+                    prefixLength = 0;
+                    lines++;
+                    wholeLinesEnd = position + i + 1;
+
+                    if (wholeLinesEnd - blockStart >= blockSize && wholeLinesEnd < length)
+                    {
+                        minTimestamps.add(min);
+                        maxTimestamps.add(max);
+                        min = Long.MAX_VALUE;
+                        max = Long.MIN_VALUE;
+                        blockStart = wholeLinesEnd;
+                        blockStarts.add(blockStart);
+                        linesBefore.add(lines);
+                        startTimestamps.add(timestamp);
+                    }
+                }
+                position += read;
+            }
+
+            if (base != null && wholeLinesEnd == start)
+            {
+                return base;
+            }
+            minTimestamps.add(min);
+            maxTimestamps.add(max);
+            anchorChecksum = anchorChecksum(channel, wholeLinesEnd);
+        }
+
+        long[] noBlocks = new long[0];
+        Blocks blocks = new Blocks(wholeLinesEnd, lines, anchorChecksum,
+            concat((base == null) ? noBlocks : base.blocks.starts, blockStarts),
+            concat((base == null) ? noBlocks : base.blocks.linesBefore, linesBefore));
+        return new TimeIndex(blocks, timestamp,
+            concat((base == null) ? noBlocks : base.startTimestamps, startTimestamps),
+            concat((base == null) ? noBlocks : base.minTimestamps, minTimestamps),
+            concat((base == null) ? noBlocks : base.maxTimestamps, maxTimestamps));
+    }
+
+    @Override
+    public void write(File logFile) throws IOException
+    {
+        File indexFile = indexFileOf(logFile);
+        File temporary = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16)))
+        {
+            this.writeBlocks(out, MAGIC);
+            out.writeLong(this.lastTimestamp);
+            for (int i = 0; i < this.startTimestamps.length; i++)
+            {
+                out.writeLong(this.startTimestamps[i]);
+                out.writeLong(this.minTimestamps[i]);
+                out.writeLong(this.maxTimestamps[i]);
+            }
+        }
+        replace(temporary, indexFile);
+    }
+
+    /**
+     * Reads the index of a log file.
+     *
+     * @param logFile Log file.
+     * @return The index, or null if there is no index file.
+     * @throws IOException if the index file cannot be read or is corrupt.
+     */
+    public static TimeIndex read(File logFile) throws IOException
+    {
+        File indexFile = indexFileOf(logFile);
+        if (!indexFile.isFile())
+        {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(indexFile), 1 << 16)))
+        {
+            Blocks blocks = readBlocks(in, MAGIC, indexFile);
+            long lastTimestamp = in.readLong();
+            long[] startTimestamps = new long[blocks.starts.length];
+            long[] minTimestamps = new long[startTimestamps.length];
+            long[] maxTimestamps = new long[startTimestamps.length];
+            for (int i = 0; i < startTimestamps.length; i++)
+            {
+                startTimestamps[i] = in.readLong();
+                minTimestamps[i] = in.readLong();
+                maxTimestamps[i] = in.readLong();
+            }
+            return new TimeIndex(blocks, lastTimestamp, startTimestamps, minTimestamps, maxTimestamps);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/**
+ * Trigram index of a log file.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records, for every trigram, the blocks of the log file which contain it. A line
+ * which contains a string contains all its trigrams, so only the blocks holding
+ * every trigram of a string the query requires can have matching lines; the
+ * others are skipped.
+ *
+ * The index is stored next to the log file, in the file with the INDEX_SUFFIX:
+ * the blocks as written by BlockIndex, the number of trigrams, each trigram with
+ * the length of its posting list, and the posting lists. A posting list holds the
+ * ids of the blocks as varint deltas.
+ */
+public class TrigramIndex extends LiteralIndex
+{
+    /**
+     * Suffix of the index file name.
+     */
+    public static final String INDEX_SUFFIX = ".tgi";
+
+    /**
+     * First bytes of an index file, "TGI2" in ASCII.
+     */
+    private static final int MAGIC = 0x54474932;
+
+    /**
+     * Sorted trigrams, the start of their posting lists and all the posting lists.
+     */
+    private final int[] trigrams;
+    private final int[] postingStarts;
+    private final byte[] postings;
+
+    /**
+     * Last block in the posting list of each trigram, where appended blocks continue the list.
+     */
+    private final int[] lastBlocks;
+
+    private TrigramIndex(Blocks blocks, int[] trigrams, int[] postingStarts, byte[] postings, int[] lastBlocks)
+    {
+        super(blocks);
+        this.trigrams = trigrams;
+        this.postingStarts = postingStarts;
+        this.postings = postings;
+        this.lastBlocks = lastBlocks;
+    }
+
+    /**
+     * @param logFile Log file.
+     * @return Index file of the log file.
+     */
+    public static File indexFileOf(File logFile)
+    {
+        return new File(logFile.getPath() + INDEX_SUFFIX);
+    }
+
+    @Override
+    public List<Block> candidateBlocks(List<List<String>> requiredLiterals)
+    {
+        int blockCount = this.getBlockCount();
+        BitSet candidates = new BitSet(blockCount);
+        for (int[] trigrams : trigramsOf(requiredLiterals))
+        {
+            BitSet patternBlocks = new BitSet(blockCount);
+            patternBlocks.set(0, blockCount);
+            for (int i = 0; i < trigrams.length && !patternBlocks.isEmpty(); i++)
+            {
+                patternBlocks.and(this.blocksOf(trigrams[i]));
+            }
+            candidates.or(patternBlocks);
+        }
+        return this.blocksOf(candidates);
+    }
+
+    @Override
+    public String getKind()
+    {
+        return "trigram";
+    }
+
+    /**
+     * Decodes the posting list of a trigram.
+     *
+     * @param trigram Trigram.
+     * @return Blocks containing the trigram.
+     */
+    private BitSet blocksOf(int trigram)
+    {
+        BitSet blocks = new BitSet(this.getBlockCount());
+        int index = Arrays.binarySearch(this.trigrams, trigram);
+        if (index < 0)
+        {
+            return blocks;
+        }
+
+        int position = this.postingStarts[index];
+        int end = position + this.postingLength(index);
+        int block = 0;
+        while (position < end)
+        {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do
+            {
+                b = this.postings[position++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            }
+            while ((b & 0x80) != 0);
+
+            block += delta;
+            blocks.set(block);
+        }
+        return blocks;
+    }
+
+    /**
+     * Builds the index of a log file.
+     *
+     * @param logFile Log file.
+     * @param blockSize Approximate size of a block in bytes.
+     * @return The index.
+     * @throws IOException if the log cannot be read.
+     */
+    public static TrigramIndex build(File logFile, int blockSize) throws IOException
+    {
+        return index(logFile, blockSize, null);
+    }
+
+    @Override
+    public TrigramIndex extend(File logFile, int blockSize) throws IOException
+    {
+        return index(logFile, blockSize, this);
+    }
+
+    /**
+     * Indexes the whole lines of the log file after the ones covered by the base index.
+     *
+     * @param logFile Log file.
+     * @param blockSize Approximate size of a block in bytes.
+     * @param base Index of the start of the file, null to index the whole file.
+     * @return The index of the whole lines of the file.
+     * @throws IOException if the log cannot be read.
+     */
+    private static TrigramIndex index(File logFile, int blockSize, final TrigramIndex base) throws IOException
+    {
+        final Map<Integer, PostingList> postingLists = new HashMap<Integer, PostingList>();
+        Blocks blocks = scan(logFile, blockSize, base, new BlockVisitor()
+        {
+            @Override
+            public void visit(int blockId, TrigramSet trigrams)
+            {
+                for (int i = 0; i < trigrams.size(); i++)
+                {
+                    int trigram = trigrams.get(i);
+                    PostingList list = postingLists.get(trigram);
+                    if (list == null)
+                    {
+                        list = new PostingList((base == null) ? 0 : base.lastBlockOf(trigram));
+                        postingLists.put(trigram, list);
+                    }
+                    list.add(blockId);
+                }
+            }
+        });
+        if (blocks == null)
+        {
+            return base;
+        }
+
+        int[] newTrigrams = new int[postingLists.size()];
+        int index = 0;
+        for (Integer trigram : postingLists.keySet())
+        {
+            newTrigrams[index++] = trigram;
+        }
+        Arrays.sort(newTrigrams);
+
+        // Merges the new posting lists after the ones of the base, both sorted by trigram.
+        int[] baseTrigrams = (base == null) ? new int[0] : base.trigrams;
+        int[] trigrams = new int[baseTrigrams.length + newTrigrams.length];
+        int[] postingStarts = new int[trigrams.length];
+        int[] lastBlocks = new int[trigrams.length];
+        int[] baseIndexes = new int[trigrams.length];
+        PostingList[] newLists = new PostingList[trigrams.length];
+        int count = 0;
+        int postingsLength = 0;
+        int baseIndex = 0;
+        int newIndex = 0;
+        while (baseIndex < baseTrigrams.length || newIndex < newTrigrams.length)
+        {
+            boolean fromBase = newIndex == newTrigrams.length
+                || (baseIndex < baseTrigrams.length && baseTrigrams[baseIndex] <= newTrigrams[newIndex]);
+            boolean fromNew = baseIndex == baseTrigrams.length
+                || (newIndex < newTrigrams.length && newTrigrams[newIndex] <= baseTrigrams[baseIndex]);
+
+            trigrams[count] = fromBase ? baseTrigrams[baseIndex] : newTrigrams[newIndex];
+            postingStarts[count] = postingsLength;
+            baseIndexes[count] = fromBase ? baseIndex : -1;
+            if (fromBase)
+            {
+                postingsLength += base.postingLength(baseIndex);
+                lastBlocks[count] = base.lastBlocks[baseIndex];
+                baseIndex++;
+            }
+            if (fromNew)
+            {
+                newLists[count] = postingLists.get(newTrigrams[newIndex]);
+                postingsLength += newLists[count].size;
+                lastBlocks[count] = newLists[count].lastBlock;
+                newIndex++;
+            }
+            count++;
+        }
+
+        byte[] postings = new byte[postingsLength];
+        for (int i = 0; i < count; i++)
+        {
+            int position = postingStarts[i];
+            if (baseIndexes[i] >= 0)
+            {
+                int length = base.postingLength(baseIndexes[i]);
+                System.arraycopy(base.postings, base.postingStarts[baseIndexes[i]], postings, position, length);
+                position += length;
+            }
+            if (newLists[i] != null)
+            {
+                System.arraycopy(newLists[i].bytes, 0, postings, position, newLists[i].size);
+            }
+        }
+
+        return new TrigramIndex(blocks, Arrays.copyOf(trigrams, count), Arrays.copyOf(postingStarts, count),
+            postings, Arrays.copyOf(lastBlocks, count));
+    }
+
+    /**
+     * @param index Index of a trigram.
+     * @return Length of its posting list in bytes.
+     */
+    private int postingLength(int index)
+    {
+        int end = (index + 1 < this.postingStarts.length) ? this.postingStarts[index + 1] : this.postings.length;
+        return end - this.postingStarts[index];
+    }
+
+    /**
+     * @param trigram Trigram.
+     * @return Last block in the posting list of the trigram, 0 if it has none.
+     */
+    private int lastBlockOf(int trigram)
+    {
+        int index = Arrays.binarySearch(this.trigrams, trigram);
+        return (index < 0) ? 0 : this.lastBlocks[index];
+    }
+
+    @Override
+    public void write(File logFile) throws IOException
+    {
+        File indexFile = indexFileOf(logFile);
+        File temporary = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16)))
+        {
+            this.writeBlocks(out, MAGIC);
+            out.writeInt(this.trigrams.length);
+            for (int i = 0; i < this.trigrams.length; i++)
+            {
+                out.writeInt(this.trigrams[i]);
+                out.writeInt(this.postingLength(i));
+            }
+            out.write(this.postings);
+        }
+        replace(temporary, indexFile);
+    }
+
+    /**
+     * Reads the index of a log file.
+     *
+     * @param logFile Log file.
+     * @return The index, or null if there is no index file.
+     * @throws IOException if the index file cannot be read or is corrupt.
+     */
+    public static TrigramIndex read(File logFile) throws IOException
+    {
+        File indexFile = indexFileOf(logFile);
+        if (!indexFile.isFile())
+        {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(indexFile), 1 << 16)))
+        {
+            Blocks blocks = readBlocks(in, MAGIC, indexFile);
+            int[] trigrams = new int[in.readInt()];
+            int[] postingStarts = new int[trigrams.length];
+            int postingsLength = 0;
+            for (int i = 0; i < trigrams.length; i++)
+            {
+                trigrams[i] = in.readInt();
+                postingStarts[i] = postingsLength;
+                postingsLength += in.readInt();
+            }
+            byte[] postings = new byte[postingsLength];
+            in.readFully(postings);
+
+            TrigramIndex index = new TrigramIndex(blocks, trigrams, postingStarts, postings,
+                new int[trigrams.length]);
+            for (int i = 0; i < trigrams.length; i++)
+            {
+                index.lastBlocks[i] = index.blocksOf(trigrams[i]).length() - 1;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Posting list being built, as varint deltas of the block ids. When an index is
+     * extended the first delta is from the last block of the list in the base index,
+     * so that the new bytes simply follow the old ones.
+     */
+    private static class PostingList
+    {
+        byte[] bytes = new byte[4];
+        int size = 0;
+        int lastBlock;
+
+        PostingList(int lastBlock)
+        {
+            this.lastBlock = lastBlock;
+        }
+
+        void add(int block)
+        {
+            int delta = block - this.lastBlock;
+            this.lastBlock = block;
+            while (true)
+            {
+                if (this.size == this.bytes.length)
+                {
+                    this.bytes = Arrays.copyOf(this.bytes, this.size * 2);
+                }
+                if ((delta & ~0x7F) == 0)
+                {
+                    this.bytes[this.size++] = (byte) delta;
+                    return;
+                }
+                this.bytes[this.size++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+        }
+    }
+}
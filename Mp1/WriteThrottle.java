@@ -0,0 +1,21 @@
+/**
+ * Flow control for the output of a request.
+ *
+ * @author Nitish Talasu(ntalasu2@illinois.edu)
+ */
+
+import java.io.IOException;
+
+/**
+ * Lets a request wait while the connection it writes to has too many bytes queued
+ * for the client.
+ */
+public interface WriteThrottle
+{
+    /**
+     * Waits until the connection can take more output.
+     *
+     * @throws IOException if the connection closed.
+     */
+    void awaitWritable() throws IOException;
+}